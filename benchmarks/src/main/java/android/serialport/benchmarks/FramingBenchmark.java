@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport.benchmarks;
+
+import android.serialport.Crc16;
+import android.serialport.HdlcFramer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CRC and HDLC framing over random payloads, which contain flag and escape bytes to stuff
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int size;
+
+    private byte[] mData;
+    private byte[] mEncoded;
+    private int mEncodedLength;
+    private HdlcFramer.Decoder mDecoder;
+    private int mFrames;
+
+    @Setup
+    public void prepare() {
+        mData = new byte[size];
+        new Random(42).nextBytes(mData);
+        mEncoded = new byte[HdlcFramer.maxEncodedLength(size)];
+        mEncodedLength = HdlcFramer.encode(mData, 0, size, mEncoded, 0);
+        mDecoder = new HdlcFramer.Decoder(size, new HdlcFramer.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                mFrames++;
+            }
+        });
+    }
+
+    @Benchmark
+    public int crc16() {
+        return Crc16.compute(mData, 0, size);
+    }
+
+    @Benchmark
+    public int crc16Xmodem() {
+        return Crc16.xmodem(mData, 0, size);
+    }
+
+    @Benchmark
+    public int hdlcEncode() {
+        return HdlcFramer.encode(mData, 0, size, mEncoded, 0);
+    }
+
+    @Benchmark
+    public int hdlcDecode() {
+        mDecoder.feed(mEncoded, 0, mEncodedLength);
+        return mFrames;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport.benchmarks;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.serialport.PseudoTerminal;
+import android.serialport.SerialPortHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MSG_WHAT_WRITE_AND_READ round trips, command to MSG_WHAT_RSP, against a device echoing
+ * every command back on the pty master
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialPortHandlerBenchmark {
+
+    @Param({"8", "64"})
+    public int size;
+
+    private PseudoTerminal mPty;
+    private SerialPortHandler mPort;
+    private HandlerThread mClientThread;
+    private Thread mEchoThread;
+    private final BlockingQueue<byte[]> mResponses = new LinkedBlockingQueue<byte[]>();
+    private byte[] mCommand;
+
+    @Setup
+    public void open() throws IOException {
+        mPty = new PseudoTerminal();
+        mPort = new SerialPortHandler(mPty.getSlavePath(), 115200);
+        mClientThread = new HandlerThread("client");
+        mClientThread.start();
+        mPort.setClientHandler(new Handler(mClientThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == SerialPortHandler.MSG_WHAT_RSP) {
+                    mResponses.add((byte[]) msg.obj);
+                }
+            }
+        });
+        mEchoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = mPty.getMasterInputStream();
+                OutputStream out = mPty.getMasterOutputStream();
+                byte[] buffer = new byte[4096];
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException e) {
+                    /* the pty is closed */
+                }
+            }
+        }, "echo");
+        mEchoThread.setDaemon(true);
+        mEchoThread.start();
+        mCommand = new byte[size];
+        Arrays.fill(mCommand, (byte) 'A');
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        mPort.close();
+        mClientThread.quit();
+        mPty.close();
+    }
+
+    @Benchmark
+    public byte[] writeAndRead() throws InterruptedException {
+        mPort.getHandler().obtainMessage(SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
+                SerialPortHandler.MSG_ARG1_RSP_TO_SENDER, SerialPortHandler.MSG_ARG2_UNUSED,
+                mCommand).sendToTarget();
+        return mResponses.take();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport.benchmarks;
+
+import android.serialport.PseudoTerminal;
+import android.serialport.SerialPort;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SerialPort stream writes and reads through a pty, the other end played on the master
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialPortStreamBenchmark {
+
+    @Param({"1", "64", "1024"})
+    public int size;
+
+    private PseudoTerminal mPty;
+    private SerialPort mPort;
+    private InputStream mPortIn;
+    private OutputStream mPortOut;
+    private InputStream mMasterIn;
+    private OutputStream mMasterOut;
+    private byte[] mData;
+    private byte[] mBuffer;
+
+    @Setup
+    public void open() throws IOException {
+        mPty = new PseudoTerminal();
+        mPort = new SerialPort(new File(mPty.getSlavePath()), 115200, 0);
+        mPortIn = mPort.getInputStream();
+        mPortOut = mPort.getOutputStream();
+        mMasterIn = mPty.getMasterInputStream();
+        mMasterOut = mPty.getMasterOutputStream();
+        mData = new byte[size];
+        Arrays.fill(mData, (byte) 0x55);
+        mBuffer = new byte[size];
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        mPort.close();
+        mPty.close();
+    }
+
+    static int readFully(InputStream in, byte[] buffer, int size) throws IOException {
+        int n = 0;
+        while (n < size) {
+            int r = in.read(buffer, n, size - n);
+            if (r < 0) {
+                throw new IOException("end of stream");
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        mPortOut.write(mData);
+        return readFully(mMasterIn, mBuffer, size);
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        mMasterOut.write(mData);
+        return readFully(mPortIn, mBuffer, size);
+    }
+}
@@ -24,9 +24,13 @@ import android.graphics.drawable.ColorDrawable;
 import android.os.Bundle;
 import android.os.CountDownTimer;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.serialport.SerialPortHandler;
+import android.serialport.BarcodeScanner;
+import android.serialport.BarcodeStream;
+import android.serialport.SerialPort;
+import android.serialport.SysfsSignals;
 import android.text.InputFilter;
 import android.text.Spanned;
 import android.util.Log;
@@ -40,10 +44,8 @@ import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.util.List;
 
 public class BarcodeScannerActivity extends Activity {
 
@@ -51,9 +53,15 @@ public class BarcodeScannerActivity extends Activity {
 
     public static final String BCS_TTY_DEVICE = "/dev/ttyMSM1";
     public static final int BCS_TTY_BAUDRATE = 115200;
-    public static final int BCS_POWERED_ON_INIT_TIME_MS = 1500;
-    /* The PWRDWN signal goes high ~1.2s after the wake up event occurs. */
-    public static final int BCS_WAKE_UP_TIME_MS = 1200;
+    public static final String BCS_SIGNALS_PATH = "/sys/devices/soc/soc:n668x_db_platform/signals";
+    /*
+     * Upper bounds only: the scanner is used as soon as it answers a query after power on, or
+     * as soon as PWRDWN goes high after a wake up event (typically ~1.5s and ~1.2s).
+     */
+    public static final int BCS_POWERED_ON_INIT_TIMEOUT_MS = 3000;
+    public static final int BCS_WAKE_UP_TIMEOUT_MS = 2500;
+    /* the nTRIG pulse out of standby is 1.1 milliseconds in the device specification */
+    public static final int BCS_STANDBY_WAKE_UP_TIMEOUT_MS = 2;
 
     public static final int BCS_TRIGGER_MODE_MANUAL_TRIGGER = 0;
     public static final int BCS_TRIGGER_MODE_SERIAL_TRIGGER = 1;
@@ -64,13 +72,25 @@ public class BarcodeScannerActivity extends Activity {
     public static final int BCS_TTY_ACK_TIMEOUT_MS = 200;
     public static final int BCS_TTY_READ_BUFFER_SIZE = 512;
     public static final int READ_TIME_OUT_DEFAULT = 30;
+    /* in presentation modes the same label is reported again only after it was away this long */
+    public static final int BCS_REREAD_INTERVAL_MS = 1000;
 
     /* local messages */
     private static final int MSG_BASE = 0x1000;
     private static final int MSG_PERFORM_SCANNING_ACTIVATION = MSG_BASE + 0;
-
-    private static SerialPortHandler mBCS = null;
+    private static final int MSG_BARCODE = MSG_BASE + 1;
+
+    private static SerialPort mPort = null;
+    private static BarcodeScanner mBCS = null;
+    /* V_IN, nPWRDWN and nTRIG of the scanner */
+    private static SysfsSignals mSignals = null;
+    /* frames and de-duplicates barcodes off the UI thread */
+    private BarcodeStream mStream;
     private Handler mHandler; /* UI thread handler */
+    /* menu commands block until acknowledged, they run on this thread */
+    private HandlerThread mCommandThread;
+    private Handler mCommandHandler;
+    private volatile boolean mScanning;
     private int mReadTimeOut = -1;
     private int mLastTriggeredMode = -1;
     private TextView mBarcode;
@@ -100,59 +120,54 @@ public class BarcodeScannerActivity extends Activity {
      * [MSG_WHAT_WRITE_AND_READ] <- TRGLPT0-300[ACK].
      */
     private void postPoweredOn() {
-        final int delayed = BCS_POWERED_ON_INIT_TIME_MS;
-        byte[] cmd;
-        Message msg;
-
-        /* to enter Standby mode while in Idle mode for 30 seconds */
-        cmd = new byte[] {0x16, 'M', 0x0d, '2', '3', '2', 'L', 'P', 'T', '3', '0', '!'};
-        msg = mBCS.getHandler().obtainMessage(
-                SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                SerialPortHandler.MSG_ARG2_UNUSED,
-                cmd);
-        mBCS.getHandler().sendMessageDelayed(msg, delayed);
-
-        /*
-         * Power Off mode is entered when the menu command TRGLPT expires while in
-         * Manual Low Power Trigger mode (TRGMOD2).
-         */
-        cmd = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'L', 'P', 'T', '1', '!'};
-        msg = mBCS.getHandler().obtainMessage(
-                SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                SerialPortHandler.MSG_ARG2_UNUSED,
-                cmd);
-        mBCS.getHandler().sendMessageDelayed(msg, delayed);
+        mCommandHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int ready = mBCS.awaitReady(BCS_POWERED_ON_INIT_TIMEOUT_MS);
+                if (ready < 0) {
+                    Log.e(TAG, "no reply " + BCS_POWERED_ON_INIT_TIMEOUT_MS + " ms after power on");
+                } else {
+                    Log.v(TAG, "ready " + ready + " ms after power on");
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mInitializingDlg.dismiss();
+                    }
+                });
+
+                /* the active settings did not survive the power cycle, ask what we have now */
+                mBCS.invalidateSettings();
+                mBCS.loadSettings("232LPT", "TRGLPT", "TRGMOD", "TRGSTO");
+                mBCS.apply(new BarcodeScanner.Config()
+                        /* to enter Standby mode while in Idle mode for 30 seconds */
+                        .setStandbyTimeout(30)
+                        /*
+                         * Power Off mode is entered when the menu command TRGLPT expires while in
+                         * Manual Low Power Trigger mode (TRGMOD2).
+                         */
+                        .setPowerOffTimeout(1));
+            }
+        });
 
         /* reset the default value */
         mReadTimeOut = -1;
         mLastTriggeredMode = -1;
     }
 
+    /* memory reads, the signals are cached and refreshed on change */
     private boolean isPowered() {
-        try {
-            FileInputStream signals = new FileInputStream("/sys/devices/soc/soc:n668x_db_platform/signals");
-            try {
-                byte[] content = new byte[128];
-                int n = signals.read(content, 0, content.length);
-                if (n > 0) {
-                    String s = new String(content, 0, n);
-                    int x = s.indexOf("V_IN=");
-                    if (x != -1) {
-                        if (s.charAt(x + 5) == '1')
-                            return true;
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            signals.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return mSignals.get("V_IN") == 1;
+    }
 
-        return false;
+    /* standby or power off mode */
+    private boolean isPowerDown() {
+        return mSignals.get("nPWRDWN") == 0;
+    }
+
+    /* wait for PWRDWN to go high */
+    private boolean waitForPowerUp(int timeout_ms) {
+        return mSignals.awaitValue("nPWRDWN", 1, timeout_ms);
     }
 
     private void switchPower(boolean on) {
@@ -160,18 +175,7 @@ public class BarcodeScannerActivity extends Activity {
             return;
 
         /* "V_IN=1" to supply power (3.3V) */
-        try {
-            FileOutputStream signals = new FileOutputStream("/sys/devices/soc/soc:n668x_db_platform/signals");
-            String s = "V_IN=" + (on ? "1" : "0");
-            try {
-                signals.write(s.getBytes("US-ASCII"));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            signals.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        mSignals.set("V_IN", on ? 1 : 0);
 
         /* wait for initialization */
         if (on) {
@@ -199,33 +203,37 @@ public class BarcodeScannerActivity extends Activity {
         /* communication interface */
         try {
             openSerialPort();
-            mBCS.setReadBufferSize(BCS_TTY_READ_BUFFER_SIZE);
-            mBCS.setRspTimeout(BCS_TTY_ACK_TIMEOUT_MS);
+            mBCS.setAckTimeout(BCS_TTY_ACK_TIMEOUT_MS);
         } catch (IOException e) {
             e.printStackTrace();
             finish();
             return;
         }
+        mCommandThread = new HandlerThread("BarcodeScannerCommands");
+        mCommandThread.start();
+        mCommandHandler = new Handler(mCommandThread.getLooper());
 
         mHandler = new Handler(Looper.getMainLooper()) {
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
-                    case SerialPortHandler.MSG_WHAT_READ_RESULT: {
-                        String barcode = new String((byte[]) msg.obj);
+                    case MSG_BARCODE: {
+                        if (!mScanning) {
+                            break;
+                        }
+                        /* one message per batch, however fast the labels pass by */
+                        @SuppressWarnings("unchecked")
+                        List<String> barcodes = (List<String>) msg.obj;
+                        String barcode = barcodes.get(barcodes.size() - 1);
                         if (!mScanningDlg.isPresentationMode()) {
                             mScanningDlg.dismiss();
                         } else {
-                            mScanningDlg.incPresentationScannedCount();
+                            mScanningDlg.addPresentationScannedCount(barcodes.size());
                             barcode = "#" + mScanningDlg.getPresentationScannedCount() + ": " + barcode;
                         }
                         mBarcode.setText(barcode);
                         break;
                     }
-                    case SerialPortHandler.MSG_WHAT_RSP: {
-                        Log.v(TAG, "TODO: handle SerialPortHandler.MSG_WHAT_RSP");
-                        break;
-                    }
                     case MSG_PERFORM_SCANNING_ACTIVATION: {
                         findViewById(R.id.activate).performClick();
                         break;
@@ -235,14 +243,23 @@ public class BarcodeScannerActivity extends Activity {
                 }
             }
         };
-        mBCS.setClientHandler(mHandler);
+        mStream = new BarcodeStream(new BarcodeStream.Listener() {
+            @Override
+            public void onBarcodes(List<String> barcodes) {
+                if (mScanning) {
+                    mHandler.obtainMessage(MSG_BARCODE, barcodes).sendToTarget();
+                }
+            }
+        });
+        mStream.start();
+        mBCS.setListener(mStream);
 
         mBarcode = findViewById(R.id.barcode);
         mScanningDlg = new ScanningDialog(this);
         mInitializingDlg = new WaitingDialog(this, "\nInitializing\n\nPlease wait...\n",
-                BCS_POWERED_ON_INIT_TIME_MS);
+                BCS_POWERED_ON_INIT_TIMEOUT_MS);
         mWakeupDlg = new WaitingDialog(this, "\nWaking up from power off mode\n\nPlease wait...\n",
-                BCS_WAKE_UP_TIME_MS);
+                BCS_WAKE_UP_TIMEOUT_MS);
         ((Spinner)findViewById(R.id.trigger_mode)).setSelection(BCS_TRIGGER_MODE_SERIAL_TRIGGER);
 
         Switch power = findViewById(R.id.power_switch);
@@ -266,80 +283,56 @@ public class BarcodeScannerActivity extends Activity {
             @Override
             public void onClick(View v) {
                 Spinner trigger_mode = findViewById(R.id.trigger_mode);
-                boolean isPowerDown = false;
-
-                /* is in standby or in power off mode */
-                try {
-                    FileInputStream signals = new FileInputStream("/sys/devices/soc/soc:n668x_db_platform/signals");
-                    try {
-                        byte[] content = new byte[128];
-                        int n = signals.read(content, 0, content.length);
-                        if (n > 0) {
-                            String s = new String(content, 0, n);
-                            int x = s.indexOf("nPWRDWN=");
-                            if (x != -1) {
-                                if (s.charAt(x + 8) == '0')
-                                    isPowerDown = true;
-                            }
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    signals.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
 
-                if (isPowerDown) {
+                if (isPowerDown()) {
                     if (mLastTriggeredMode == BCS_TRIGGER_MODE_LOW_POWER_MANUAL_TRIGGER) {
                         /* power off mode*/
                         mWakeupDlg.show();
                         Thread trigger = new Thread(new Runnable() {
                             @Override
                             public void run() {
-                                try {
-                                    FileOutputStream signals = new FileOutputStream("/sys/devices/soc/soc:n668x_db_platform/signals");
-                                    try {
-                                        signals.write("nTRIG=0".getBytes("US-ASCII"));
-                                        Thread.sleep(BCS_WAKE_UP_TIME_MS);
-                                        signals.write("nTRIG=1".getBytes("US-ASCII"));
-                                        Log.v(TAG, "exit power off mode");
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
+                                /* hold nTRIG low until the scanner is up */
+                                mSignals.set("nTRIG", 0);
+                                boolean up = waitForPowerUp(BCS_WAKE_UP_TIMEOUT_MS);
+                                mSignals.set("nTRIG", 1);
+
+                                mHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        mWakeupDlg.dismiss();
                                     }
-                                    signals.close();
-                                } catch (IOException e) {
-                                    e.printStackTrace();
+                                });
+                                if (up) {
+                                    Log.v(TAG, "exit power off mode");
+                                    /* scan right away */
+                                    mHandler.sendEmptyMessage(MSG_PERFORM_SCANNING_ACTIVATION);
+                                } else {
+                                    Log.e(TAG, "still in power off mode after " + BCS_WAKE_UP_TIMEOUT_MS + " ms");
                                 }
                             }
                         });
                         trigger.start();
-                        /* UI thread sleeps for a while to let trigger thread run */
-                        try {
-                            Thread.sleep(20);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                        Message msg = mHandler.obtainMessage(MSG_PERFORM_SCANNING_ACTIVATION);
-                        mHandler.sendMessageDelayed(msg, BCS_WAKE_UP_TIME_MS);
                         return;
                     } else {
-                        /* standby mode */
-                        try {
-                            FileOutputStream signals = new FileOutputStream("/sys/devices/soc/soc:n668x_db_platform/signals");
-                            try {
-                                signals.write("nTRIG=0".getBytes("US-ASCII"));
-                                /* 1.1 milliseconds defined in device specification */
-                                Thread.sleep(2);
-                                signals.write("nTRIG=1".getBytes("US-ASCII"));
-                                Log.v(TAG, "exit standby mode");
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
+                        /* standby mode, the pulse waits on the command thread, not here */
+                        mCommandHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mSignals.set("nTRIG", 0);
+                                /* released as soon as PWRDWN goes high, 1.1 milliseconds at most */
+                                boolean up = waitForPowerUp(BCS_STANDBY_WAKE_UP_TIMEOUT_MS);
+                                mSignals.set("nTRIG", 1);
+
+                                if (up) {
+                                    Log.v(TAG, "exit standby mode");
+                                    /* scan right away */
+                                    mHandler.sendEmptyMessage(MSG_PERFORM_SCANNING_ACTIVATION);
+                                } else {
+                                    Log.e(TAG, "still in standby mode after " + BCS_STANDBY_WAKE_UP_TIMEOUT_MS + " ms");
+                                }
                             }
-                            signals.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                        });
+                        return;
                     }
                 }
 
@@ -348,43 +341,11 @@ public class BarcodeScannerActivity extends Activity {
                         EditText timeout = findViewById(R.id.read_time_out);
                         int val = Integer.parseInt(timeout.getText().toString());
 
-                        if (mReadTimeOut != val) {
-                            byte[] prefix = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'S', 'T', 'O'};
-                            byte[] data;
-                            byte[] storage = new byte[] {'!'};
-                            try {
-                                String timeout_ms = timeout.getText().toString() + "000";
-                                data = timeout_ms.getBytes("US-ASCII");
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
-                                return;
-                            }
-                            byte[] cmd = new byte[prefix.length + data.length + storage.length];
-                            System.arraycopy(prefix, 0, cmd, 0, prefix.length);
-                            System.arraycopy(data, 0, cmd, prefix.length, data.length);
-                            System.arraycopy(storage, 0, cmd, prefix.length + data.length, storage.length);
-
-                            Message msg = mBCS.getHandler().obtainMessage(
-                                    SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                    SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                    SerialPortHandler.MSG_ARG2_UNUSED,
-                                    cmd);
-                            mBCS.getHandler().sendMessage(msg);
-
-                            mReadTimeOut = val;
-                        }
-
-                        if (mLastTriggeredMode == BCS_TRIGGER_MODE_LOW_POWER_MANUAL_TRIGGER) {
-                            byte[] cmd = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'M', 'O', 'D', '0', '!'};
-                            Message msg = mBCS.getHandler().obtainMessage(
-                                    SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                    SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                    SerialPortHandler.MSG_ARG2_UNUSED,
-                                    cmd);
-                            mBCS.getHandler().sendMessage(msg);
-                        } else {
-                            /* the other four trigger modes were finally in TRGMOD0 */
-                        }
+                        /* the driver only sends what the scanner does not have yet, in one command */
+                        mReadTimeOut = val;
+                        sendConfig(new BarcodeScanner.Config()
+                                .setReadTimeout(val * 1000)
+                                .setTriggerMode(BarcodeScanner.TRIGGER_MODE_MANUAL_TRIGGER));
 
                         /* start reader thread prior to scanning */
                         mScanningDlg.setTimeout(mReadTimeOut * 1000);
@@ -393,17 +354,7 @@ public class BarcodeScannerActivity extends Activity {
                         mScanningDlg.show();
 
                         /* an active low signal from the nTRIG pin of the host interface connector */
-                        try {
-                            FileOutputStream signals = new FileOutputStream("/sys/devices/soc/soc:n668x_db_platform/signals");
-                            try {
-                                signals.write("nTRIG=0".getBytes("US-ASCII"));
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
-                            }
-                            signals.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                        mSignals.set("nTRIG", 0);
 
                         break;
                     }
@@ -411,43 +362,11 @@ public class BarcodeScannerActivity extends Activity {
                         EditText timeout = findViewById(R.id.read_time_out);
                         int val = Integer.parseInt(timeout.getText().toString());
 
-                        if (mReadTimeOut != val) {
-                            byte[] prefix = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'S', 'T', 'O'};
-                            byte[] data;
-                            byte[] storage = new byte[] {'!'};
-                            try {
-                                String timeout_ms = timeout.getText().toString() + "000";
-                                data = timeout_ms.getBytes("US-ASCII");
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
-                                return;
-                            }
-                            byte[] cmd = new byte[prefix.length + data.length + storage.length];
-                            System.arraycopy(prefix, 0, cmd, 0, prefix.length);
-                            System.arraycopy(data, 0, cmd, prefix.length, data.length);
-                            System.arraycopy(storage, 0, cmd, prefix.length + data.length, storage.length);
-
-                            Message msg = mBCS.getHandler().obtainMessage(
-                                    SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                    SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                    SerialPortHandler.MSG_ARG2_UNUSED,
-                                    cmd);
-                            mBCS.getHandler().sendMessage(msg);
-
-                            mReadTimeOut = val;
-                        }
-
-                        if (mLastTriggeredMode == BCS_TRIGGER_MODE_LOW_POWER_MANUAL_TRIGGER) {
-                            byte[] cmd = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'M', 'O', 'D', '0', '!'};
-                            Message msg = mBCS.getHandler().obtainMessage(
-                                    SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                    SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                    SerialPortHandler.MSG_ARG2_UNUSED,
-                                    cmd);
-                            mBCS.getHandler().sendMessage(msg);
-                        } else {
-                            /* the other four trigger modes were finally in TRGMOD0 */
-                        }
+                        /* the driver only sends what the scanner does not have yet, in one command */
+                        mReadTimeOut = val;
+                        sendConfig(new BarcodeScanner.Config()
+                                .setReadTimeout(val * 1000)
+                                .setTriggerMode(BarcodeScanner.TRIGGER_MODE_SERIAL_TRIGGER));
 
                         /* start reader thread prior to scanning */
                         mScanningDlg.setTimeout(mReadTimeOut * 1000);
@@ -456,13 +375,12 @@ public class BarcodeScannerActivity extends Activity {
                         mScanningDlg.show();
 
                         /* run activation command */
-                        byte[] cmd = new byte[] {0x16, 'T', 0x0d};
-                        Message msg = mBCS.getHandler().obtainMessage(
-                                SerialPortHandler.MSG_WHAT_WRITE,
-                                SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                SerialPortHandler.MSG_ARG2_UNUSED,
-                                cmd);
-                        mBCS.getHandler().sendMessage(msg);
+                        mCommandHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mBCS.activate();
+                            }
+                        });
 
                         break;
                     }
@@ -470,41 +388,11 @@ public class BarcodeScannerActivity extends Activity {
                         EditText timeout = findViewById(R.id.read_time_out);
                         int val = Integer.parseInt(timeout.getText().toString());
 
-                        if (mReadTimeOut != val) {
-                            byte[] prefix = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'S', 'T', 'O'};
-                            byte[] data;
-                            byte[] storage = new byte[] {'!'};
-                            try {
-                                String timeout_ms = timeout.getText().toString() + "000";
-                                data = timeout_ms.getBytes("US-ASCII");
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
-                                return;
-                            }
-                            byte[] cmd = new byte[prefix.length + data.length + storage.length];
-                            System.arraycopy(prefix, 0, cmd, 0, prefix.length);
-                            System.arraycopy(data, 0, cmd, prefix.length, data.length);
-                            System.arraycopy(storage, 0, cmd, prefix.length + data.length, storage.length);
-
-                            Message msg = mBCS.getHandler().obtainMessage(
-                                    SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                    SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                    SerialPortHandler.MSG_ARG2_UNUSED,
-                                    cmd);
-                            mBCS.getHandler().sendMessage(msg);
-
-                            mReadTimeOut = val;
-                        }
-
-                        if (mLastTriggeredMode != BCS_TRIGGER_MODE_LOW_POWER_MANUAL_TRIGGER) {
-                            byte[] cmd = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'M', 'O', 'D', '2', '!'};
-                            Message msg = mBCS.getHandler().obtainMessage(
-                                    SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                    SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                    SerialPortHandler.MSG_ARG2_UNUSED,
-                                    cmd);
-                            mBCS.getHandler().sendMessage(msg);
-                        }
+                        /* the driver only sends what the scanner does not have yet, in one command */
+                        mReadTimeOut = val;
+                        sendConfig(new BarcodeScanner.Config()
+                                .setReadTimeout(val * 1000)
+                                .setTriggerMode(BarcodeScanner.TRIGGER_MODE_LOW_POWER_MANUAL_TRIGGER));
 
                         /* start reader thread prior to scanning */
                         mScanningDlg.setTimeout(mReadTimeOut * 1000);
@@ -513,29 +401,13 @@ public class BarcodeScannerActivity extends Activity {
                         mScanningDlg.show();
 
                         /* an active low signal from the nTRIG pin of the host interface connector */
-                        try {
-                            FileOutputStream signals = new FileOutputStream("/sys/devices/soc/soc:n668x_db_platform/signals");
-                            try {
-                                signals.write("nTRIG=0".getBytes("US-ASCII"));
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
-                            }
-                            signals.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                        mSignals.set("nTRIG", 0);
 
                         break;
                     }
                     case BCS_TRIGGER_MODE_PRESENTATION_MODE: {
                         /* set mode and the scanning is automatically triggered */
-                        byte[] cmd = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'M', 'O', 'D', '3', '!'};
-                        Message msg = mBCS.getHandler().obtainMessage(
-                                SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                SerialPortHandler.MSG_ARG2_UNUSED,
-                                cmd);
-                        mBCS.getHandler().sendMessage(msg);
+                        sendTriggerMode(BarcodeScanner.TRIGGER_MODE_PRESENTATION_MODE);
 
                         /* start reader thread */
                         mScanningDlg.setTimeout(0);
@@ -548,13 +420,7 @@ public class BarcodeScannerActivity extends Activity {
                     }
                     case BCS_TRIGGER_MODE_STREAMING_PRESENTATION_MODE: {
                         /* set mode and the scanning is automatically triggered */
-                        byte[] cmd = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'M', 'O', 'D', '8', '!'};
-                        Message msg = mBCS.getHandler().obtainMessage(
-                                SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                SerialPortHandler.MSG_ARG2_UNUSED,
-                                cmd);
-                        mBCS.getHandler().sendMessage(msg);
+                        sendTriggerMode(BarcodeScanner.TRIGGER_MODE_STREAMING_PRESENTATION_MODE);
 
                         /* start reader thread */
                         mScanningDlg.setTimeout(0);
@@ -574,9 +440,37 @@ public class BarcodeScannerActivity extends Activity {
         });
     }
 
+    private void sendTriggerMode(final int mode) {
+        mCommandHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mBCS.setTriggerMode(mode) != BarcodeScanner.RSP_ACK) {
+                    Log.e(TAG, "trigger mode " + mode + " not acknowledged");
+                }
+            }
+        });
+    }
+
+    private void sendConfig(final BarcodeScanner.Config config) {
+        mCommandHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mBCS.apply(config) != BarcodeScanner.RSP_ACK) {
+                    Log.e(TAG, "configuration not acknowledged");
+                }
+            }
+        });
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mCommandThread != null) {
+            mCommandThread.quit();
+        }
+        if (mStream != null) {
+            mStream.close();
+        }
         closeSerialPort();
     }
 
@@ -591,15 +485,27 @@ public class BarcodeScannerActivity extends Activity {
     }
 
     private void openSerialPort() throws IOException {
+        if (mSignals == null) {
+            mSignals = new SysfsSignals(BCS_SIGNALS_PATH);
+            mSignals.start();
+        }
         if (mBCS == null) {
-            mBCS = new SerialPortHandler(BCS_TTY_DEVICE, BCS_TTY_BAUDRATE);
+            mPort = new SerialPort(BCS_TTY_DEVICE, BCS_TTY_BAUDRATE);
+            mBCS = new BarcodeScanner(mPort);
+            mBCS.start();
         }
     }
 
     private void closeSerialPort() {
         if (mBCS != null) {
             mBCS.close();
+            mPort.close();
             mBCS = null;
+            mPort = null;
+        }
+        if (mSignals != null) {
+            mSignals.close();
+            mSignals = null;
         }
     }
 
@@ -635,13 +541,12 @@ public class BarcodeScannerActivity extends Activity {
                         }
                         case BCS_TRIGGER_MODE_SERIAL_TRIGGER: {
                             /* run deactivation command */
-                            byte[] cmd = new byte[] {0x16, 'U', 0x0d};
-                            Message msg = mBCS.getHandler().obtainMessage(
-                                    SerialPortHandler.MSG_WHAT_WRITE,
-                                    SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                    SerialPortHandler.MSG_ARG2_UNUSED,
-                                    cmd);
-                            mBCS.getHandler().sendMessage(msg);
+                            mCommandHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mBCS.deactivate();
+                                }
+                            });
                             break;
                         }
                         case BCS_TRIGGER_MODE_LOW_POWER_MANUAL_TRIGGER: {
@@ -654,13 +559,7 @@ public class BarcodeScannerActivity extends Activity {
                              *  Setting trigger mode to Serial Trigger (default configuration) will stop
                              *  current presentation scanning.
                              */
-                            byte[] cmd = new byte[] {0x16, 'M', 0x0d, 'T', 'R', 'G', 'M', 'O', 'D', '0', '!'};
-                            Message msg = mBCS.getHandler().obtainMessage(
-                                    SerialPortHandler.MSG_WHAT_WRITE_AND_READ,
-                                    SerialPortHandler.MSG_ARG1_NO_RSP_TO_SENDER,
-                                    SerialPortHandler.MSG_ARG2_UNUSED,
-                                    cmd);
-                            mBCS.getHandler().sendMessage(msg);
+                            sendTriggerMode(BarcodeScanner.TRIGGER_MODE_SERIAL_TRIGGER);
                             break;
                         }
                         default:
@@ -697,8 +596,8 @@ public class BarcodeScannerActivity extends Activity {
             mPresentationScannedCount = 0;
         }
 
-        private void incPresentationScannedCount() {
-            mPresentationScannedCount++;
+        private void addPresentationScannedCount(int count) {
+            mPresentationScannedCount += count;
         }
 
         private int getPresentationScannedCount() {
@@ -713,9 +612,11 @@ public class BarcodeScannerActivity extends Activity {
         public void show() {
             Log.v(TAG, "show()");
             if (!isShowing()) {
-                /* messaging stuff fist */
-                Message msg = mBCS.getHandler().obtainMessage(SerialPortHandler.MSG_WHAT_READ);
-                mBCS.getHandler().sendMessage(msg);
+                /* a new session, labels read in the previous one count again */
+                mStream.reset();
+                mStream.setReReadInterval(isPresentationMode() ? BCS_REREAD_INTERVAL_MS : 0);
+                /* barcodes are delivered from now on */
+                mScanning = true;
 
                 /* UI stuff */
                 super.show();
@@ -735,22 +636,11 @@ public class BarcodeScannerActivity extends Activity {
                 if (mTriggeredMode == BCS_TRIGGER_MODE_MANUAL_TRIGGER ||
                         mTriggeredMode == BCS_TRIGGER_MODE_LOW_POWER_MANUAL_TRIGGER) {
                     /* when get scanned, cancelled or timeout, we have to manually restore the nTRIG pin */
-                    try {
-                        FileOutputStream signals = new FileOutputStream("/sys/devices/soc/soc:n668x_db_platform/signals");
-                        try {
-                            signals.write("nTRIG=1".getBytes("US-ASCII"));
-                        } catch (UnsupportedEncodingException e) {
-                            e.printStackTrace();
-                        }
-                        signals.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                    mSignals.set("nTRIG", 1);
                 }
 
-                /* messaging stuff fist */
-                Message msg = mBCS.getHandler().obtainMessage(SerialPortHandler.MSG_WHAT_READ_TERMINATION);
-                mBCS.getHandler().sendMessage(msg);
+                /* ignore what the scanner still sends */
+                mScanning = false;
 
                 /* UI stuff */
                 super.dismiss();
@@ -766,6 +656,7 @@ public class BarcodeScannerActivity extends Activity {
         private final View mLayout = getLayoutInflater().inflate(R.layout.dialog_waiting, null);
         private TextView mWaitText = mLayout.findViewById(R.id.please_wait);
         private int mWaitTime = 1000;
+        private CountDownTimer mTimer;
 
         public WaitingDialog(Context thiz, String waitText, int waitMS) {
             super(thiz);
@@ -785,7 +676,8 @@ public class BarcodeScannerActivity extends Activity {
 
         public void show() {
             super.show();
-            new CountDownTimer(mWaitTime, 100) {
+            /* dismissed when the wait is over, at the latest when the time is up */
+            mTimer = new CountDownTimer(mWaitTime, 100) {
                 @Override
                 public void onTick(long millisUntilFinished) {
                 }
@@ -797,6 +689,10 @@ public class BarcodeScannerActivity extends Activity {
 
         public void dismiss()
         {
+            if (mTimer != null) {
+                mTimer.cancel();
+                mTimer = null;
+            }
             super.dismiss();
         }
     }
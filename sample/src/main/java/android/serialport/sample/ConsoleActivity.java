@@ -21,8 +21,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import android.os.Build;
 import android.os.Bundle;
+import android.serialport.TextDecoder;
 import android.text.InputType;
 import android.view.KeyEvent;
 import android.view.inputmethod.EditorInfo;
@@ -34,7 +37,35 @@ import android.util.Log;
 public class ConsoleActivity extends SerialPortActivity {
 
     private static final String TAG = "ConsoleActivity";
+    /* what is kept of the reception, older text is dropped */
+    private static final int SCROLLBACK_CHARS = 64 * 1024;
+    /* what is rendered at most, the visible lines are usually far less */
+    private static final int WINDOW_CHARS = 8 * 1024;
+    /* for devices without vsync callbacks (before Jelly Bean) */
+    private static final int FRAME_INTERVAL_MS = 16;
+
     EditText mReception;
+    /* only used on the reader thread */
+    private final TextDecoder mDecoder = new TextDecoder();
+    private final TextDecoder.Sink mScrollbackSink = new TextDecoder.Sink() {
+        public void onChars(char[] chars, int offset, int length) {
+            mScrollback.append(chars, offset, length);
+        }
+    };
+    private final Scrollback mScrollback = new Scrollback(SCROLLBACK_CHARS);
+    /*
+     * TextView keeps the array given to setText(char[], ...), so frames alternate between two
+     * and never write to the one on screen
+     */
+    private final char[][] mWindow = new char[2][WINDOW_CHARS];
+    private int mWindowIndex;
+    private final AtomicBoolean mRenderPending = new AtomicBoolean();
+    private final Runnable mRender = new Runnable() {
+        public void run() {
+            mRenderPending.set(false);
+            render();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -110,12 +141,23 @@ public class ConsoleActivity extends SerialPortActivity {
 
     @Override
     protected void onDataReceived(final byte[] buffer, final int size) {
-        runOnUiThread(new Runnable() {
-            public void run() {
-                if (mReception != null) {
-                    mReception.append(new String(buffer, 0, size));
-                }
+        mDecoder.decode(buffer, 0, size, mScrollbackSink);
+        /* whatever arrives until the next frame is rendered with it */
+        if (mReception != null && mRenderPending.compareAndSet(false, true)) {
+            if (Build.VERSION.SDK_INT >= 16) {
+                mReception.postOnAnimation(mRender);
+            } else {
+                mReception.postDelayed(mRender, FRAME_INTERVAL_MS);
             }
-        });
+        }
+    }
+
+    /* show the lines that fit in the view, with the newest at the bottom */
+    private void render() {
+        int lines = Math.max(1, mReception.getHeight() / Math.max(1, mReception.getLineHeight()));
+        char[] window = mWindow[mWindowIndex ^= 1];
+        int n = mScrollback.tail(lines, window);
+        mReception.setText(window, 0, n);
+        mReception.setSelection(n);
     }
 }
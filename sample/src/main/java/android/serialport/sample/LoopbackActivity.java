@@ -17,68 +17,42 @@
 package android.serialport.sample;
 
 import java.io.IOException;
+import java.util.Locale;
 
 import android.os.Bundle;
+import android.serialport.LoopbackTester;
+import android.util.Log;
 import android.widget.TextView;
 
 public class LoopbackActivity extends SerialPortActivity {
 
-    byte mValueToSend;
-    boolean mByteReceivedBack;
-    Object mByteReceivedBackSemaphore = new Object();
-    Integer mIncoming = new Integer(0);
-    Integer mOutgoing = new Integer(0);
-    Integer mLost = new Integer(0);
-    Integer mCorrupted = new Integer(0);
+    private static final String TAG = "LoopbackActivity";
+    private static final int REFRESH_INTERVAL_MS = 1000;
 
-    SendingThread mSendingThread;
+    LoopbackTester mTester;
+    Thread mTestThread;
     TextView mTextViewOutgoing;
     TextView mTextViewIncoming;
     TextView mTextViewLost;
     TextView mTextViewCorrupted;
+    TextView mTextViewThroughput;
+    TextView mTextViewLatency;
 
-    private class SendingThread extends Thread {
-        @Override
+    /* the figures so far, once a second */
+    private final Runnable mRefresh = new Runnable() {
         public void run() {
-            while (!isInterrupted()) {
-                synchronized (mByteReceivedBackSemaphore) {
-                    mByteReceivedBack = false;
-                    try {
-                        if (mOutputStream != null) {
-                            mOutputStream.write(mValueToSend);
-                        } else {
-                            return;
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        return;
-                    }
-                    mOutgoing++;
-                    // Wait for 100ms before sending next byte, or as soon as
-                    // the sent byte has been read back.
-                    try {
-                        mByteReceivedBackSemaphore.wait(100);
-                        if (mByteReceivedBack == true) {
-                            // Byte has been received
-                            mIncoming++;
-                        } else {
-                            // Timeout
-                            mLost++;
-                        }
-                        runOnUiThread(new Runnable() {
-                            public void run() {
-                                mTextViewOutgoing.setText(mOutgoing.toString());
-                                mTextViewLost.setText(mLost.toString());
-                                mTextViewIncoming.setText(mIncoming.toString());
-                                mTextViewCorrupted.setText(mCorrupted.toString());
-                            }
-                        });
-                    } catch (InterruptedException e) {
-                    }
-                }
-            }
+            LoopbackTester.Report r = mTester.snapshot();
+            mTextViewOutgoing.setText(Long.toString(r.bytesSent));
+            mTextViewIncoming.setText(Long.toString(r.bytesReceived));
+            mTextViewLost.setText(Long.toString(r.packetsLost));
+            mTextViewCorrupted.setText(Long.toString(r.packetsCorrupted));
+            mTextViewThroughput.setText(String.format(Locale.US, "%.1f kbit/s (%.0f%%)",
+                    r.throughputBps / 1000.0, r.getEfficiency() * 100));
+            mTextViewLatency.setText(String.format(Locale.US, "%.1f / %.1f ms",
+                    r.rtt.getValueAtPercentile(50) / 1000.0, r.rtt.getValueAtPercentile(99) / 1000.0));
+            mTextViewOutgoing.postDelayed(this, REFRESH_INTERVAL_MS);
         }
-    }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -88,35 +62,39 @@ public class LoopbackActivity extends SerialPortActivity {
         mTextViewIncoming = (TextView) findViewById(R.id.TextViewIncomingValue);
         mTextViewLost = (TextView) findViewById(R.id.textViewLostValue);
         mTextViewCorrupted = (TextView) findViewById(R.id.textViewCorruptedValue);
+        mTextViewThroughput = (TextView) findViewById(R.id.textViewThroughputValue);
+        mTextViewLatency = (TextView) findViewById(R.id.textViewLatencyValue);
         if (mSerialPort != null) {
-            mSendingThread = new SendingThread();
-            mSendingThread.start();
+            /* fed by the receiving thread of SerialPortActivity */
+            mTester = new LoopbackTester(null, mOutputStream, mSerialPort.getBaudrate());
+            mTestThread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Log.i(TAG, mTester.run(Long.MAX_VALUE).toJson());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            mTestThread.start();
+            mTextViewOutgoing.postDelayed(mRefresh, REFRESH_INTERVAL_MS);
         }
     }
 
     @Override
     protected void onDataReceived(byte[] buffer, int size) {
-
-        synchronized (mByteReceivedBackSemaphore) {
-            int i;
-            for (i = 0; i < size; i++) {
-                if ((buffer[i] == mValueToSend) && (mByteReceivedBack == false)) {
-                    mValueToSend++;
-                    // This byte was expected
-                    // Wake-up the sending thread
-                    mByteReceivedBack = true;
-                    mByteReceivedBackSemaphore.notify();
-                } else {
-                    // The byte was not expected
-                    mCorrupted++;
-                }
-            }
+        if (mTester != null) {
+            mTester.onDataReceived(buffer, size);
         }
     }
 
     @Override
     protected void onDestroy() {
-        if (mSendingThread != null) mSendingThread.interrupt();
+        if (mTester != null) {
+            mTextViewOutgoing.removeCallbacks(mRefresh);
+            mTester.stop();
+        }
         super.onDestroy();
     }
 }
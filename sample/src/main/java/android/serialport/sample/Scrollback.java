@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport.sample;
+
+/**
+ * Fixed-size console scrollback, the oldest text is overwritten
+ *
+ * The reader thread appends, the UI thread copies out the tail it can show.
+ */
+class Scrollback {
+
+    private final char[] mRing;
+    /* next write position */
+    private int mHead;
+    private int mSize;
+
+    Scrollback(int capacity) {
+        mRing = new char[capacity];
+    }
+
+    synchronized void append(char[] chars, int offset, int length) {
+        if (length >= mRing.length) {
+            /* only the end survives */
+            offset += length - mRing.length;
+            length = mRing.length;
+        }
+        int first = Math.min(length, mRing.length - mHead);
+        System.arraycopy(chars, offset, mRing, mHead, first);
+        System.arraycopy(chars, offset + first, mRing, 0, length - first);
+        mHead = (mHead + length) % mRing.length;
+        mSize = Math.min(mSize + length, mRing.length);
+    }
+
+    synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Copy the last lines, at most out.length characters
+     *
+     * @return the number of characters copied to out
+     */
+    synchronized int tail(int lines, char[] out) {
+        int max = Math.min(mSize, out.length);
+        int n = 0;
+        int newlines = 0;
+        /* walk back from the newest character, a trailing newline does not open a line */
+        while (n < max) {
+            char c = mRing[(mHead - n - 1 + mRing.length) % mRing.length];
+            if (c == '\n' && n > 0 && ++newlines == lines) {
+                break;
+            }
+            n++;
+        }
+        int start = (mHead - n + mRing.length) % mRing.length;
+        int first = Math.min(n, mRing.length - start);
+        System.arraycopy(mRing, start, out, 0, first);
+        System.arraycopy(mRing, 0, out, first, n - first);
+        return n;
+    }
+}
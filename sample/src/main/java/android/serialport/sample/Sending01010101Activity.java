@@ -17,21 +17,27 @@
 package android.serialport.sample;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.Locale;
 
 import android.os.Bundle;
+import android.serialport.TxBenchmark;
+import android.util.Log;
+import android.widget.TextView;
 
 public class Sending01010101Activity extends SerialPortActivity {
 
+    private static final String TAG = "Sending01010101Activity";
+    private static final int WRITE_SIZE = 1024;
+    private static final int MEASURE_MS = 1000;
+
     SendingThread mSendingThread;
-    byte[] mBuffer;
+    TextView mTextViewRate;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.sending01010101);
-        mBuffer = new byte[1024];
-        Arrays.fill(mBuffer, (byte) 0x55);
+        mTextViewRate = (TextView) findViewById(R.id.textViewRate);
         if (mSerialPort != null) {
             mSendingThread = new SendingThread();
             mSendingThread.start();
@@ -43,16 +49,31 @@ public class Sending01010101Activity extends SerialPortActivity {
         // ignore incoming data
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mSendingThread != null) {
+            mSendingThread.interrupt();
+        }
+        super.onDestroy();
+    }
+
     private class SendingThread extends Thread {
         @Override
         public void run() {
+            /* 0x55 back to back, measured one second at a time */
+            TxBenchmark benchmark = new TxBenchmark(mSerialPort);
             while (!isInterrupted()) {
                 try {
-                    if (mOutputStream != null) {
-                        mOutputStream.write(mBuffer);
-                    } else {
-                        return;
-                    }
+                    final TxBenchmark.Result r = benchmark.measure(WRITE_SIZE, MEASURE_MS);
+                    Log.v(TAG, r.toJson());
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mTextViewRate.setText(String.format(Locale.US,
+                                    "%d of %d bit/s (%.1f%%)", r.achievedBps, r.baudrate,
+                                    r.getUtilization() * 100));
+                        }
+                    });
                 } catch (IOException e) {
                     e.printStackTrace();
                     return;
@@ -21,41 +21,21 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.os.Bundle;
+import android.serialport.ReadLoop;
 import android.serialport.SerialPort;
+import android.util.Log;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidParameterException;
 
 public abstract class SerialPortActivity extends Activity {
 
+    private static final String TAG = "SerialPortActivity";
+
     protected Application mApplication;
     protected SerialPort mSerialPort;
     protected OutputStream mOutputStream;
-    private InputStream mInputStream;
-    private ReadThread mReadThread;
-
-    private class ReadThread extends Thread {
-
-        @Override
-        public void run() {
-            super.run();
-            while (!isInterrupted()) {
-                int size;
-                try {
-                    byte[] buffer = new byte[64];
-                    if (mInputStream == null) return;
-                    size = mInputStream.read(buffer);
-                    if (size > 0) {
-                        onDataReceived(buffer, size);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return;
-                }
-            }
-        }
-    }
+    private ReadLoop mReadLoop;
 
     private void DisplayError(int resourceId) {
         AlertDialog.Builder b = new AlertDialog.Builder(this);
@@ -76,11 +56,18 @@ public abstract class SerialPortActivity extends Activity {
         try {
             mSerialPort = mApplication.getSerialPort();
             mOutputStream = mSerialPort.getOutputStream();
-            mInputStream = mSerialPort.getInputStream();
 
 			/* Create a receiving thread */
-            mReadThread = new ReadThread();
-            mReadThread.start();
+            mReadLoop = new ReadLoop(mSerialPort, new ReadLoop.Callback() {
+                public void onDataReceived(byte[] buffer, int size) {
+                    SerialPortActivity.this.onDataReceived(buffer, size);
+                }
+
+                public void onReadError(IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            mReadLoop.start();
         } catch (SecurityException e) {
             DisplayError(R.string.error_security);
         } catch (IOException e) {
@@ -90,11 +77,15 @@ public abstract class SerialPortActivity extends Activity {
         }
     }
 
+    /* called on the receiving thread, buffer is reused once this returns */
     protected abstract void onDataReceived(final byte[] buffer, final int size);
 
     @Override
     protected void onDestroy() {
-        if (mReadThread != null) mReadThread.interrupt();
+        if (mReadLoop != null) {
+            mReadLoop.stop();
+            Log.v(TAG, "receiving: " + mReadLoop);
+        }
         mApplication.closeSerialPort();
         mSerialPort = null;
         super.onDestroy();
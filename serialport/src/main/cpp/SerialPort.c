@@ -20,16 +20,36 @@
 #include <sys/stat.h>
 #include <fcntl.h>
 #include <string.h>
+#include <errno.h>
+#include <sys/ioctl.h>
+#include <linux/serial.h>
 #include <jni.h>
 
 #include "SerialPort.h"
 
 #include "android/log.h"
+
 static const char *TAG="serial_port";
 #define LOGI(fmt, args...) __android_log_print(ANDROID_LOG_INFO,  TAG, fmt, ##args)
 #define LOGD(fmt, args...) __android_log_print(ANDROID_LOG_DEBUG, TAG, fmt, ##args)
 #define LOGE(fmt, args...) __android_log_print(ANDROID_LOG_ERROR, TAG, fmt, ##args)
 
+/* UartCounters.COUNT */
+#define UART_COUNTERS 11
+
+/*
+ * The int field of java.io.FileDescriptor, "descriptor" on Android and "fd" on desktop JVMs
+ */
+static jfieldID getDescriptorField(JNIEnv *env, jclass FileDescriptorClass)
+{
+	jfieldID descriptorID = (*env)->GetFieldID(env, FileDescriptorClass, "descriptor", "I");
+	if (descriptorID == NULL) {
+		(*env)->ExceptionClear(env);
+		descriptorID = (*env)->GetFieldID(env, FileDescriptorClass, "fd", "I");
+	}
+	return descriptorID;
+}
+
 static speed_t getBaudrate(jint baudrate)
 {
 	switch(baudrate) {
@@ -136,7 +156,7 @@ JNIEXPORT jobject JNICALL Java_android_serialport_SerialPort_open
 	{
 		jclass cFileDescriptor = (*env)->FindClass(env, "java/io/FileDescriptor");
 		jmethodID iFileDescriptor = (*env)->GetMethodID(env, cFileDescriptor, "<init>", "()V");
-		jfieldID descriptorID = (*env)->GetFieldID(env, cFileDescriptor, "descriptor", "I");
+		jfieldID descriptorID = getDescriptorField(env, cFileDescriptor);
 		mFileDescriptor = (*env)->NewObject(env, cFileDescriptor, iFileDescriptor);
 		(*env)->SetIntField(env, mFileDescriptor, descriptorID, (jint)fd);
 	}
@@ -156,7 +176,7 @@ JNIEXPORT void JNICALL Java_android_serialport_SerialPort_close
 	jclass FileDescriptorClass = (*env)->FindClass(env, "java/io/FileDescriptor");
 
 	jfieldID mFdID = (*env)->GetFieldID(env, SerialPortClass, "mFd", "Ljava/io/FileDescriptor;");
-	jfieldID descriptorID = (*env)->GetFieldID(env, FileDescriptorClass, "descriptor", "I");
+	jfieldID descriptorID = getDescriptorField(env, FileDescriptorClass);
 
 	jobject mFd = (*env)->GetObjectField(env, thiz, mFdID);
 	jint descriptor = (*env)->GetIntField(env, mFd, descriptorID);
@@ -172,7 +192,7 @@ JNIEXPORT void JNICALL Java_android_serialport_SerialPort_flush
     jclass FileDescriptorClass = (*env)->FindClass(env, "java/io/FileDescriptor");
 
     jfieldID mFdID = (*env)->GetFieldID(env, SerialPortClass, "mFd", "Ljava/io/FileDescriptor;");
-    jfieldID descriptorID = (*env)->GetFieldID(env, FileDescriptorClass, "descriptor", "I");
+    jfieldID descriptorID = getDescriptorField(env, FileDescriptorClass);
 
     jobject mFd = (*env)->GetObjectField(env, thiz, mFdID);
     jint descriptor = (*env)->GetIntField(env, mFd, descriptorID);
@@ -181,3 +201,121 @@ JNIEXPORT void JNICALL Java_android_serialport_SerialPort_flush
     /* flush both data received but not read, and data written but not transmitted */
     tcflush(descriptor, TCIOFLUSH);
 }
+
+static jint getDescriptor(JNIEnv *env, jobject thiz)
+{
+    jclass SerialPortClass = (*env)->GetObjectClass(env, thiz);
+    jclass FileDescriptorClass = (*env)->FindClass(env, "java/io/FileDescriptor");
+
+    jfieldID mFdID = (*env)->GetFieldID(env, SerialPortClass, "mFd", "Ljava/io/FileDescriptor;");
+    jfieldID descriptorID = getDescriptorField(env, FileDescriptorClass);
+
+    jobject mFd = (*env)->GetObjectField(env, thiz, mFdID);
+    return (*env)->GetIntField(env, mFd, descriptorID);
+}
+
+JNIEXPORT void JNICALL Java_android_serialport_SerialPort_drain
+        (JNIEnv *env, jobject thiz)
+{
+    int fd = getDescriptor(env, thiz);
+    /* block until everything written has left the UART */
+    while (tcdrain(fd)) {
+        if (errno == EINTR)
+            continue;
+        int error = errno;
+        LOGE("tcdrain() failed: %s", strerror(error));
+        jclass IOException = (*env)->FindClass(env, "java/io/IOException");
+        if (IOException != NULL)
+            (*env)->ThrowNew(env, IOException, strerror(error));
+        return;
+    }
+}
+
+JNIEXPORT jint JNICALL Java_android_serialport_SerialPort_getOutputQueueSize
+        (JNIEnv *env, jobject thiz)
+{
+    int count;
+    /* bytes written but not transmitted yet */
+    if (ioctl(getDescriptor(env, thiz), TIOCOUTQ, &count))
+        return -1;
+    return count;
+}
+
+JNIEXPORT jint JNICALL Java_android_serialport_SerialPort_getInputQueueSize
+        (JNIEnv *env, jobject thiz)
+{
+    int count;
+    /* bytes received but not read yet */
+    if (ioctl(getDescriptor(env, thiz), TIOCINQ, &count))
+        return -1;
+    return count;
+}
+
+JNIEXPORT jboolean JNICALL Java_android_serialport_SerialPort_nativeSetBaudrate
+        (JNIEnv *env, jobject thiz, jint baudrate)
+{
+    jint fd = getDescriptor(env, thiz);
+    speed_t speed = getBaudrate(baudrate);
+    struct termios cfg;
+
+    if (speed == -1) {
+        LOGE("Invalid baudrate %d", baudrate);
+        return JNI_FALSE;
+    }
+    if (tcgetattr(fd, &cfg)) {
+        LOGE("tcgetattr() failed");
+        return JNI_FALSE;
+    }
+    cfsetispeed(&cfg, speed);
+    cfsetospeed(&cfg, speed);
+    /* let what is queued go out at the old speed first */
+    if (tcsetattr(fd, TCSADRAIN, &cfg)) {
+        LOGE("tcsetattr() failed");
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+JNIEXPORT jint JNICALL Java_android_serialport_SerialPort_getFrameBits
+        (JNIEnv *env, jobject thiz)
+{
+    struct termios cfg;
+    jint bits;
+
+    if (tcgetattr(getDescriptor(env, thiz), &cfg))
+        return -1;
+    /* start bit, data bits, parity bit, stop bits */
+    switch (cfg.c_cflag & CSIZE) {
+    case CS5: bits = 5; break;
+    case CS6: bits = 6; break;
+    case CS7: bits = 7; break;
+    default: bits = 8; break;
+    }
+    return 1 + bits + ((cfg.c_cflag & PARENB) ? 1 : 0) + ((cfg.c_cflag & CSTOPB) ? 2 : 1);
+}
+
+JNIEXPORT jboolean JNICALL Java_android_serialport_SerialPort_getInterruptCounts
+        (JNIEnv *env, jobject thiz, jintArray counts)
+{
+    struct serial_icounter_struct icount;
+    jint values[UART_COUNTERS];
+
+    /* counted by the UART driver since boot, including what never reached the tty buffer */
+    memset(&icount, 0, sizeof(icount));
+    if (ioctl(getDescriptor(env, thiz), TIOCGICOUNT, &icount))
+        return JNI_FALSE;
+    /* in the order of the UartCounters indexes */
+    values[0] = icount.rx;
+    values[1] = icount.tx;
+    values[2] = icount.frame;
+    values[3] = icount.overrun;
+    values[4] = icount.parity;
+    values[5] = icount.brk;
+    values[6] = icount.buf_overrun;
+    values[7] = icount.cts;
+    values[8] = icount.dsr;
+    values[9] = icount.rng;
+    values[10] = icount.dcd;
+    (*env)->SetIntArrayRegion(env, counts, 0, UART_COUNTERS, values);
+    return JNI_TRUE;
+}
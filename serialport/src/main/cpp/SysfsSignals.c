@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <unistd.h>
+#include <sys/types.h>
+#include <sys/stat.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <errno.h>
+#include <string.h>
+#include <jni.h>
+
+#include "android/log.h"
+static const char *TAG="sysfs_signals";
+#define LOGD(fmt, args...) __android_log_print(ANDROID_LOG_DEBUG, TAG, fmt, ##args)
+#define LOGE(fmt, args...) __android_log_print(ANDROID_LOG_ERROR, TAG, fmt, ##args)
+
+/*
+ * Class:     android_serialport_SysfsSignals
+ * Method:    nativeOpen
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_android_serialport_SysfsSignals_nativeOpen
+  (JNIEnv *env, jclass clazz, jstring path)
+{
+	const char *path_utf = (*env)->GetStringUTFChars(env, path, NULL);
+	int fd = open(path_utf, O_RDWR);
+	if (fd == -1) {
+		/* read-only attributes can still be watched */
+		fd = open(path_utf, O_RDONLY);
+	}
+	LOGD("open(%s) fd = %d", path_utf, fd);
+	(*env)->ReleaseStringUTFChars(env, path, path_utf);
+	return fd;
+}
+
+/*
+ * Class:     android_serialport_SysfsSignals
+ * Method:    nativeClose
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_android_serialport_SysfsSignals_nativeClose
+  (JNIEnv *env, jclass clazz, jint fd)
+{
+	LOGD("close(fd = %d)", fd);
+	close(fd);
+}
+
+/*
+ * Class:     android_serialport_SysfsSignals
+ * Method:    nativeRead
+ * Signature: (I[B)I
+ *
+ * Reads the whole attribute from offset 0, which also re-arms the change notification.
+ */
+JNIEXPORT jint JNICALL Java_android_serialport_SysfsSignals_nativeRead
+  (JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer)
+{
+	jbyte buf[256];
+	jsize len = (*env)->GetArrayLength(env, buffer);
+	ssize_t n;
+
+	if (len > (jsize) sizeof(buf))
+		len = sizeof(buf);
+	n = pread(fd, buf, len, 0);
+	if (n < 0) {
+		LOGE("pread(fd = %d) failed: %s", fd, strerror(errno));
+		return -1;
+	}
+	(*env)->SetByteArrayRegion(env, buffer, 0, n, buf);
+	return n;
+}
+
+/*
+ * Class:     android_serialport_SysfsSignals
+ * Method:    nativeWrite
+ * Signature: (I[BI)I
+ */
+JNIEXPORT jint JNICALL Java_android_serialport_SysfsSignals_nativeWrite
+  (JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer, jint length)
+{
+	jbyte buf[64];
+	ssize_t n;
+
+	if (length > (jint) sizeof(buf))
+		return -1;
+	(*env)->GetByteArrayRegion(env, buffer, 0, length, buf);
+	n = pwrite(fd, buf, length, 0);
+	if (n < 0) {
+		LOGE("pwrite(fd = %d) failed: %s", fd, strerror(errno));
+		return -1;
+	}
+	return n;
+}
+
+/*
+ * Class:     android_serialport_SysfsSignals
+ * Method:    nativePipe
+ * Signature: ([I)I
+ *
+ * Creates the pipe that wakes nativePoll(), fds[0] to poll and fds[1] to write.
+ */
+JNIEXPORT jint JNICALL Java_android_serialport_SysfsSignals_nativePipe
+  (JNIEnv *env, jclass clazz, jintArray fds)
+{
+	int p[2];
+	jint j[2];
+
+	if (pipe(p) < 0) {
+		LOGE("pipe() failed: %s", strerror(errno));
+		return -1;
+	}
+	fcntl(p[0], F_SETFD, FD_CLOEXEC);
+	fcntl(p[1], F_SETFD, FD_CLOEXEC);
+	j[0] = p[0];
+	j[1] = p[1];
+	(*env)->SetIntArrayRegion(env, fds, 0, 2, j);
+	return 0;
+}
+
+/*
+ * Class:     android_serialport_SysfsSignals
+ * Method:    nativeWake
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_android_serialport_SysfsSignals_nativeWake
+  (JNIEnv *env, jclass clazz, jint fd)
+{
+	char c = 1;
+
+	while (write(fd, &c, 1) < 0 && errno == EINTR)
+		;
+}
+
+/*
+ * Class:     android_serialport_SysfsSignals
+ * Method:    nativePoll
+ * Signature: (III)I
+ *
+ * Waits for sysfs_notify() on the attribute: 1 when it changed, 0 on timeout or when woken
+ * through wakeFd (-1 for none), -1 on error.
+ */
+JNIEXPORT jint JNICALL Java_android_serialport_SysfsSignals_nativePoll
+  (JNIEnv *env, jclass clazz, jint fd, jint wakeFd, jint timeout_ms)
+{
+	struct pollfd pfd[2];
+	int ret;
+
+	pfd[0].fd = fd;
+	pfd[0].events = POLLPRI | POLLERR;
+	pfd[0].revents = 0;
+	/* a negative fd is ignored by poll() */
+	pfd[1].fd = wakeFd;
+	pfd[1].events = POLLIN;
+	pfd[1].revents = 0;
+	do {
+		ret = poll(pfd, 2, timeout_ms);
+	} while (ret < 0 && errno == EINTR);
+	if (ret < 0) {
+		LOGE("poll(fd = %d) failed: %s", fd, strerror(errno));
+		return -1;
+	}
+	if (pfd[1].revents)
+		return 0;
+	if (ret > 0 && (pfd[0].revents & POLLNVAL))
+		return -1;
+	return ret > 0 ? 1 : 0;
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * AT command engine for modems and radio modules
+ *
+ * Commands are queued and written back to back: the next one goes out as soon as the final
+ * result code (OK, ERROR, +CME ERROR, ...) of the previous one arrives, with no fixed delay.
+ * A single reader thread owns the input and routes every line:
+ *
+ * - lines starting with the in-flight command's response prefix ("+CSQ" for "AT+CSQ") and
+ *   information text without a registered prefix go to the command,
+ * - lines matching a prefix registered with {@link #addUrcListener} are unsolicited result
+ *   codes and go to the listener, even while a command is in flight,
+ * - anything else received while idle goes to the listener registered for "".
+ *
+ * Commands are written by a sender thread, which also times them out, so a write held back
+ * by flow control never stops the reader or the delivery of unsolicited result codes.
+ *
+ * Callbacks run on the reader thread (or the sender thread for timeouts and write errors)
+ * and must be quick.
+ */
+public class AtCommandEngine {
+
+    private static final String TAG = "AtCommandEngine";
+
+    public static final int RESULT_PENDING = -1;
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_CONNECT = 1;
+    public static final int RESULT_ERROR = 2;
+    public static final int RESULT_CME_ERROR = 3;
+    public static final int RESULT_CMS_ERROR = 4;
+    public static final int RESULT_NO_CARRIER = 5;
+    public static final int RESULT_BUSY = 6;
+    public static final int RESULT_NO_ANSWER = 7;
+    public static final int RESULT_NO_DIALTONE = 8;
+    public static final int RESULT_TIMEOUT = 9;
+    public static final int RESULT_CLOSED = 10;
+
+    public static final int DEFAULT_TIMEOUT_MS = 5000;
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    public interface UrcListener {
+        void onUrc(String line);
+    }
+
+    public interface ResponseCallback {
+        void onComplete(Command command);
+    }
+
+    public static class Command {
+        private final String mText;
+        private final String mResponsePrefix;
+        private final long mTimeoutMs;
+        private final ResponseCallback mCallback;
+        private final List<String> mLines = new ArrayList<String>();
+        private int mResult = RESULT_PENDING;
+        private String mFinalLine;
+        private int mErrorCode = -1;
+        private long mDeadline;
+
+        private Command(String text, long timeout_ms, ResponseCallback callback) {
+            mText = text;
+            mResponsePrefix = responsePrefix(text);
+            mTimeoutMs = timeout_ms;
+            mCallback = callback;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        /**
+         * Information text lines, without the final result code
+         */
+        public synchronized List<String> getLines() {
+            return Collections.unmodifiableList(new ArrayList<String>(mLines));
+        }
+
+        public synchronized int getResult() {
+            return mResult;
+        }
+
+        public synchronized String getFinalLine() {
+            return mFinalLine;
+        }
+
+        /**
+         * The numeric code of +CME ERROR / +CMS ERROR, or -1
+         */
+        public synchronized int getErrorCode() {
+            return mErrorCode;
+        }
+
+        public synchronized boolean isOk() {
+            return mResult == RESULT_OK;
+        }
+
+        /**
+         * Wait for the final result
+         *
+         * @return false if still pending after timeout_ms
+         */
+        public synchronized boolean await(long timeout_ms) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout_ms;
+            while (mResult == RESULT_PENDING) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+
+        private synchronized void addLine(String line) {
+            mLines.add(line);
+        }
+
+        private void complete(int result, String finalLine) {
+            synchronized (this) {
+                mResult = result;
+                mFinalLine = finalLine;
+                if (result == RESULT_CME_ERROR || result == RESULT_CMS_ERROR) {
+                    try {
+                        mErrorCode = Integer.parseInt(finalLine.substring(finalLine.indexOf(':') + 1).trim());
+                    } catch (NumberFormatException e) {
+                        /* verbose error reporting (AT+CMEE=2), no numeric code */
+                    }
+                }
+                notifyAll();
+            }
+            if (mCallback != null) {
+                mCallback.onComplete(this);
+            }
+        }
+    }
+
+    private static class UrcRoute {
+        final String mPrefix;
+        final UrcListener mListener;
+
+        UrcRoute(String prefix, UrcListener listener) {
+            mPrefix = prefix;
+            mListener = listener;
+        }
+    }
+
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final Object mLock = new Object();
+    private final LinkedList<Command> mQueue = new LinkedList<Command>();
+    private final List<UrcRoute> mUrcRoutes = new ArrayList<UrcRoute>();
+    private Command mInFlight;
+    private boolean mClosed;
+    private Thread mReaderThread;
+    private Thread mSenderThread;
+
+    public AtCommandEngine(SerialPort port) {
+        this(port.getInputStream(), port.getOutputStream());
+    }
+
+    public AtCommandEngine(InputStream in, OutputStream out) {
+        mInputStream = in;
+        mOutputStream = out;
+    }
+
+    public void start() {
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "AtCommandReader");
+        mSenderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "AtCommandSender");
+        mReaderThread.start();
+        mSenderThread.start();
+    }
+
+    /**
+     * Stop the engine, queued and in-flight commands complete with RESULT_CLOSED
+     */
+    public void close() {
+        List<Command> dropped;
+        synchronized (mLock) {
+            mClosed = true;
+            dropped = new ArrayList<Command>(mQueue);
+            mQueue.clear();
+            if (mInFlight != null) {
+                dropped.add(0, mInFlight);
+                mInFlight = null;
+            }
+            mLock.notifyAll();
+        }
+        for (Command c : dropped) {
+            c.complete(RESULT_CLOSED, null);
+        }
+        if (mReaderThread != null) {
+            mReaderThread.interrupt();
+        }
+    }
+
+    /**
+     * Route lines starting with prefix (e.g. "+CREG:", "RING") to the listener
+     *
+     * The empty prefix catches every line received while no command is in flight.
+     */
+    public void addUrcListener(String prefix, UrcListener listener) {
+        synchronized (mUrcRoutes) {
+            mUrcRoutes.add(new UrcRoute(prefix, listener));
+        }
+    }
+
+    public void removeUrcListener(UrcListener listener) {
+        synchronized (mUrcRoutes) {
+            for (int i = mUrcRoutes.size() - 1; i >= 0; i--) {
+                if (mUrcRoutes.get(i).mListener == listener) {
+                    mUrcRoutes.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a command, "\r" is appended
+     */
+    public Command submit(String command, long timeout_ms, ResponseCallback callback) {
+        Command c = new Command(command, timeout_ms, callback);
+        boolean closed;
+        synchronized (mLock) {
+            closed = mClosed;
+            if (!closed) {
+                mQueue.add(c);
+                mLock.notifyAll();
+            }
+        }
+        if (closed) {
+            c.complete(RESULT_CLOSED, null);
+        }
+        return c;
+    }
+
+    /**
+     * Run a command and wait for its final result
+     */
+    public Command execute(String command, long timeout_ms) throws InterruptedException {
+        Command c = submit(command, timeout_ms, null);
+        /* the engine times the command out, leave some slack for the callback path */
+        c.await(timeout_ms + 1000);
+        return c;
+    }
+
+    public Command execute(String command) throws InterruptedException {
+        return execute(command, DEFAULT_TIMEOUT_MS);
+    }
+
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueue.size() + (mInFlight != null ? 1 : 0);
+        }
+    }
+
+    /**
+     * "AT+CSQ" -> "+CSQ", "AT+CREG?" -> "+CREG", "AT+COPS=0" -> "+COPS", "ATI" -> null
+     */
+    private static String responsePrefix(String command) {
+        if (command.length() < 4 || !command.regionMatches(true, 0, "AT", 0, 2)) {
+            return null;
+        }
+        char c = command.charAt(2);
+        if (c != '+' && c != '$' && c != '%' && c != '^' && c != '#') {
+            return null;
+        }
+        int end = 3;
+        while (end < command.length() && Character.isLetterOrDigit(command.charAt(end))) {
+            end++;
+        }
+        return command.substring(2, end);
+    }
+
+    private static int finalResult(String line) {
+        if (line.equals("OK")) {
+            return RESULT_OK;
+        } else if (line.equals("ERROR")) {
+            return RESULT_ERROR;
+        } else if (line.startsWith("+CME ERROR")) {
+            return RESULT_CME_ERROR;
+        } else if (line.startsWith("+CMS ERROR")) {
+            return RESULT_CMS_ERROR;
+        } else if (line.startsWith("CONNECT")) {
+            return RESULT_CONNECT;
+        } else if (line.equals("NO CARRIER")) {
+            return RESULT_NO_CARRIER;
+        } else if (line.equals("BUSY")) {
+            return RESULT_BUSY;
+        } else if (line.equals("NO ANSWER")) {
+            return RESULT_NO_ANSWER;
+        } else if (line.equals("NO DIALTONE")) {
+            return RESULT_NO_DIALTONE;
+        }
+        return RESULT_PENDING;
+    }
+
+    private UrcListener findUrcListener(String line, boolean idle) {
+        synchronized (mUrcRoutes) {
+            for (UrcRoute r : mUrcRoutes) {
+                if (r.mPrefix.length() > 0 ? line.startsWith(r.mPrefix) : idle) {
+                    return r.mListener;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void onLine(String line) {
+        Command done = null;
+        UrcListener urc = null;
+        int result;
+        synchronized (mLock) {
+            Command c = mInFlight;
+            if (c != null && line.equals(c.mText)) {
+                /* echo (ATE1) */
+                return;
+            }
+            result = c != null ? finalResult(line) : RESULT_PENDING;
+            if (result != RESULT_PENDING) {
+                mInFlight = null;
+                done = c;
+                /* the sender writes the next one */
+                mLock.notifyAll();
+            } else if (c != null && c.mResponsePrefix != null && line.startsWith(c.mResponsePrefix)) {
+                c.addLine(line);
+            } else if ((urc = findUrcListener(line, c == null)) == null) {
+                if (c != null) {
+                    c.addLine(line);
+                } else {
+                    Log.v(TAG, "unhandled line: " + line);
+                }
+            }
+        }
+        if (done != null) {
+            done.complete(result, line);
+        } else if (urc != null) {
+            urc.onUrc(line);
+        }
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[256];
+        char[] line = new char[MAX_LINE_LENGTH];
+        int length = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            int n;
+            try {
+                n = mInputStream.read(buffer);
+            } catch (IOException e) {
+                synchronized (mLock) {
+                    if (!mClosed) {
+                        e.printStackTrace();
+                    }
+                }
+                break;
+            }
+            if (n < 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                char c = (char) (buffer[i] & 0xff);
+                if (c == '\r' || c == '\n') {
+                    /* empty lines separate responses, skip them */
+                    if (length > 0) {
+                        onLine(new String(line, 0, length));
+                        length = 0;
+                    }
+                } else if (length < line.length) {
+                    line[length++] = c;
+                }
+            }
+        }
+        Log.v(TAG, "reader thread exits");
+    }
+
+    /**
+     * Write queued commands one at a time and time them out, the timeout starting once the
+     * command is written
+     */
+    private void sendLoop() {
+        while (true) {
+            Command next = null;
+            Command expired = null;
+            synchronized (mLock) {
+                if (mClosed) {
+                    break;
+                }
+                try {
+                    if (mInFlight == null) {
+                        if (mQueue.isEmpty()) {
+                            mLock.wait();
+                            continue;
+                        }
+                        next = mQueue.removeFirst();
+                        mInFlight = next;
+                    } else {
+                        long left = mInFlight.mDeadline - System.currentTimeMillis();
+                        if (left > 0) {
+                            mLock.wait(left);
+                            continue;
+                        }
+                        expired = mInFlight;
+                        mInFlight = null;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (next != null) {
+                write(next);
+            } else {
+                Log.w(TAG, "timeout: " + expired.mText);
+                expired.complete(RESULT_TIMEOUT, null);
+            }
+        }
+        Log.v(TAG, "sender thread exits");
+    }
+
+    private void write(Command c) {
+        boolean written = false;
+        try {
+            mOutputStream.write((c.mText + "\r").getBytes("US-ASCII"));
+            written = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (mLock) {
+            if (mInFlight != c) {
+                /* answered during the write already, or the engine was closed */
+                return;
+            }
+            if (written) {
+                c.mDeadline = System.currentTimeMillis() + c.mTimeoutMs;
+                return;
+            }
+            mInFlight = null;
+        }
+        c.complete(RESULT_ERROR, null);
+    }
+}
@@ -0,0 +1,667 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Driver for Honeywell style serial barcode scanners (N668X decoders and the like)
+ *
+ * Menu commands are [SYN] M [CR] setting [; setting...] storage, where storage is '!' (active
+ * settings) or '.' (non-volatile). The scanner answers with every setting followed by ACK,
+ * ENQ (unknown tag) or NAK (bad value) and the same storage character. Serial trigger
+ * commands are [SYN] T [CR] and [SYN] U [CR], they are not acknowledged.
+ *
+ * Frames are built once as {@link MenuCommand}s and written as is. The driver remembers the
+ * settings the scanner has (see {@link #loadSettings}) and {@link #apply(Config)} only sends
+ * those that differ, all in one menu command. A single reader thread
+ * owns the input: while a menu reply is expected the bytes are the reply, otherwise they are
+ * barcode data for the {@link Listener}. A reply that comes after its command timed out is
+ * still expected for {@link #LATE_REPLY_MS} and dropped, it never reaches the listener. Menu calls block the caller
+ * until the reply (or the ACK timeout), never for a fixed time, so do not call them on the
+ * UI thread. Likewise {@link #awaitReady(int)} returns on the first reply after power up
+ * instead of waiting for the worst case boot time.
+ */
+public class BarcodeScanner {
+
+    private static final String TAG = "BarcodeScanner";
+
+    public static final int TRIGGER_MODE_MANUAL_TRIGGER = 0;
+    public static final int TRIGGER_MODE_SERIAL_TRIGGER = 1;
+    public static final int TRIGGER_MODE_LOW_POWER_MANUAL_TRIGGER = 2;
+    public static final int TRIGGER_MODE_PRESENTATION_MODE = 3;
+    public static final int TRIGGER_MODE_STREAMING_PRESENTATION_MODE = 4;
+
+    /* menu reply status, worst of all settings in the command */
+    public static final int RSP_ACK = 0;
+    public static final int RSP_ENQ = 1;
+    public static final int RSP_NAK = 2;
+    public static final int RSP_TIMEOUT = 3;
+    public static final int RSP_IO_ERROR = 4;
+
+    public static final int DEFAULT_ACK_TIMEOUT_MS = 200;
+    /* how often awaitReady() asks while the scanner is still booting */
+    public static final int READY_POLL_INTERVAL_MS = 50;
+
+    private static final byte SYN = 0x16;
+    private static final byte CR = 0x0d;
+    private static final byte ACK = 0x06;
+    private static final byte ENQ = 0x05;
+    private static final byte NAK = 0x15;
+
+    public static final char STORAGE_ACTIVE = '!';
+    public static final char STORAGE_NON_VOLATILE = '.';
+
+    private static final int READ_BUFFER_SIZE = 512;
+    /* how long a reply is still expected after its command timed out */
+    public static final int LATE_REPLY_MS = 1000;
+
+    /* TRGMOD value of each TRIGGER_MODE_* */
+    private static final int[] TRGMOD_VALUES = {0, 0, 2, 3, 8};
+
+    public interface Listener {
+        /**
+         * Barcode data, on the reader thread; the buffer is reused once this returns
+         */
+        void onBarcode(byte[] data, int offset, int length);
+    }
+
+    /**
+     * [SYN] M [CR] settings storage, encoded by the generated MenuFrameCodec
+     */
+    @WireMessage
+    static class MenuFrame {
+        @WireField(order = 0)
+        byte syn = SYN;
+        @WireField(order = 1)
+        byte command = 'M';
+        @WireField(order = 2)
+        byte cr = CR;
+        @WireField(order = 3, remainder = true)
+        byte[] settings;
+        int settingsLength;
+        @WireField(order = 4)
+        byte storage;
+    }
+
+    /**
+     * An immutable, ready to write command frame
+     */
+    public static final class MenuCommand {
+        private final byte[] mFrame;
+        private final String mText;
+
+        private MenuCommand(byte[] frame, String text) {
+            mFrame = frame;
+            mText = text;
+        }
+
+        /**
+         * @param settings e.g. "TRGMOD2" or "232LPT30;TRGLPT1"
+         * @param storage {@link #STORAGE_ACTIVE} or {@link #STORAGE_NON_VOLATILE}
+         */
+        public static MenuCommand menu(String settings, char storage) {
+            MenuFrame m = new MenuFrame();
+            m.settings = new byte[settings.length()];
+            for (int i = 0; i < settings.length(); i++) {
+                m.settings[i] = (byte) settings.charAt(i);
+            }
+            m.settingsLength = m.settings.length;
+            m.storage = (byte) storage;
+            byte[] frame = new byte[MenuFrameCodec.encodedLength(m)];
+            MenuFrameCodec.encode(m, frame, 0);
+            return new MenuCommand(frame, settings + storage);
+        }
+
+        private static MenuCommand serial(char command) {
+            return new MenuCommand(new byte[] {SYN, (byte) command, CR}, String.valueOf(command));
+        }
+
+        public boolean isAcknowledged() {
+            return mFrame[1] == 'M';
+        }
+
+        @Override
+        public String toString() {
+            return mText;
+        }
+    }
+
+    public static final MenuCommand CMD_ACTIVATE = MenuCommand.serial('T');
+    public static final MenuCommand CMD_DEACTIVATE = MenuCommand.serial('U');
+    private static final MenuCommand CMD_READY_QUERY = MenuCommand.menu("TRGMOD?", STORAGE_NON_VOLATILE);
+
+    /* commands are built on first use only, "TRGSTO30000" -> frame */
+    private static final Map<String, MenuCommand> sCommandCache = new HashMap<String, MenuCommand>();
+
+    static {
+        for (int value : TRGMOD_VALUES) {
+            command("TRGMOD", value);
+        }
+    }
+
+    /**
+     * A cached active-storage command for a setting and its value
+     */
+    public static MenuCommand command(String tag, int value) {
+        return command(tag + value);
+    }
+
+    /**
+     * A cached active-storage command, e.g. "TRGMOD2" or "232LPT30;TRGLPT1"
+     */
+    public static MenuCommand command(String settings) {
+        synchronized (sCommandCache) {
+            MenuCommand c = sCommandCache.get(settings);
+            if (c == null) {
+                c = MenuCommand.menu(settings, STORAGE_ACTIVE);
+                sCommandCache.put(settings, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * A set of settings to apply in one go, see {@link #apply(Config)}
+     */
+    public static class Config {
+        private final Map<String, String> mValues = new LinkedHashMap<String, String>();
+
+        public Config set(String tag, int value) {
+            mValues.put(tag, Integer.toString(value));
+            return this;
+        }
+
+        public Config setTriggerMode(int mode) {
+            return set("TRGMOD", TRGMOD_VALUES[mode]);
+        }
+
+        /**
+         * Manual/serial trigger read time-out (TRGSTO), 0 for none
+         */
+        public Config setReadTimeout(int timeout_ms) {
+            return set("TRGSTO", timeout_ms);
+        }
+
+        /**
+         * Idle time before entering standby (232LPT)
+         */
+        public Config setStandbyTimeout(int seconds) {
+            return set("232LPT", seconds);
+        }
+
+        /**
+         * Time before power off in low power manual trigger mode (TRGLPT)
+         */
+        public Config setPowerOffTimeout(int seconds) {
+            return set("TRGLPT", seconds);
+        }
+    }
+
+    /**
+     * The reply to a menu command
+     */
+    public static class MenuResponse {
+        private final int mStatus;
+        private final List<String> mSettings;
+        private final int[] mSettingStatus;
+
+        MenuResponse(int status, List<String> settings, int[] settingStatus) {
+            mStatus = status;
+            mSettings = settings;
+            mSettingStatus = settingStatus;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public boolean isAck() {
+            return mStatus == RSP_ACK;
+        }
+
+        public int getSettingCount() {
+            return mSettings.size();
+        }
+
+        /**
+         * A setting as echoed by the scanner without its status, e.g. "232LPT30"
+         */
+        public String getSetting(int i) {
+            return mSettings.get(i);
+        }
+
+        public int getSettingStatus(int i) {
+            return mSettingStatus[i];
+        }
+
+        /**
+         * The value following tag in the reply, e.g. "30" for "232LPT", or null
+         */
+        public String getValue(String tag) {
+            for (int i = 0; i < mSettings.size(); i++) {
+                String s = mSettings.get(i);
+                if (mSettingStatus[i] == RSP_ACK && s.startsWith(tag)) {
+                    return s.substring(tag.length());
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final MenuResponse RESPONSE_SENT =
+            new MenuResponse(RSP_ACK, new ArrayList<String>(), new int[0]);
+    private static final MenuResponse RESPONSE_TIMEOUT =
+            new MenuResponse(RSP_TIMEOUT, new ArrayList<String>(), new int[0]);
+    private static final MenuResponse RESPONSE_IO_ERROR =
+            new MenuResponse(RSP_IO_ERROR, new ArrayList<String>(), new int[0]);
+
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private Listener mListener;
+    private int mAckTimeout = DEFAULT_ACK_TIMEOUT_MS;
+    private final WireLogger mWireLogger = new WireLogger(TAG);
+
+    /* one menu command at a time */
+    private final Object mCommandLock = new Object();
+    /* reply collection, guarded by mReplyLock */
+    private final Object mReplyLock = new Object();
+    private final byte[] mReply = new byte[READ_BUFFER_SIZE];
+    private int mReplyLength;
+    /* a reply is on its way, until it is complete or mReplyExpiry */
+    private boolean mReplyExpected;
+    private long mReplyExpiry;
+    /* a caller is blocked in send() for it */
+    private boolean mWaitingReply;
+    private boolean mReplyComplete;
+
+    /* what the scanner is known to have, tag -> value; guarded by mCommandLock */
+    private final Map<String, String> mSettings = new HashMap<String, String>();
+
+    private Thread mReaderThread;
+    private volatile boolean mClosed;
+
+    public BarcodeScanner(SerialPort port) {
+        this(port.getInputStream(), port.getOutputStream());
+    }
+
+    public BarcodeScanner(InputStream in, OutputStream out) {
+        mInputStream = in;
+        mOutputStream = out;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setAckTimeout(int timeout_ms) {
+        mAckTimeout = timeout_ms;
+    }
+
+    /**
+     * To turn dumps of the command frames on or off, sample or format them
+     */
+    public WireLogger getWireLogger() {
+        return mWireLogger;
+    }
+
+    public void start() {
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "BarcodeScannerReader");
+        mReaderThread.setDaemon(true);
+        mReaderThread.start();
+    }
+
+    /**
+     * Stop the reader; it leaves its blocking read() when the port is closed or data arrives
+     */
+    public void close() {
+        mClosed = true;
+        if (mReaderThread != null) {
+            mReaderThread.interrupt();
+        }
+    }
+
+    /**
+     * Write a command frame and, for menu commands, wait for the reply
+     */
+    public MenuResponse send(MenuCommand command) {
+        MenuResponse rsp = send(command, mAckTimeout, false);
+        if (rsp.getStatus() == RSP_TIMEOUT) {
+            Log.e(TAG, "no reply to " + command);
+        }
+        return rsp;
+    }
+
+    /**
+     * @param anyReply also accept the late reply to an earlier command, instead of waiting for
+     *                 it to come or expire before writing this one
+     */
+    private MenuResponse send(MenuCommand command, int timeout_ms, boolean anyReply) {
+        synchronized (mCommandLock) {
+            if (!command.isAcknowledged()) {
+                try {
+                    write(command);
+                    return RESPONSE_SENT;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return RESPONSE_IO_ERROR;
+                }
+            }
+            try {
+                synchronized (mReplyLock) {
+                    if (!anyReply) {
+                        awaitLateReplyLocked();
+                    }
+                    if (!mReplyExpected) {
+                        mReplyLength = 0;
+                    }
+                    mReplyExpected = true;
+                    mReplyExpiry = System.currentTimeMillis() + timeout_ms + LATE_REPLY_MS;
+                    mReplyComplete = false;
+                    mWaitingReply = true;
+                }
+                write(command);
+                synchronized (mReplyLock) {
+                    long deadline = System.currentTimeMillis() + timeout_ms;
+                    while (!mReplyComplete) {
+                        long left = deadline - System.currentTimeMillis();
+                        if (left <= 0) {
+                            return RESPONSE_TIMEOUT;
+                        }
+                        mReplyLock.wait(left);
+                    }
+                    return parseReply(mReply, mReplyLength);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (mReplyLock) {
+                    /* nothing went out, nothing comes back */
+                    mReplyExpected = false;
+                }
+                return RESPONSE_IO_ERROR;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return RESPONSE_TIMEOUT;
+            } finally {
+                synchronized (mReplyLock) {
+                    mWaitingReply = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Let the reply to a command that timed out come in, so it cannot be taken for this one
+     */
+    private void awaitLateReplyLocked() throws InterruptedException {
+        while (mReplyExpected) {
+            long left = mReplyExpiry - System.currentTimeMillis();
+            if (left <= 0) {
+                Log.w(TAG, "late reply expired, " + mReplyLength + " bytes dropped");
+                mReplyExpected = false;
+                break;
+            }
+            mReplyLock.wait(left);
+        }
+    }
+
+    private void write(MenuCommand command) throws IOException {
+        mWireLogger.log("-> ", command.mFrame, command.mFrame.length);
+        mOutputStream.write(command.mFrame);
+    }
+
+    static MenuResponse parseReply(byte[] reply, int length) {
+        List<String> settings = new ArrayList<String>();
+        int[] statuses = new int[length];
+        int status = RSP_ACK;
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = reply[i];
+            if (b == ACK || b == ENQ || b == NAK) {
+                int s = b == ACK ? RSP_ACK : (b == ENQ ? RSP_ENQ : RSP_NAK);
+                statuses[settings.size()] = s;
+                settings.add(new String(reply, start, i - start));
+                status = Math.max(status, s);
+                /* skip the separator or the storage character */
+                start = i + 2;
+                i++;
+            }
+        }
+        int[] settingStatus = new int[settings.size()];
+        System.arraycopy(statuses, 0, settingStatus, 0, settingStatus.length);
+        return new MenuResponse(status, settings, settingStatus);
+    }
+
+    /**
+     * Wait until the scanner answers menu commands, e.g. after power up or a wake up
+     *
+     * A cheap query is repeated every {@link #READY_POLL_INTERVAL_MS}; any reply, even ENQ or
+     * NAK, means the firmware is up.
+     *
+     * @return the milliseconds it took, or -1 if the scanner did not answer within timeout_ms
+     */
+    public int awaitReady(int timeout_ms) {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout_ms;
+        for (;;) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                return -1;
+            }
+            int status = send(CMD_READY_QUERY, (int) Math.min(READY_POLL_INTERVAL_MS, deadline - now),
+                    true).getStatus();
+            if (status == RSP_IO_ERROR) {
+                return -1;
+            }
+            /* a late reply to the previous attempt completes this one, which is just as good */
+            if (status != RSP_TIMEOUT) {
+                return (int) (System.currentTimeMillis() - start);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Query settings, e.g. query("232LPT") or query("232LPT?;TRGLPT?") for several at once
+     */
+    public MenuResponse query(String tags) {
+        String settings = tags.indexOf('?') >= 0 ? tags : tags + "?";
+        return send(MenuCommand.menu(settings, STORAGE_NON_VOLATILE));
+    }
+
+    /**
+     * Read the current value of settings into the cache with a single query
+     *
+     * @param tags e.g. "232LPT", "TRGLPT"
+     * @return the reply status
+     */
+    public int loadSettings(String... tags) {
+        StringBuilder sb = new StringBuilder();
+        for (String tag : tags) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(tag).append('?');
+        }
+        synchronized (mCommandLock) {
+            MenuResponse rsp = query(sb.toString());
+            for (String tag : tags) {
+                String value = rsp.getValue(tag);
+                if (value != null) {
+                    mSettings.put(tag, value);
+                } else {
+                    mSettings.remove(tag);
+                }
+            }
+            return rsp.getStatus();
+        }
+    }
+
+    /**
+     * Forget what the scanner has, e.g. after a power cycle dropped the active settings
+     */
+    public void invalidateSettings() {
+        synchronized (mCommandLock) {
+            mSettings.clear();
+        }
+    }
+
+    /**
+     * The cached value of a setting, null if unknown
+     */
+    public String getSetting(String tag) {
+        synchronized (mCommandLock) {
+            return mSettings.get(tag);
+        }
+    }
+
+    /**
+     * Send the settings of config which differ from the cache, in one menu command
+     *
+     * @return RSP_ACK right away if nothing changed, otherwise the reply status
+     */
+    public int apply(Config config) {
+        synchronized (mCommandLock) {
+            StringBuilder settings = null;
+            List<String> changed = null;
+            for (Map.Entry<String, String> e : config.mValues.entrySet()) {
+                if (e.getValue().equals(mSettings.get(e.getKey()))) {
+                    continue;
+                }
+                if (settings == null) {
+                    settings = new StringBuilder();
+                    changed = new ArrayList<String>();
+                } else {
+                    settings.append(';');
+                }
+                settings.append(e.getKey()).append(e.getValue());
+                changed.add(e.getKey());
+            }
+            if (settings == null) {
+                return RSP_ACK;
+            }
+            MenuResponse rsp = send(command(settings.toString()));
+            for (String tag : changed) {
+                String value = config.mValues.get(tag);
+                if (value.equals(rsp.getValue(tag))) {
+                    mSettings.put(tag, value);
+                } else {
+                    /* rejected or no reply, the scanner state is unknown now */
+                    mSettings.remove(tag);
+                }
+            }
+            return rsp.getStatus();
+        }
+    }
+
+    public int setTriggerMode(int mode) {
+        return apply(new Config().setTriggerMode(mode));
+    }
+
+    public int setReadTimeout(int timeout_ms) {
+        return apply(new Config().setReadTimeout(timeout_ms));
+    }
+
+    public int setStandbyTimeout(int seconds) {
+        return apply(new Config().setStandbyTimeout(seconds));
+    }
+
+    public int setPowerOffTimeout(int seconds) {
+        return apply(new Config().setPowerOffTimeout(seconds));
+    }
+
+    public int activate() {
+        return send(CMD_ACTIVATE).getStatus();
+    }
+
+    public int deactivate() {
+        return send(CMD_DEACTIVATE).getStatus();
+    }
+
+    private static boolean isStorage(byte b) {
+        return b == STORAGE_ACTIVE || b == STORAGE_NON_VOLATILE || b == '&';
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        while (!mClosed) {
+            int n;
+            try {
+                n = mInputStream.read(buffer);
+            } catch (IOException e) {
+                if (!mClosed) {
+                    e.printStackTrace();
+                }
+                break;
+            }
+            if (n < 0) {
+                break;
+            }
+            int consumed = 0;
+            synchronized (mReplyLock) {
+                if (mReplyExpected && !mWaitingReply && System.currentTimeMillis() > mReplyExpiry) {
+                    Log.w(TAG, "late reply expired, " + mReplyLength + " bytes dropped");
+                    mReplyExpected = false;
+                }
+                while (mReplyExpected && consumed < n) {
+                    byte b = buffer[consumed++];
+                    if (mReplyLength == mReply.length) {
+                        /*
+                         * no reply is this long, it is noise (e.g. while booting and awaitReady()
+                         * keeps collecting); start over, keeping the byte a status could be in
+                         */
+                        mReply[0] = mReply[mReplyLength - 1];
+                        mReplyLength = 1;
+                    }
+                    mReply[mReplyLength++] = b;
+                    /* a reply ends with a status byte and the storage character */
+                    if (mReplyLength >= 2 && isStorage(b)) {
+                        byte s = mReply[mReplyLength - 2];
+                        if (s == ACK || s == ENQ || s == NAK) {
+                            mReplyExpected = false;
+                            if (mWaitingReply) {
+                                mReplyComplete = true;
+                            } else {
+                                Log.w(TAG, "late reply dropped");
+                            }
+                            mReplyLock.notifyAll();
+                        }
+                    }
+                }
+            }
+            if (consumed < n && mListener != null) {
+                mListener.onBarcode(buffer, consumed, n - consumed);
+            }
+        }
+        Log.v(TAG, "reader thread exits");
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Barcode pipeline for presentation and streaming presentation modes
+ *
+ * Plug it in as the {@link BarcodeScanner.Listener}. Raw bytes are framed into barcodes on
+ * the scanner's reader thread: a barcode ends with the terminator (the CR suffix by default,
+ * LF is dropped) or, for scanners without a suffix, when the line is idle for the frame gap.
+ * A label seen again within the re-read interval is suppressed; every sighting restarts its
+ * interval, so a label sitting in front of the scanner is reported once, not hundreds of
+ * times a second. The last {@link #DEFAULT_CACHE_SIZE} labels are remembered, oldest first
+ * out.
+ *
+ * Barcodes are handed to the {@link Listener} in batches on a delivery thread, at most one
+ * batch per batch interval, so the consumer (typically a UI thread handler) sees one message
+ * per interval whatever the read rate.
+ */
+public class BarcodeStream implements BarcodeScanner.Listener {
+
+    private static final String TAG = "BarcodeStream";
+
+    public static final int DEFAULT_REREAD_INTERVAL_MS = 1000;
+    public static final int DEFAULT_BATCH_INTERVAL_MS = 100;
+    public static final int DEFAULT_FRAME_GAP_MS = 50;
+    public static final int DEFAULT_CACHE_SIZE = 256;
+    public static final int NO_TERMINATOR = -1;
+
+    private static final int MAX_BARCODE_LENGTH = 4096;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    public interface Listener {
+        /**
+         * New barcodes in the order they were read; the list belongs to the listener
+         */
+        void onBarcodes(List<String> barcodes);
+    }
+
+    private final Listener mListener;
+    private final int mTerminator;
+    private volatile int mReReadIntervalMs = DEFAULT_REREAD_INTERVAL_MS;
+    private volatile int mBatchIntervalMs = DEFAULT_BATCH_INTERVAL_MS;
+    private volatile int mFrameGapMs = DEFAULT_FRAME_GAP_MS;
+
+    /* everything below is guarded by mLock */
+    private final Object mLock = new Object();
+    private final byte[] mFrame = new byte[MAX_BARCODE_LENGTH];
+    private int mFrameLength;
+    private long mLastByteTime;
+    /* label -> last time it was seen, least recently seen first */
+    private final LinkedHashMap<String, Long> mSeen;
+    private List<String> mPending = new ArrayList<String>();
+    private long mReadCount;
+    private long mSuppressedCount;
+    private long mBatchCount;
+
+    private Thread mDeliveryThread;
+    private volatile boolean mClosed;
+
+    public BarcodeStream(Listener listener) {
+        this('\r', DEFAULT_CACHE_SIZE, listener);
+    }
+
+    /**
+     * @param terminator the suffix byte ending a barcode, or {@link #NO_TERMINATOR} to frame
+     *                   on idle gaps only
+     * @param cacheSize  how many distinct labels are remembered for suppression
+     */
+    public BarcodeStream(int terminator, final int cacheSize, Listener listener) {
+        mTerminator = terminator;
+        mListener = listener;
+        mSeen = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * How long the same label stays suppressed after it was last seen, 0 reports every read
+     */
+    public void setReReadInterval(int interval_ms) {
+        mReReadIntervalMs = interval_ms;
+    }
+
+    public void setBatchInterval(int interval_ms) {
+        mBatchIntervalMs = interval_ms;
+    }
+
+    public void setFrameGap(int gap_ms) {
+        mFrameGapMs = gap_ms;
+    }
+
+    public void start() {
+        mDeliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliveryLoop();
+            }
+        }, "BarcodeStreamDelivery");
+        mDeliveryThread.setDaemon(true);
+        mDeliveryThread.start();
+    }
+
+    public void close() {
+        mClosed = true;
+        if (mDeliveryThread != null) {
+            mDeliveryThread.interrupt();
+        }
+    }
+
+    /**
+     * Forget the labels seen so far and drop what is not delivered yet, e.g. when a new
+     * scanning session starts
+     */
+    public void reset() {
+        synchronized (mLock) {
+            mFrameLength = 0;
+            mSeen.clear();
+            mPending.clear();
+        }
+    }
+
+    public long getReadCount() {
+        synchronized (mLock) {
+            return mReadCount;
+        }
+    }
+
+    public long getSuppressedCount() {
+        synchronized (mLock) {
+            return mSuppressedCount;
+        }
+    }
+
+    public long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    @Override
+    public void onBarcode(byte[] data, int offset, int length) {
+        long now = now();
+        synchronized (mLock) {
+            if (mFrameLength > 0 && now - mLastByteTime >= mFrameGapMs) {
+                endFrame(now);
+            }
+            for (int i = offset; i < offset + length; i++) {
+                byte b = data[i];
+                if ((b & 0xff) == mTerminator) {
+                    endFrame(now);
+                } else if (b != '\n' || mTerminator == NO_TERMINATOR) {
+                    if (mFrameLength == mFrame.length) {
+                        Log.e(TAG, "barcode longer than " + mFrame.length + " bytes, split");
+                        endFrame(now);
+                    }
+                    mFrame[mFrameLength++] = b;
+                }
+            }
+            mLastByteTime = now;
+            if (mFrameLength > 0 || !mPending.isEmpty()) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /* called with mLock held */
+    private void endFrame(long now) {
+        if (mFrameLength == 0) {
+            return;
+        }
+        String label = new String(mFrame, 0, mFrameLength, CHARSET);
+        mFrameLength = 0;
+        mReadCount++;
+
+        int interval = mReReadIntervalMs;
+        if (interval > 0) {
+            /* drop labels out of their interval, they are the oldest */
+            Iterator<Long> it = mSeen.values().iterator();
+            while (it.hasNext() && now - it.next() >= interval) {
+                it.remove();
+            }
+            /* re-insert to move it to the young end */
+            if (mSeen.remove(label) != null) {
+                mSeen.put(label, now);
+                mSuppressedCount++;
+                return;
+            }
+            mSeen.put(label, now);
+        }
+        mPending.add(label);
+    }
+
+    private void deliveryLoop() {
+        long lastDelivery = now() - mBatchIntervalMs;
+        while (!mClosed) {
+            List<String> batch;
+            synchronized (mLock) {
+                try {
+                    for (;;) {
+                        long now = now();
+                        if (mFrameLength > 0 && now - mLastByteTime >= mFrameGapMs) {
+                            /* no suffix came, the idle line ends the barcode */
+                            endFrame(now);
+                        }
+                        long wait = Long.MAX_VALUE;
+                        if (!mPending.isEmpty()) {
+                            wait = lastDelivery + mBatchIntervalMs - now;
+                            if (wait <= 0) {
+                                break;
+                            }
+                        }
+                        if (mFrameLength > 0) {
+                            wait = Math.min(wait, mLastByteTime + mFrameGapMs - now);
+                        }
+                        mLock.wait(wait == Long.MAX_VALUE ? 0 : Math.max(wait, 1));
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                batch = mPending;
+                mPending = new ArrayList<String>();
+                mBatchCount++;
+            }
+            lastDelivery = now();
+            if (mListener != null) {
+                mListener.onBarcodes(batch);
+            }
+        }
+        Log.v(TAG, "delivery thread exits");
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
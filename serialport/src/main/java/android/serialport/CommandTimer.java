@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Splits command latency into stages, from the events of {@link SerialPortHandler.CommandListener}
+ *
+ * Times are in microseconds: queue (sent to handled), flush, reader thread start, write, device
+ * (write done to first response byte), complete (first byte to the end of the command) and
+ * total. A slow command can then be told apart as a busy handler, a slow write or a slow
+ * device. Register with {@link SerialPortHandler#setCommandListener}.
+ */
+public class CommandTimer implements SerialPortHandler.CommandListener {
+
+    /* commands followed at once, older ones still running are dropped */
+    private static final int SLOTS = 64;
+    private static final int EVENTS = 8;
+
+    /* event timestamps per slot, 0 if not seen */
+    private final long[][] mTimes = new long[SLOTS][EVENTS];
+    private final long[] mIds = new long[SLOTS];
+    private final Histogram mQueue = new Histogram();
+    private final Histogram mFlush = new Histogram();
+    private final Histogram mThreadStart = new Histogram();
+    private final Histogram mWrite = new Histogram();
+    private final Histogram mDevice = new Histogram();
+    private final Histogram mComplete = new Histogram();
+    private final Histogram mTotal = new Histogram();
+    private long mCommands;
+    private long mTimeouts;
+
+    public CommandTimer() {
+        Arrays.fill(mIds, -1);
+    }
+
+    @Override
+    public synchronized void onCommandEvent(long id, int event, long timeNanos) {
+        if (event < 0 || event >= EVENTS) {
+            return;
+        }
+        int slot = (int) (id % SLOTS);
+        long[] times = mTimes[slot];
+        if (mIds[slot] != id) {
+            mIds[slot] = id;
+            Arrays.fill(times, 0);
+        }
+        times[event] = timeNanos;
+        if (event == SerialPortHandler.EVENT_TIMEOUT) {
+            mTimeouts++;
+        } else if (event == SerialPortHandler.EVENT_COMPLETE) {
+            mCommands++;
+            record(mQueue, times, SerialPortHandler.EVENT_ENQUEUED, SerialPortHandler.EVENT_DEQUEUED);
+            record(mFlush, times, SerialPortHandler.EVENT_DEQUEUED, SerialPortHandler.EVENT_FLUSHED);
+            record(mThreadStart, times, SerialPortHandler.EVENT_FLUSHED, SerialPortHandler.EVENT_WRITE_START);
+            record(mWrite, times, SerialPortHandler.EVENT_WRITE_START, SerialPortHandler.EVENT_WRITE_DONE);
+            record(mDevice, times, SerialPortHandler.EVENT_WRITE_DONE, SerialPortHandler.EVENT_FIRST_BYTE);
+            record(mComplete, times, SerialPortHandler.EVENT_FIRST_BYTE, SerialPortHandler.EVENT_COMPLETE);
+            /* commands queued before the timer was registered start when handled */
+            record(mTotal, times, times[SerialPortHandler.EVENT_ENQUEUED] != 0
+                    ? SerialPortHandler.EVENT_ENQUEUED : SerialPortHandler.EVENT_DEQUEUED,
+                    SerialPortHandler.EVENT_COMPLETE);
+            mIds[slot] = -1;
+        }
+    }
+
+    private static void record(Histogram h, long[] times, int from, int to) {
+        if (times[from] != 0 && times[to] != 0) {
+            h.record((times[to] - times[from]) / 1000);
+        }
+    }
+
+    public synchronized long getCommandCount() {
+        return mCommands;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    public Histogram getQueueTime() {
+        return mQueue.copy();
+    }
+
+    public Histogram getWriteTime() {
+        return mWrite.copy();
+    }
+
+    /**
+     * Write done to the first response byte, the device's own latency plus the line
+     */
+    public Histogram getDeviceTime() {
+        return mDevice.copy();
+    }
+
+    public Histogram getTotalTime() {
+        return mTotal.copy();
+    }
+
+    public synchronized void reset() {
+        mQueue.reset();
+        mFlush.reset();
+        mThreadStart.reset();
+        mWrite.reset();
+        mDevice.reset();
+        mComplete.reset();
+        mTotal.reset();
+        mCommands = 0;
+        mTimeouts = 0;
+    }
+
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "{\"commands\":%d,\"timeouts\":%d", mCommands, mTimeouts));
+        PortMetrics.Snapshot.appendHistogram(sb, "queue_us", mQueue);
+        PortMetrics.Snapshot.appendHistogram(sb, "flush_us", mFlush);
+        PortMetrics.Snapshot.appendHistogram(sb, "thread_start_us", mThreadStart);
+        PortMetrics.Snapshot.appendHistogram(sb, "write_us", mWrite);
+        PortMetrics.Snapshot.appendHistogram(sb, "device_us", mDevice);
+        PortMetrics.Snapshot.appendHistogram(sb, "complete_us", mComplete);
+        PortMetrics.Snapshot.appendHistogram(sb, "total_us", mTotal);
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
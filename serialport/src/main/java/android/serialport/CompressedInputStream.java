@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the block format written by {@link CompressedOutputStream}
+ *
+ * A block failing its check is dropped and counted ({@link #getCorruptBlockCount()}); the
+ * bytes after its sync byte are scanned again for the next block, so a damaged length field
+ * costs that block and not the rest of the stream. A stream ending inside a block throws
+ * EOFException.
+ */
+public class CompressedInputStream extends FilterInputStream {
+
+    private static final String TAG = "CompressedInputStream";
+    private static final int HEADER_SIZE = CompressedOutputStream.HEADER_SIZE;
+    private static final int MAX_BLOCK_SIZE = CompressedOutputStream.MAX_BLOCK_SIZE;
+
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private final byte[] mPayload = new byte[MAX_BLOCK_SIZE];
+    private final byte[] mBlock = new byte[MAX_BLOCK_SIZE];
+    private int mPosition;
+    private int mCount;
+
+    /* bytes of a rejected block to scan again before reading on, mRescan[mRescanPosition...] */
+    private final byte[] mRescan = new byte[HEADER_SIZE + MAX_BLOCK_SIZE];
+    private int mRescanPosition;
+    private int mRescanCount;
+    /* between a rejected block and the next good one, false candidates are not counted */
+    private boolean mResyncing;
+
+    private long mRawBytes;
+    private long mWireBytes;
+    private long mCorruptBlocks;
+    private long mSkippedBytes;
+    private long mFirstReadNs;
+
+    public CompressedInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPosition == mCount && !readBlock()) {
+            return -1;
+        }
+        return mBlock[mPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (mPosition == mCount && !readBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, mCount - mPosition);
+        System.arraycopy(mBlock, mPosition, b, off, n);
+        mPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mCount - mPosition;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        int skipped = (int) Math.min(n, mCount - mPosition);
+        mPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private boolean readBlock() throws IOException {
+        while (true) {
+            /* the next sync byte, anything before it is the rest of a damaged block */
+            int b;
+            while ((b = readByte()) >= 0 && (byte) b != CompressedOutputStream.SYNC) {
+                mSkippedBytes++;
+            }
+            if (b < 0) {
+                return false;
+            }
+            mHeader[0] = CompressedOutputStream.SYNC;
+            readFully(mHeader, 1, HEADER_SIZE - 1);
+            if (mFirstReadNs == 0) {
+                mFirstReadNs = System.nanoTime();
+            }
+            int type = mHeader[1];
+            int rawLength = ((mHeader[2] & 0xff) << 8) | (mHeader[3] & 0xff);
+            int payloadLength = ((mHeader[4] & 0xff) << 8) | (mHeader[5] & 0xff);
+            int check = ((mHeader[6] & 0xff) << 8) | (mHeader[7] & 0xff);
+            if (rawLength == 0 || (type == CompressedOutputStream.BLOCK_STORED && payloadLength != rawLength)
+                    || (type == CompressedOutputStream.BLOCK_LZ4 && payloadLength >= rawLength)
+                    || (type != CompressedOutputStream.BLOCK_STORED && type != CompressedOutputStream.BLOCK_LZ4)) {
+                reject(0);
+                continue;
+            }
+            readFully(mPayload, 0, payloadLength);
+            boolean valid;
+            if (type == CompressedOutputStream.BLOCK_STORED) {
+                System.arraycopy(mPayload, 0, mBlock, 0, rawLength);
+                valid = true;
+            } else {
+                try {
+                    valid = Lz4Block.decompress(mPayload, 0, payloadLength, mBlock, 0, rawLength) == rawLength;
+                } catch (IOException e) {
+                    valid = false;
+                }
+            }
+            if (!valid || CompressedOutputStream.checksum(mHeader, mBlock, rawLength) != check) {
+                reject(payloadLength);
+                continue;
+            }
+            mResyncing = false;
+            mPosition = 0;
+            mCount = rawLength;
+            mRawBytes += rawLength;
+            mWireBytes += HEADER_SIZE + payloadLength;
+            return true;
+        }
+    }
+
+    /* drop the block in mHeader and mPayload, its bytes after the sync byte are scanned again */
+    private void reject(int payloadLength) {
+        if (!mResyncing) {
+            mResyncing = true;
+            mCorruptBlocks++;
+            Log.w(TAG, "dropping a corrupt block");
+        }
+        mSkippedBytes++;
+        int length = HEADER_SIZE - 1 + payloadLength;
+        int left = mRescanCount - mRescanPosition;
+        System.arraycopy(mRescan, mRescanPosition, mRescan, length, left);
+        System.arraycopy(mHeader, 1, mRescan, 0, HEADER_SIZE - 1);
+        System.arraycopy(mPayload, 0, mRescan, HEADER_SIZE - 1, payloadLength);
+        mRescanPosition = 0;
+        mRescanCount = length + left;
+    }
+
+    private int readByte() throws IOException {
+        if (mRescanPosition < mRescanCount) {
+            return mRescan[mRescanPosition++] & 0xff;
+        }
+        return in.read();
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        int n = Math.min(len, mRescanCount - mRescanPosition);
+        System.arraycopy(mRescan, mRescanPosition, b, off, n);
+        mRescanPosition += n;
+        while (n < len) {
+            int r = in.read(b, off + n, len - n);
+            if (r < 0) {
+                throw new EOFException("stream ends inside a block");
+            }
+            n += r;
+        }
+    }
+
+    public long getCorruptBlockCount() {
+        return mCorruptBlocks;
+    }
+
+    /**
+     * Bytes dropped with corrupt blocks or while looking for the next one
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    public long getWireBytes() {
+        return mWireBytes;
+    }
+
+    public double getCompressionRatio() {
+        return mWireBytes > 0 ? (double) mRawBytes / mWireBytes : 1.0;
+    }
+
+    /**
+     * Uncompressed bytes per second since the first block was read
+     */
+    public long getEffectiveThroughput() {
+        long elapsed = System.nanoTime() - mFirstReadNs;
+        return mFirstReadNs != 0 && elapsed > 0 ? mRawBytes * 1000000000L / elapsed : 0;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Optional compression stage for a serial port output stream
+ *
+ * Data is collected into blocks and every block goes out as
+ *
+ *   sync | type | raw length (2 bytes) | payload length (2 bytes) | check (2 bytes) | payload
+ *
+ * big endian, where sync is {@link #SYNC}, type is {@link #BLOCK_LZ4} for an LZ4 compressed
+ * payload, or {@link #BLOCK_STORED} when compression would not make the block smaller (already
+ * compressed images, random data), so incompressible data costs only the 8-byte header. The
+ * check is the CRC-16/X.25 of type, lengths and the uncompressed data: on a noisy line the
+ * reader drops a damaged block and finds the next one by its sync byte instead of losing
+ * track of the stream. Nothing is retransmitted, put the stream over {@link ReliableLink}
+ * when every byte matters. {@link #flush()} sends a partial block.
+ *
+ * Read it back with {@link CompressedInputStream}. Only worth it when both ends are ours.
+ */
+public class CompressedOutputStream extends FilterOutputStream {
+
+    public static final byte SYNC = (byte) 0xc5;
+    public static final int BLOCK_STORED = 0;
+    public static final int BLOCK_LZ4 = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public static final int MAX_BLOCK_SIZE = 0xffff;
+
+    private final byte[] mBlock;
+    private final byte[] mWire;
+    private final int[] mHashTable = new int[Lz4Block.HASH_TABLE_SIZE];
+    private int mCount;
+
+    private long mRawBytes;
+    private long mWireBytes;
+    private long mStoredBlocks;
+    private long mCompressedBlocks;
+    private long mFirstWriteNs;
+
+    public CompressedOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    public CompressedOutputStream(OutputStream out, int blockSize) {
+        super(out);
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("block size must be 1.." + MAX_BLOCK_SIZE);
+        }
+        mBlock = new byte[blockSize];
+        mWire = new byte[HEADER_SIZE + blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCount == mBlock.length) {
+            writeBlock();
+        }
+        mBlock[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (mCount == mBlock.length) {
+                writeBlock();
+            }
+            int n = Math.min(len, mBlock.length - mCount);
+            System.arraycopy(b, off, mBlock, mCount, n);
+            mCount += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    private void writeBlock() throws IOException {
+        if (mCount == 0) {
+            return;
+        }
+        if (mFirstWriteNs == 0) {
+            mFirstWriteNs = System.nanoTime();
+        }
+        /* only worth it if the payload shrinks */
+        int n = Lz4Block.compress(mBlock, 0, mCount, mWire, HEADER_SIZE, mCount - 1, mHashTable);
+        if (n > 0) {
+            mWire[1] = BLOCK_LZ4;
+            mCompressedBlocks++;
+        } else {
+            System.arraycopy(mBlock, 0, mWire, HEADER_SIZE, mCount);
+            n = mCount;
+            mWire[1] = BLOCK_STORED;
+            mStoredBlocks++;
+        }
+        mWire[0] = SYNC;
+        mWire[2] = (byte) (mCount >>> 8);
+        mWire[3] = (byte) mCount;
+        mWire[4] = (byte) (n >>> 8);
+        mWire[5] = (byte) n;
+        int check = checksum(mWire, mBlock, mCount);
+        mWire[6] = (byte) (check >>> 8);
+        mWire[7] = (byte) check;
+        out.write(mWire, 0, HEADER_SIZE + n);
+        mRawBytes += mCount;
+        mWireBytes += HEADER_SIZE + n;
+        mCount = 0;
+    }
+
+    /* over type, lengths and the uncompressed data */
+    static int checksum(byte[] header, byte[] block, int length) {
+        return Crc16.finish(Crc16.update(Crc16.update(Crc16.INIT, header, 1, 5), block, 0, length));
+    }
+
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    public long getWireBytes() {
+        return mWireBytes;
+    }
+
+    public long getStoredBlockCount() {
+        return mStoredBlocks;
+    }
+
+    public long getCompressedBlockCount() {
+        return mCompressedBlocks;
+    }
+
+    /**
+     * Raw bytes per byte on the wire, headers included; above 1 means a gain
+     */
+    public double getCompressionRatio() {
+        return mWireBytes > 0 ? (double) mRawBytes / mWireBytes : 1.0;
+    }
+
+    /**
+     * Uncompressed bytes per second since the first block was written
+     */
+    public long getEffectiveThroughput() {
+        long elapsed = System.nanoTime() - mFirstWriteNs;
+        return mFirstWriteNs != 0 && elapsed > 0 ? mRawBytes * 1000000000L / elapsed : 0;
+    }
+}
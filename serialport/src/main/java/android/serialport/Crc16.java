@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+/**
+ * CRC-16/X.25, the frame check sequence used by HDLC
+ *
+ * Table driven, reflected polynomial 0x8408, initial value 0xFFFF and final xor 0xFFFF.
+ *
+ * CRC-16/XMODEM (polynomial 0x1021, not reflected, initial value 0) is also here for the
+ * XMODEM family of file transfer protocols.
+ */
+public final class Crc16 {
+
+    public static final int INIT = 0xffff;
+
+    private static final int[] TABLE = new int[256];
+    private static final int[] XMODEM_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x8408 : crc >>> 1;
+            }
+            TABLE[i] = crc;
+
+            crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            XMODEM_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    /**
+     * Feed more bytes into a running (not yet finalized) crc, start with {@link #INIT}
+     */
+    public static int update(int crc, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    public static int update(int crc, int b) {
+        return (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+    }
+
+    public static int finish(int crc) {
+        return ~crc & 0xffff;
+    }
+
+    public static int compute(byte[] data, int offset, int length) {
+        return finish(update(INIT, data, offset, length));
+    }
+
+    public static int xmodem(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ XMODEM_TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,644 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * File transfers over a serial port, streamed from a memory-mapped file
+ *
+ * Only one block buffer is allocated whatever the file size, the kernel pages the file in
+ * as it is sent.
+ *
+ * Two families of protocols:
+ *
+ * - XMODEM-1K and YMODEM (batch of one file), for boot loaders and third party devices.
+ *   Every 1024-byte block waits for its ACK.
+ *
+ * - a streaming protocol over {@link ReliableLink}, for peers running our own firmware.
+ *   Like ZMODEM there is no per-block stall: blocks are sent as long as the link window
+ *   is open, errors are recovered by the link layer, and a transfer can resume from any
+ *   offset. Use {@link Receiver} as the link listener on the receiving side and
+ *   {@link Sender} on the sending side; the receiver answers the sender's offer with the
+ *   offset to resume from.
+ */
+public class FileTransfer {
+
+    private static final String TAG = "FileTransfer";
+
+    /* XMODEM control characters */
+    private static final int SOH = 0x01;
+    private static final int STX = 0x02;
+    private static final int EOT = 0x04;
+    private static final int ACK = 0x06;
+    private static final int NAK = 0x15;
+    private static final int CAN = 0x18;
+    private static final int CRC_REQUEST = 'C';
+    private static final byte CPMEOF = 0x1a;
+
+    public static final int XMODEM_BLOCK_SIZE = 1024;
+    private static final int YMODEM_HEADER_SIZE = 128;
+    private static final int XMODEM_RETRIES = 10;
+    private static final int XMODEM_START_TIMEOUT_MS = 60000;
+    private static final int XMODEM_ACK_TIMEOUT_MS = 10000;
+
+    /* streaming protocol payload types */
+    private static final byte STREAM_START = 'S';
+    private static final byte STREAM_DATA = 'D';
+    private static final byte STREAM_END = 'E';
+    /* sender to receiver: the file size, answered with STREAM_RESUME */
+    private static final byte STREAM_OFFER = 'O';
+    /* receiver to sender: the offset to start from */
+    private static final byte STREAM_RESUME = 'R';
+    /* receiver to sender: the transfer failed on this side */
+    private static final byte STREAM_ABORT = 'A';
+    private static final int STREAM_START_SIZE = 1 + 8 + 8;
+    private static final int STREAM_OFFER_SIZE = 1 + 8;
+    private static final int STREAM_RESUME_TIMEOUT_MS = 10000;
+    /* the receiver saves its high-water mark about this often */
+    private static final int CHECKPOINT_BYTES = 64 * 1024;
+    private static final String CHECKPOINT_SUFFIX = ".part";
+
+    public interface ProgressListener {
+        /**
+         * @param position bytes of the file transferred so far, counting the resume offset
+         * @param size the file size
+         * @param bytesPerSecond average throughput of this transfer
+         */
+        void onProgress(long position, long size, long bytesPerSecond);
+    }
+
+    public static class TransferException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TransferException(String message) {
+            super(message);
+        }
+    }
+
+    private FileTransfer() {
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file) throws IOException {
+        FileChannel channel = file.getChannel();
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new TransferException("file too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    private static long bytesPerSecond(long bytes, long startNs) {
+        long elapsed = System.nanoTime() - startNs;
+        return elapsed > 0 ? bytes * 1000000000L / elapsed : 0;
+    }
+
+    /**
+     * Send a file with XMODEM-1K (CRC mode), or YMODEM when ymodem is true
+     *
+     * @param offset where to start in the file, a multiple of {@link #XMODEM_BLOCK_SIZE};
+     *               the receiver is expected to append
+     * @return the number of bytes sent
+     */
+    public static long sendXmodem(SerialPort port, File file, long offset, boolean ymodem,
+            ProgressListener listener) throws IOException, InterruptedException {
+        return sendXmodem(port.getInputStream(), port.getOutputStream(), file, offset, ymodem,
+                listener);
+    }
+
+    public static long sendXmodem(InputStream in, OutputStream out, File file, long offset,
+            boolean ymodem, ProgressListener listener) throws IOException, InterruptedException {
+        if (offset % XMODEM_BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("offset must be a multiple of " + XMODEM_BLOCK_SIZE);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer map = map(raf);
+            long size = map.capacity();
+            byte[] block = new byte[3 + XMODEM_BLOCK_SIZE + 2];
+            long start = System.nanoTime();
+
+            waitFor(in, CRC_REQUEST, XMODEM_START_TIMEOUT_MS);
+
+            if (ymodem) {
+                /* block 0: file name, NUL, decimal size, zero padded */
+                byte[] name = file.getName().getBytes("UTF-8");
+                byte[] length = Long.toString(size - offset).getBytes("US-ASCII");
+                if (name.length + 1 + length.length > YMODEM_HEADER_SIZE) {
+                    throw new TransferException("file name too long");
+                }
+                Arrays.fill(block, 3, 3 + YMODEM_HEADER_SIZE, (byte) 0);
+                System.arraycopy(name, 0, block, 3, name.length);
+                System.arraycopy(length, 0, block, 3 + name.length + 1, length.length);
+                sendBlock(in, out, block, SOH, 0, YMODEM_HEADER_SIZE);
+                waitFor(in, CRC_REQUEST, XMODEM_ACK_TIMEOUT_MS);
+            }
+
+            if (offset > size) {
+                throw new TransferException("offset " + offset + " beyond the size " + size);
+            }
+            int blockNumber = 1;
+            map.position((int) offset);
+            while (map.hasRemaining()) {
+                int n = Math.min(XMODEM_BLOCK_SIZE, map.remaining());
+                map.get(block, 3, n);
+                if (n < XMODEM_BLOCK_SIZE) {
+                    Arrays.fill(block, 3 + n, 3 + XMODEM_BLOCK_SIZE, CPMEOF);
+                }
+                sendBlock(in, out, block, STX, blockNumber, XMODEM_BLOCK_SIZE);
+                blockNumber++;
+                if (listener != null) {
+                    listener.onProgress(map.position(), size, bytesPerSecond(map.position() - offset, start));
+                }
+            }
+
+            sendEot(in, out);
+
+            if (ymodem) {
+                /* an empty block 0 ends the batch */
+                waitFor(in, CRC_REQUEST, XMODEM_ACK_TIMEOUT_MS);
+                Arrays.fill(block, 3, 3 + YMODEM_HEADER_SIZE, (byte) 0);
+                sendBlock(in, out, block, SOH, 0, YMODEM_HEADER_SIZE);
+            }
+            Log.v(TAG, "sent " + (size - offset) + " bytes at " + bytesPerSecond(size - offset, start) + " B/s");
+            return size - offset;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void sendBlock(InputStream in, OutputStream out, byte[] block, int header,
+            int blockNumber, int length) throws IOException, InterruptedException {
+        block[0] = (byte) header;
+        block[1] = (byte) blockNumber;
+        block[2] = (byte) ~blockNumber;
+        int crc = Crc16.xmodem(block, 3, length);
+        block[3 + length] = (byte) (crc >>> 8);
+        block[4 + length] = (byte) crc;
+        for (int retry = 0; retry < XMODEM_RETRIES; retry++) {
+            out.write(block, 0, 3 + length + 2);
+            int rsp = readByte(in, XMODEM_ACK_TIMEOUT_MS);
+            if (rsp == ACK) {
+                return;
+            } else if (rsp == CAN) {
+                throw new TransferException("cancelled by receiver");
+            }
+            Log.w(TAG, "block " + blockNumber + " not acknowledged (" + rsp + "), resending");
+        }
+        throw new TransferException("block " + blockNumber + " retries exhausted");
+    }
+
+    private static void sendEot(InputStream in, OutputStream out) throws IOException, InterruptedException {
+        for (int retry = 0; retry < XMODEM_RETRIES; retry++) {
+            out.write(EOT);
+            /* YMODEM receivers NAK the first EOT */
+            if (readByte(in, XMODEM_ACK_TIMEOUT_MS) == ACK) {
+                return;
+            }
+        }
+        throw new TransferException("EOT not acknowledged");
+    }
+
+    private static void waitFor(InputStream in, int expected, int timeout_ms)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        while (System.currentTimeMillis() < deadline) {
+            int b = readByte(in, (int) (deadline - System.currentTimeMillis()));
+            if (b == expected) {
+                return;
+            } else if (b == CAN) {
+                throw new TransferException("cancelled by receiver");
+            }
+        }
+        throw new TransferException("timeout waiting for receiver");
+    }
+
+    /**
+     * @return the byte, or -1 on timeout
+     */
+    private static int readByte(InputStream in, int timeout_ms) throws IOException, InterruptedException {
+        /* serial port streams cannot time out a blocking read(), so poll available() */
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        while (in.available() <= 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return -1;
+            }
+            Thread.sleep(1);
+        }
+        return in.read();
+    }
+
+    /**
+     * Stream a file over a reliable link without waiting for per-block acknowledgements,
+     * resuming from the offset the receiver answers the offer with
+     *
+     * @param peer the sending side's link listener
+     * @param blockSize payload size, at most the link's maximum payload size
+     * @return the number of bytes sent
+     */
+    public static long sendStreaming(ReliableLink link, Sender peer, File file, int blockSize,
+            ProgressListener listener) throws IOException, InterruptedException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer map = map(raf);
+            byte[] offer = new byte[STREAM_OFFER_SIZE];
+            ByteBuffer.wrap(offer).put(STREAM_OFFER).putLong(map.capacity());
+            peer.reset();
+            link.send(offer);
+            long offset = peer.awaitResumeOffset(STREAM_RESUME_TIMEOUT_MS);
+            /* a longer file on the other side is something else, start over */
+            if (offset > map.capacity()) {
+                offset = 0;
+            }
+            return stream(link, peer, map, offset, blockSize, listener);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Stream a file from an offset agreed on out of band
+     *
+     * @param offset where to resume, at most {@link Receiver#getPosition()} of the peer
+     */
+    public static long sendStreaming(ReliableLink link, File file, long offset, int blockSize,
+            ProgressListener listener) throws IOException, InterruptedException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return stream(link, null, map(raf), offset, blockSize, listener);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long stream(ReliableLink link, Sender peer, MappedByteBuffer map, long offset,
+            int blockSize, ProgressListener listener) throws IOException, InterruptedException {
+        long size = map.capacity();
+        if (offset < 0 || offset > size) {
+            /* the receiver's resume offset, or the caller's */
+            throw new TransferException("offset " + offset + " outside the size " + size);
+        }
+        byte[] block = new byte[Math.max(blockSize, STREAM_START_SIZE)];
+        long start = System.nanoTime();
+
+        ByteBuffer header = ByteBuffer.wrap(block);
+        header.put(STREAM_START).putLong(offset).putLong(size);
+        link.send(block, 0, STREAM_START_SIZE);
+
+        map.position((int) offset);
+        block[0] = STREAM_DATA;
+        while (map.hasRemaining()) {
+            if (peer != null && peer.isAborted()) {
+                throw new TransferException("aborted by receiver");
+            }
+            int n = Math.min(blockSize - 1, map.remaining());
+            map.get(block, 1, n);
+            link.send(block, 0, 1 + n);
+            if (listener != null) {
+                listener.onProgress(map.position(), size, bytesPerSecond(map.position() - offset, start));
+            }
+        }
+
+        block[0] = STREAM_END;
+        link.send(block, 0, 1);
+        while (!link.awaitAcknowledged(XMODEM_ACK_TIMEOUT_MS)) {
+            Log.w(TAG, "waiting for the last blocks to be acknowledged");
+        }
+        if (peer != null && peer.isAborted()) {
+            throw new TransferException("aborted by receiver");
+        }
+        Log.v(TAG, "streamed " + (size - offset) + " bytes at " + bytesPerSecond(size - offset, start) + " B/s");
+        return size - offset;
+    }
+
+    /**
+     * The sending end's link listener, takes the receiver's answers for {@link #sendStreaming}
+     */
+    public static class Sender implements ReliableLink.Listener {
+        private long mResumeOffset = -1;
+        private boolean mAborted;
+        private boolean mFailed;
+
+        @Override
+        public synchronized void onReceive(byte[] data, int offset, int length) {
+            if (data[offset] == STREAM_RESUME && length >= STREAM_OFFER_SIZE) {
+                mResumeOffset = Math.max(0, ByteBuffer.wrap(data, offset + 1, 8).getLong());
+                notifyAll();
+            } else if (data[offset] == STREAM_ABORT) {
+                mAborted = true;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void onLinkFailure() {
+            mFailed = true;
+            notifyAll();
+        }
+
+        synchronized void reset() {
+            mResumeOffset = -1;
+            mAborted = false;
+        }
+
+        synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        synchronized long awaitResumeOffset(long timeout_ms) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout_ms;
+            while (mResumeOffset < 0) {
+                if (mAborted || mFailed) {
+                    throw new TransferException("receiver is not ready");
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new TransferException("no answer to the offer");
+                }
+                wait(left);
+            }
+            return mResumeOffset;
+        }
+    }
+
+    /**
+     * The receiving end of {@link #sendStreaming}, to be passed as the link listener
+     *
+     * The destination file is mapped read-write at the announced size and filled in place.
+     * What has really been received is kept in a side file (name.part), updated every 64 KB
+     * after the mapping is flushed, so a transfer interrupted even
+     * by a crash resumes from the right offset and not from the pre-sized file length. A
+     * failed transfer also truncates the file to what was received.
+     */
+    public static class Receiver implements ReliableLink.Listener {
+        private final File mFile;
+        private final File mCheckpointFile;
+        private final ProgressListener mListener;
+        private ReliableLink mLink;
+        private RandomAccessFile mRaf;
+        private MappedByteBuffer mMap;
+        private long mSize;
+        private long mStart;
+        private long mStartOffset;
+        private long mCheckpoint;
+        private volatile long mPosition;
+        private boolean mDone;
+        private boolean mFailed;
+
+        public Receiver(File file, ProgressListener listener) {
+            mFile = file;
+            mCheckpointFile = new File(file.getPath() + CHECKPOINT_SUFFIX);
+            mListener = listener;
+            mPosition = readCheckpoint();
+        }
+
+        /**
+         * The link to answer offers on; without it the offset must be passed out of band
+         */
+        public void setLink(ReliableLink link) {
+            mLink = link;
+        }
+
+        /**
+         * How much of the file is already here, the offset to resume from
+         */
+        public long getPosition() {
+            return mPosition;
+        }
+
+        /* without a checkpoint the file is not ours to resume, e.g. the previous image */
+        private long readCheckpoint() {
+            if (!mCheckpointFile.exists()) {
+                return 0;
+            }
+            long length = mFile.length();
+            try {
+                RandomAccessFile part = new RandomAccessFile(mCheckpointFile, "r");
+                try {
+                    return Math.max(0, Math.min(part.readLong(), length));
+                } finally {
+                    part.close();
+                }
+            } catch (IOException e) {
+                /* unreadable, assume nothing is here */
+                return 0;
+            }
+        }
+
+        private void writeCheckpoint(long position) throws IOException {
+            RandomAccessFile part = new RandomAccessFile(mCheckpointFile, "rw");
+            try {
+                part.writeLong(position);
+                part.getFD().sync();
+            } finally {
+                part.close();
+            }
+            mCheckpoint = position;
+        }
+
+        @Override
+        public void onReceive(byte[] data, int offset, int length) {
+            if (length < 1) {
+                return;
+            }
+            try {
+                switch (data[offset]) {
+                    case STREAM_OFFER: {
+                        if (length < STREAM_OFFER_SIZE) {
+                            fail("short offer", true);
+                            break;
+                        }
+                        long size = ByteBuffer.wrap(data, offset + 1, 8).getLong();
+                        answer(mPosition <= size ? mPosition : 0);
+                        break;
+                    }
+                    case STREAM_START: {
+                        if (length < STREAM_START_SIZE) {
+                            fail("short start", true);
+                            break;
+                        }
+                        ByteBuffer header = ByteBuffer.wrap(data, offset + 1, length - 1);
+                        long startOffset = header.getLong();
+                        long size = header.getLong();
+                        if (size < 0 || size > Integer.MAX_VALUE || startOffset < 0 || startOffset > size) {
+                            fail("bad start, offset " + startOffset + " size " + size, true);
+                            break;
+                        }
+                        if (startOffset > mPosition) {
+                            /* would leave a hole of zeros */
+                            fail("start at " + startOffset + " beyond " + mPosition, true);
+                            break;
+                        }
+                        close();
+                        mStartOffset = startOffset;
+                        mSize = size;
+                        mPosition = startOffset;
+                        synchronized (this) {
+                            mDone = false;
+                            mFailed = false;
+                        }
+                        /* before the file grows, its length is no longer the received size */
+                        writeCheckpoint(startOffset);
+                        mRaf = new RandomAccessFile(mFile, "rw");
+                        mRaf.setLength(mSize);
+                        mMap = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSize);
+                        mMap.position((int) mStartOffset);
+                        mStart = System.nanoTime();
+                        break;
+                    }
+                    case STREAM_DATA: {
+                        if (mMap == null) {
+                            break;
+                        }
+                        if (length - 1 > mMap.remaining()) {
+                            fail("data beyond the announced size " + mSize, true);
+                            break;
+                        }
+                        mMap.put(data, offset + 1, length - 1);
+                        mPosition = mMap.position();
+                        if (mPosition - mCheckpoint >= CHECKPOINT_BYTES) {
+                            mMap.force();
+                            writeCheckpoint(mPosition);
+                        }
+                        if (mListener != null) {
+                            mListener.onProgress(mPosition, mSize, bytesPerSecond(mPosition - mStartOffset, mStart));
+                        }
+                        break;
+                    }
+                    case STREAM_END: {
+                        if (mMap == null) {
+                            break;
+                        }
+                        if (mPosition != mSize) {
+                            fail("end at " + mPosition + " of " + mSize, true);
+                            break;
+                        }
+                        mMap.force();
+                        close();
+                        mCheckpointFile.delete();
+                        synchronized (this) {
+                            mDone = true;
+                            notifyAll();
+                        }
+                        break;
+                    }
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                fail(e.getMessage(), true);
+            }
+        }
+
+        private void answer(long position) {
+            ReliableLink link = mLink;
+            if (link == null) {
+                Log.e(TAG, "offer received without a link to answer on");
+                return;
+            }
+            byte[] resume = new byte[STREAM_OFFER_SIZE];
+            ByteBuffer.wrap(resume).put(STREAM_RESUME).putLong(position);
+            /* the window is empty on this side, nothing else is sent, so this does not block */
+            try {
+                link.send(resume);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onLinkFailure() {
+            fail("link failure", false);
+        }
+
+        /**
+         * Give up the transfer, keeping what was received for a resume
+         */
+        private void fail(String reason, boolean tellSender) {
+            Log.e(TAG, "receive failed: " + reason);
+            try {
+                boolean mapped = mMap != null;
+                if (mapped) {
+                    mMap.force();
+                }
+                close();
+                if (mapped) {
+                    writeCheckpoint(mPosition);
+                    /* no pre-sized tail of zeros */
+                    RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                    try {
+                        raf.setLength(mPosition);
+                    } finally {
+                        raf.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            ReliableLink link = mLink;
+            if (tellSender && link != null) {
+                try {
+                    link.send(new byte[] {STREAM_ABORT});
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                mFailed = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait for the end of the transfer
+         *
+         * @return true if the whole file has been received
+         */
+        public synchronized boolean await(long timeout_ms) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout_ms;
+            while (!mDone && !mFailed) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                wait(left);
+            }
+            return mDone;
+        }
+
+        private void close() throws IOException {
+            mMap = null;
+            if (mRaf != null) {
+                mRaf.close();
+                mRaf = null;
+            }
+        }
+    }
+}
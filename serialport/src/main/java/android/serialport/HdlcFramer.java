@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+/**
+ * HDLC-like asynchronous framing (RFC 1662 style)
+ *
+ * A frame on the wire is: FLAG, byte-stuffed (content, FCS low, FCS high), FLAG.
+ * FLAG (0x7e) and ESCAPE (0x7d) inside the frame are sent as ESCAPE, byte ^ 0x20.
+ */
+public final class HdlcFramer {
+
+    public static final byte FLAG = 0x7e;
+    public static final byte ESCAPE = 0x7d;
+    private static final int ESCAPE_XOR = 0x20;
+
+    private HdlcFramer() {
+    }
+
+    /**
+     * The worst case size of an encoded frame, every byte escaped
+     */
+    public static int maxEncodedLength(int length) {
+        return 2 * (length + 2) + 2;
+    }
+
+    /**
+     * Encode one frame into out[outOffset...]
+     *
+     * @return the number of bytes written to out, which must hold {@link #maxEncodedLength(int)}
+     */
+    public static int encode(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        int p = outOffset;
+        out[p++] = FLAG;
+        for (int i = offset; i < offset + length; i++) {
+            p = put(data[i], out, p);
+        }
+        int fcs = Crc16.compute(data, offset, length);
+        p = put((byte) fcs, out, p);
+        p = put((byte) (fcs >>> 8), out, p);
+        out[p++] = FLAG;
+        return p - outOffset;
+    }
+
+    private static int put(byte b, byte[] out, int p) {
+        if (b == FLAG || b == ESCAPE) {
+            out[p++] = ESCAPE;
+            out[p++] = (byte) (b ^ ESCAPE_XOR);
+        } else {
+            out[p++] = b;
+        }
+        return p;
+    }
+
+    public interface FrameListener {
+        /**
+         * A frame passed the FCS check. The buffer is reused, copy what you want to keep.
+         *
+         * @param frame frame content without FCS
+         * @param length length of the content
+         */
+        void onFrame(byte[] frame, int length);
+    }
+
+    /**
+     * Incremental decoder, bytes can be fed in chunks of any size
+     */
+    public static class Decoder {
+        private final byte[] mFrame;
+        private final FrameListener mListener;
+        private int mLength;
+        private boolean mEscaped;
+        private boolean mOverflow;
+        private long mBadFrames;
+
+        /**
+         * @param maxFrameLength the largest frame content (without FCS) accepted
+         */
+        public Decoder(int maxFrameLength, FrameListener listener) {
+            mFrame = new byte[maxFrameLength + 2];
+            mListener = listener;
+        }
+
+        public void feed(byte[] data, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                byte b = data[i];
+                if (b == FLAG) {
+                    endOfFrame();
+                } else if (b == ESCAPE) {
+                    mEscaped = true;
+                } else {
+                    if (mEscaped) {
+                        b ^= ESCAPE_XOR;
+                        mEscaped = false;
+                    }
+                    if (mLength < mFrame.length) {
+                        mFrame[mLength++] = b;
+                    } else {
+                        mOverflow = true;
+                    }
+                }
+            }
+        }
+
+        private void endOfFrame() {
+            /* back to back flags are idle fill, not empty frames */
+            if (mLength > 0 || mOverflow) {
+                if (!mOverflow && mLength > 2) {
+                    int fcs = (mFrame[mLength - 2] & 0xff) | ((mFrame[mLength - 1] & 0xff) << 8);
+                    if (Crc16.compute(mFrame, 0, mLength - 2) == fcs) {
+                        mListener.onFrame(mFrame, mLength - 2);
+                    } else {
+                        mBadFrames++;
+                    }
+                } else {
+                    mBadFrames++;
+                }
+            }
+            mLength = 0;
+            mEscaped = false;
+            mOverflow = false;
+        }
+
+        /**
+         * Frames dropped because of FCS mismatch, truncation or overflow
+         */
+        public long getBadFrameCount() {
+            return mBadFrames;
+        }
+
+        public void reset() {
+            mLength = 0;
+            mEscaped = false;
+            mOverflow = false;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+/**
+ * Log-linear histogram of non-negative values, HdrHistogram style
+ *
+ * Values below 128 are counted exactly; above, every power of two is split in 64 buckets,
+ * so any recorded value is reported within 1.6% whatever its magnitude, from microseconds
+ * to hours, in a fixed array of counters. Recording never allocates.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /* values up to 2^40, about 12 days in microseconds */
+    private static final int MAX_SHIFT = 40 - SUB_BUCKET_BITS - 1;
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final long[] mCounts = new long[(MAX_SHIFT + 2) * SUB_BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /* the largest value counted in the bucket */
+    static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Count a value, negative values count as 0 and huge ones as {@link #MAX_VALUE}
+     */
+    public synchronized void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Count a value count times, e.g. to fill a histogram from other counters
+     */
+    public synchronized void record(long value, long count) {
+        if (count <= 0) {
+            return;
+        }
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        mCounts[indexOf(value)] += count;
+        mCount += count;
+        mSum += value * count;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Add the counts of another histogram, e.g. to merge per-interval snapshots
+     */
+    public void add(Histogram other) {
+        Histogram copy = other.copy();
+        synchronized (this) {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] += copy.mCounts[i];
+            }
+            mCount += copy.mCount;
+            mSum += copy.mSum;
+            mMin = Math.min(mMin, copy.mMin);
+            mMax = Math.max(mMax, copy.mMax);
+        }
+    }
+
+    /**
+     * A consistent copy, to read several statistics from while recording goes on
+     */
+    public synchronized Histogram copy() {
+        Histogram h = new Histogram();
+        System.arraycopy(mCounts, 0, h.mCounts, 0, mCounts.length);
+        h.mCount = mCount;
+        h.mSum = mSum;
+        h.mMin = mMin;
+        h.mMax = mMax;
+        return h;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * The value below which the given percentage of values fall, e.g. 99.9
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * mCount);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), mMax);
+            }
+        }
+        return mMax;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.nio.charset.Charset;
+
+/**
+ * Splits serial port input into text lines
+ *
+ * Bytes are decoded with a {@link TextDecoder}, so multi-byte characters survive being split
+ * across reads, and a terminator split across reads (CR in one chunk, LF in the next) is
+ * handled too. Lines longer than the maximum length are delivered in pieces.
+ */
+public class LineReader {
+
+    /** "\n" */
+    public static final int TERMINATOR_LF = 0;
+    /** "\r" */
+    public static final int TERMINATOR_CR = 1;
+    /** "\r\n", a lone CR is part of the line */
+    public static final int TERMINATOR_CRLF = 2;
+    /** any of "\r\n", "\r" or "\n" */
+    public static final int TERMINATOR_ANY = 3;
+
+    public static final int DEFAULT_MAX_LINE_LENGTH = 4096;
+
+    public interface Listener {
+        /**
+         * A line without its terminator; the CharSequence is reused once this returns
+         */
+        void onLine(CharSequence line);
+    }
+
+    private final TextDecoder mDecoder;
+    private final Listener mListener;
+    private final int mTerminator;
+    private final int mMaxLineLength;
+    private final StringBuilder mLine;
+    private boolean mPendingCr;
+    private boolean mSkipLf;
+
+    private final TextDecoder.Sink mSink = new TextDecoder.Sink() {
+        @Override
+        public void onChars(char[] chars, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                onChar(chars[i]);
+            }
+        }
+    };
+
+    public LineReader(Listener listener) {
+        this(Charset.forName("UTF-8"), TERMINATOR_ANY, DEFAULT_MAX_LINE_LENGTH, listener);
+    }
+
+    public LineReader(Charset charset, int terminator, int maxLineLength, Listener listener) {
+        mDecoder = new TextDecoder(charset);
+        mTerminator = terminator;
+        mMaxLineLength = maxLineLength;
+        mListener = listener;
+        mLine = new StringBuilder(Math.min(maxLineLength, 256));
+    }
+
+    public void feed(byte[] data, int offset, int length) {
+        mDecoder.decode(data, offset, length, mSink);
+    }
+
+    /**
+     * End of input, the last unterminated line is delivered if not empty
+     */
+    public void flush() {
+        mDecoder.flush(mSink);
+        if (mPendingCr) {
+            append('\r');
+            mPendingCr = false;
+        }
+        if (mLine.length() > 0) {
+            emit();
+        }
+        mSkipLf = false;
+    }
+
+    private void onChar(char c) {
+        switch (mTerminator) {
+            case TERMINATOR_LF:
+                if (c == '\n') {
+                    emit();
+                } else {
+                    append(c);
+                }
+                break;
+            case TERMINATOR_CR:
+                if (c == '\r') {
+                    emit();
+                } else {
+                    append(c);
+                }
+                break;
+            case TERMINATOR_CRLF:
+                if (mPendingCr) {
+                    mPendingCr = false;
+                    if (c == '\n') {
+                        emit();
+                        break;
+                    }
+                    append('\r');
+                }
+                if (c == '\r') {
+                    mPendingCr = true;
+                } else {
+                    append(c);
+                }
+                break;
+            default:
+                if (mSkipLf) {
+                    mSkipLf = false;
+                    if (c == '\n') {
+                        break;
+                    }
+                }
+                if (c == '\r') {
+                    mSkipLf = true;
+                    emit();
+                } else if (c == '\n') {
+                    emit();
+                } else {
+                    append(c);
+                }
+                break;
+        }
+    }
+
+    private void append(char c) {
+        if (mLine.length() >= mMaxLineLength) {
+            emit();
+        }
+        mLine.append(c);
+    }
+
+    private void emit() {
+        mListener.onLine(mLine);
+        mLine.setLength(0);
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Pipelined loopback test: throughput, loss and round trip time of a line whose TX is
+ * wired to its RX (a loopback plug, an echoing peer, a pty pair)
+ *
+ * Packets are SYNC, a 32-bit sequence number, a pattern derived from the sequence number and
+ * a CRC-16/X.25. Up to the window of bytes is kept in flight, so the line runs at full speed
+ * instead of one byte per round trip. The receiver checks the CRC, counts gaps in the
+ * sequence as lost (less the packets that came back corrupted) and records every round trip
+ * in a {@link Histogram}. When nothing comes back for the loss timeout, what is in flight is
+ * counted as lost and sending resumes.
+ *
+ * With a known baud rate packets are written in batches and each one is timed from when the
+ * line gets to its first byte, derived from its offset at 10 bit times per byte; without, every
+ * packet is written on its own and timed just before its write. A packet back before the line
+ * could have sent it shows the line is faster than the baud rate (a pty, say): it is timed
+ * from its write, and the rest of the run falls back to one packet per write.
+ *
+ * {@link #run(long)} blocks and returns a {@link Report}; {@link #snapshot()} may be called
+ * from another thread meanwhile. Without an input stream the tester does not read by itself:
+ * hand it what an existing receiving thread gets, with {@link #onDataReceived}. There is no
+ * Android dependency, so it also runs on a desktop JVM:
+ *
+ *     java -cp classes android.serialport.LoopbackTester /dev/pts/3 10 1024
+ */
+public class LoopbackTester {
+
+    public static final int DEFAULT_WINDOW = 1024;
+    public static final int DEFAULT_PACKET_SIZE = 32;
+    public static final int DEFAULT_LOSS_TIMEOUT_MS = 1000;
+    /* SYNC, sequence number, at least one pattern byte and CRC */
+    public static final int MIN_PACKET_SIZE = 8;
+    public static final int MAX_PACKET_SIZE = 1024;
+
+    private static final byte SYNC = (byte) 0xa5;
+    private static final int MAX_WRITE = 4096;
+
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final int mBaudrate;
+    private int mWindow = DEFAULT_WINDOW;
+    private volatile int mPacketSize = DEFAULT_PACKET_SIZE;
+    private int mLossTimeoutMs = DEFAULT_LOSS_TIMEOUT_MS;
+
+    /* guarded by mLock */
+    private final Object mLock = new Object();
+    private long[] mSendTimes;
+    /* when the write carrying the packet started */
+    private long[] mWriteTimes;
+    /* one packet per write, times not projected from the baud rate */
+    private boolean mPerPacket;
+    private int mSendTimesMask;
+    private int mNextSeq;
+    private int mExpectedSeq;
+    private long mPacketsSent;
+    private long mPacketsReceived;
+    private long mPacketsLost;
+    private long mPacketsCorrupted;
+    /* corrupted since the last valid packet, these make part of the next gap */
+    private int mCorruptedUnmatched;
+    /* when the line is done with what was written, as far as the baud rate tells */
+    private long mLineFreeAt;
+    private long mPacketsLate;
+    private long mBytesReceived;
+    private long mStartTime;
+    private long mEndTime;
+    private final Histogram mRtt = new Histogram();
+
+    private volatile boolean mRunning;
+    private Thread mReceiverThread;
+    private volatile boolean mClosed;
+    /* the packet being received, only used by the receiving thread */
+    private final byte[] mPacket = new byte[MAX_PACKET_SIZE];
+    private int mPacketLength;
+
+    public LoopbackTester(SerialPort port) {
+        this(port.getInputStream(), port.getOutputStream(), port.getBaudrate());
+    }
+
+    /**
+     * @param in       null to feed received data with {@link #onDataReceived}
+     * @param baudrate for the theoretical throughput in the report, 0 if unknown
+     */
+    public LoopbackTester(InputStream in, OutputStream out, int baudrate) {
+        mInputStream = in;
+        mOutputStream = out;
+        mBaudrate = baudrate;
+    }
+
+    /**
+     * Bytes in flight at most; 1 packet is the classic send-and-wait test
+     */
+    public void setWindow(int bytes) {
+        mWindow = bytes;
+    }
+
+    public void setPacketSize(int bytes) {
+        if (bytes < MIN_PACKET_SIZE || bytes > MAX_PACKET_SIZE) {
+            throw new IllegalArgumentException("packet size " + bytes);
+        }
+        mPacketSize = bytes;
+    }
+
+    public void setLossTimeout(int timeout_ms) {
+        mLossTimeoutMs = timeout_ms;
+    }
+
+    /**
+     * Stop the receiver; its read returns when the port is closed
+     */
+    public void close() {
+        stop();
+        mClosed = true;
+        if (mReceiverThread != null) {
+            mReceiverThread.interrupt();
+        }
+    }
+
+    /**
+     * Stop a test running in another thread; run() returns its report
+     */
+    public void stop() {
+        mRunning = false;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Send and check packets for duration_ms, or until {@link #stop()} when Long.MAX_VALUE
+     */
+    public Report run(long duration_ms) throws IOException {
+        final int packetSize = mPacketSize;
+        final int windowPackets = Math.max(1, mWindow / packetSize);
+        synchronized (mLock) {
+            int capacity = Integer.highestOneBit(windowPackets) << 1;
+            mSendTimes = new long[capacity];
+            mWriteTimes = new long[capacity];
+            mPerPacket = mBaudrate <= 0;
+            mSendTimesMask = capacity - 1;
+            mNextSeq = 0;
+            mExpectedSeq = 0;
+            mPacketsSent = mPacketsReceived = mPacketsLost = mPacketsCorrupted = mPacketsLate = 0;
+            mCorruptedUnmatched = 0;
+            mLineFreeAt = 0;
+            mBytesReceived = 0;
+            mRtt.reset();
+            mStartTime = System.nanoTime();
+            mEndTime = 0;
+        }
+        mRunning = true;
+
+        if (mInputStream != null && mReceiverThread == null) {
+            /* one receiver for all runs, a blocked read cannot be taken back */
+            mReceiverThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive();
+                }
+            }, "LoopbackReceiver");
+            mReceiverThread.setDaemon(true);
+            mReceiverThread.start();
+        }
+
+        /* one packet per write when its time cannot be told from its offset */
+        byte[] out = new byte[mBaudrate > 0 ? Math.max(packetSize, MAX_WRITE - MAX_WRITE % packetSize)
+                : packetSize];
+        long byteTimeNs = mBaudrate > 0 ? 10 * 1000000000L / mBaudrate : 0;
+        long deadline = duration_ms >= Long.MAX_VALUE / 2000000L ? Long.MAX_VALUE
+                : System.nanoTime() + duration_ms * 1000000L;
+        try {
+            while (mRunning && System.nanoTime() < deadline) {
+                int packets;
+                int firstSeq;
+                synchronized (mLock) {
+                    long idleSince = System.nanoTime();
+                    int received = mExpectedSeq;
+                    while (mRunning && mNextSeq - mExpectedSeq >= windowPackets) {
+                        if (mExpectedSeq != received) {
+                            received = mExpectedSeq;
+                            idleSince = System.nanoTime();
+                        }
+                        long waited = (System.nanoTime() - idleSince) / 1000000;
+                        if (waited >= mLossTimeoutMs) {
+                            /* nothing came back, give up on what is in flight */
+                            mPacketsLost += lostLocked(mNextSeq - mExpectedSeq);
+                            mExpectedSeq = mNextSeq;
+                            break;
+                        }
+                        try {
+                            mLock.wait(mLossTimeoutMs - waited);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            mRunning = false;
+                        }
+                    }
+                    if (!mRunning) {
+                        break;
+                    }
+                    packets = Math.min(windowPackets - (mNextSeq - mExpectedSeq),
+                            mPerPacket ? 1 : out.length / packetSize);
+                    firstSeq = mNextSeq;
+                    mNextSeq += packets;
+                    mPacketsSent += packets;
+                }
+                for (int i = 0; i < packets; i++) {
+                    encode(firstSeq + i, out, i * packetSize, packetSize);
+                }
+                synchronized (mLock) {
+                    /*
+                     * the line gets to these after what is queued before them, which is no more
+                     * than what is still in flight
+                     */
+                    long now = System.nanoTime();
+                    long byteTime = mPerPacket ? 0 : byteTimeNs;
+                    long queued = (long) (firstSeq - mExpectedSeq) * packetSize * byteTime;
+                    long start = Math.max(now, Math.min(mLineFreeAt, now + queued));
+                    for (int i = 0; i < packets; i++) {
+                        int slot = (firstSeq + i) & mSendTimesMask;
+                        mSendTimes[slot] = start + (long) i * packetSize * byteTime;
+                        mWriteTimes[slot] = now;
+                    }
+                    mLineFreeAt = start + (long) packets * packetSize * byteTime;
+                }
+                mOutputStream.write(out, 0, packets * packetSize);
+            }
+            /* let the last packets come back */
+            synchronized (mLock) {
+                long drainEnd = System.nanoTime() + mLossTimeoutMs * 1000000L;
+                while (mExpectedSeq != mNextSeq) {
+                    long left = (drainEnd - System.nanoTime()) / 1000000;
+                    if (left <= 0) {
+                        mPacketsLost += lostLocked(mNextSeq - mExpectedSeq);
+                        mExpectedSeq = mNextSeq;
+                        break;
+                    }
+                    try {
+                        mLock.wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                mEndTime = System.nanoTime();
+            }
+        } finally {
+            mRunning = false;
+        }
+        return snapshot();
+    }
+
+    static void encode(int seq, byte[] b, int off, int packetSize) {
+        b[off] = SYNC;
+        b[off + 1] = (byte) (seq >>> 24);
+        b[off + 2] = (byte) (seq >>> 16);
+        b[off + 3] = (byte) (seq >>> 8);
+        b[off + 4] = (byte) seq;
+        int end = off + packetSize - 2;
+        for (int i = off + 5, k = 0; i < end; i++, k++) {
+            b[i] = (byte) (seq * 31 + k);
+        }
+        int crc = Crc16.finish(Crc16.update(Crc16.INIT, b, off, packetSize - 2));
+        b[end] = (byte) crc;
+        b[end + 1] = (byte) (crc >>> 8);
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_WRITE];
+        while (!mClosed) {
+            int n;
+            try {
+                n = mInputStream.read(buffer);
+            } catch (IOException e) {
+                break;
+            }
+            if (n < 0) {
+                break;
+            }
+            onDataReceived(buffer, n);
+        }
+    }
+
+    /**
+     * Check received bytes, from one thread only
+     */
+    public void onDataReceived(byte[] buffer, int size) {
+        long now = System.nanoTime();
+        int packetSize = mPacketSize;
+        for (int i = 0; i < size; i++) {
+            if (mPacketLength == 0 && buffer[i] != SYNC) {
+                continue;
+            }
+            mPacket[mPacketLength++] = buffer[i];
+            if (mPacketLength >= packetSize) {
+                mPacketLength = check(mPacket, packetSize, now);
+            }
+        }
+    }
+
+    /* check a complete packet, returns how many of its bytes start the next one */
+    private int check(byte[] packet, int packetSize, long now) {
+        int crc = Crc16.finish(Crc16.update(Crc16.INIT, packet, 0, packetSize - 2));
+        boolean valid = (packet[packetSize - 2] & 0xff) == (crc & 0xff)
+                && (packet[packetSize - 1] & 0xff) == (crc >>> 8);
+        synchronized (mLock) {
+            if (!valid) {
+                mPacketsCorrupted++;
+                mCorruptedUnmatched++;
+                /* resynchronize on the next SYNC inside what we have */
+                for (int i = 1; i < packetSize; i++) {
+                    if (packet[i] == SYNC) {
+                        System.arraycopy(packet, i, packet, 0, packetSize - i);
+                        return packetSize - i;
+                    }
+                }
+                return 0;
+            }
+            int seq = ((packet[1] & 0xff) << 24) | ((packet[2] & 0xff) << 16)
+                    | ((packet[3] & 0xff) << 8) | (packet[4] & 0xff);
+            int ahead = seq - mExpectedSeq;
+            if (mSendTimes == null || ahead < 0 || seq - mNextSeq >= 0) {
+                /* already counted as lost, or not sent by this run */
+                mPacketsLate++;
+                return 0;
+            }
+            mPacketsLost += lostLocked(ahead);
+            mPacketsReceived++;
+            mBytesReceived += packetSize;
+            long sent = mSendTimes[seq & mSendTimesMask];
+            if (now < sent) {
+                /* faster than the baud rate, the projection is no good */
+                sent = mWriteTimes[seq & mSendTimesMask];
+                mPerPacket = true;
+            }
+            mRtt.record((now - sent) / 1000);
+            mExpectedSeq = seq + 1;
+            mLock.notifyAll();
+            return 0;
+        }
+    }
+
+    /**
+     * Of missing packets, those not already counted as corrupted
+     */
+    private int lostLocked(int missing) {
+        int corrupted = Math.min(missing, mCorruptedUnmatched);
+        mCorruptedUnmatched = 0;
+        return missing - corrupted;
+    }
+
+    /**
+     * The figures so far
+     */
+    public Report snapshot() {
+        synchronized (mLock) {
+            Report r = new Report();
+            long end = mEndTime != 0 ? mEndTime : System.nanoTime();
+            r.elapsedMs = (end - mStartTime) / 1000000;
+            r.packetSize = mPacketSize;
+            r.window = mWindow;
+            r.packetsSent = mPacketsSent;
+            r.packetsReceived = mPacketsReceived;
+            r.packetsLost = mPacketsLost;
+            r.packetsCorrupted = mPacketsCorrupted;
+            r.packetsLate = mPacketsLate;
+            r.bytesSent = mPacketsSent * mPacketSize;
+            r.bytesReceived = mBytesReceived;
+            r.throughputBps = r.elapsedMs == 0 ? 0 : mBytesReceived * 8 * 1000 / r.elapsedMs;
+            r.lineRateBps = mBaudrate;
+            r.rtt = mRtt.copy();
+            return r;
+        }
+    }
+
+    public static class Report {
+        public long elapsedMs;
+        public int packetSize;
+        public int window;
+        public long packetsSent;
+        public long packetsReceived;
+        public long packetsLost;
+        public long packetsCorrupted;
+        public long packetsLate;
+        public long bytesSent;
+        public long bytesReceived;
+        /* payload bits per second received back, framing bits excluded */
+        public long throughputBps;
+        /* the baud rate, 0 if unknown */
+        public long lineRateBps;
+        /* round trip times in microseconds */
+        public Histogram rtt;
+
+        /**
+         * Share of the line used, 8N1 puts 8 data bits in 10 bit times
+         */
+        public double getEfficiency() {
+            return lineRateBps == 0 ? 0 : (double) throughputBps / (lineRateBps * 8 / 10);
+        }
+
+        public String toJson() {
+            return String.format(Locale.US, "{\"elapsed_ms\":%d,\"packet_size\":%d,\"window\":%d,"
+                            + "\"packets_sent\":%d,\"packets_received\":%d,\"packets_lost\":%d,"
+                            + "\"packets_corrupted\":%d,\"packets_late\":%d,\"bytes_sent\":%d,"
+                            + "\"bytes_received\":%d,\"throughput_bps\":%d,\"line_rate_bps\":%d,"
+                            + "\"efficiency\":%.3f,\"rtt_us\":{\"min\":%d,\"mean\":%.1f,\"p50\":%d,"
+                            + "\"p90\":%d,\"p99\":%d,\"p99_9\":%d,\"max\":%d}}",
+                    elapsedMs, packetSize, window, packetsSent, packetsReceived, packetsLost,
+                    packetsCorrupted, packetsLate, bytesSent, bytesReceived, throughputBps,
+                    lineRateBps, getEfficiency(), rtt.getMin(), rtt.getMean(),
+                    rtt.getValueAtPercentile(50), rtt.getValueAtPercentile(90),
+                    rtt.getValueAtPercentile(99), rtt.getValueAtPercentile(99.9), rtt.getMax());
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+
+    /**
+     * Headless run on a tty already configured (stty) or a pty: device [seconds [window
+     * [packet size [baud rate]]]], prints the report as JSON
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: LoopbackTester device [seconds [window [packet_size [baudrate]]]]");
+            System.exit(2);
+        }
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        FileInputStream in = new FileInputStream(args[0]);
+        FileOutputStream out = new FileOutputStream(args[0]);
+        LoopbackTester tester = new LoopbackTester(in, out,
+                args.length > 4 ? Integer.parseInt(args[4]) : 0);
+        if (args.length > 2) {
+            tester.setWindow(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            tester.setPacketSize(Integer.parseInt(args[3]));
+        }
+        System.out.println(tester.run(seconds * 1000L).toJson());
+        tester.close();
+        out.close();
+        in.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZ4 block format codec, pure Java
+ *
+ * A greedy single-pass compressor with a 4096-entry hash table, fast enough to keep up with
+ * any UART. The output is a standard LZ4 block (no frame header), so the firmware side can
+ * use the reference lz4 decoder.
+ */
+public final class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xffff;
+    private static final int HASH_LOG = 12;
+
+    public static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+    private Lz4Block() {
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | (b[i + 3] << 24);
+    }
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    /**
+     * Compress src[srcOffset...] into dst[dstOffset...]
+     *
+     * @param hashTable scratch space of {@link #HASH_TABLE_SIZE} entries, reused between calls
+     * @return the compressed length, or -1 if it does not fit in maxLength bytes
+     */
+    public static int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+            int maxLength, int[] hashTable) {
+        final int end = srcOffset + length;
+        final int matchLimit = end - LAST_LITERALS;
+        final int mfLimit = end - MF_LIMIT;
+        final int dstEnd = dstOffset + maxLength;
+        int anchor = srcOffset;
+        int ip = srcOffset;
+        int op = dstOffset;
+
+        if (length >= MF_LIMIT + 1) {
+            Arrays.fill(hashTable, -1);
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = hashTable[h];
+                hashTable[h] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                /* extend the match backwards over pending literals */
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+                int literals = ip - anchor;
+                if (op + 1 + literals / 255 + 1 + literals + 2 + matchLength / 255 + 1 > dstEnd) {
+                    return -1;
+                }
+                int token = op++;
+                op = writeLength(dst, op, token, literals, 4);
+                System.arraycopy(src, anchor, dst, op, literals);
+                op += literals;
+                dst[op++] = (byte) (ip - ref);
+                dst[op++] = (byte) ((ip - ref) >>> 8);
+                op = writeLength(dst, op, token, matchLength - MIN_MATCH, 0);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        int literals = end - anchor;
+        if (op + 1 + literals / 255 + 1 + literals > dstEnd) {
+            return -1;
+        }
+        int token = op++;
+        op = writeLength(dst, op, token, literals, 4);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        return op - dstOffset;
+    }
+
+    private static int writeLength(byte[] dst, int op, int token, int length, int shift) {
+        int nibble = Math.min(length, 15);
+        dst[token] = (byte) (shift == 4 ? nibble << 4 : (dst[token] & 0xf0) | nibble);
+        if (nibble == 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[op++] = (byte) 255;
+                length -= 255;
+            }
+            dst[op++] = (byte) length;
+        }
+        return op;
+    }
+
+    /**
+     * Decompress one block
+     *
+     * @return the decompressed length
+     * @throws IOException if the block is malformed or does not fit in maxLength bytes
+     */
+    public static int decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+            int maxLength) throws IOException {
+        final int end = srcOffset + length;
+        final int dstEnd = dstOffset + maxLength;
+        int ip = srcOffset;
+        int op = dstOffset;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        if (ip >= end) {
+                            throw new IOException("truncated LZ4 block");
+                        }
+                        b = src[ip++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (ip + literals > end || op + literals > dstEnd) {
+                    throw new IOException("corrupt LZ4 block");
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) {
+                    /* the last sequence has literals only */
+                    break;
+                }
+                if (ip + 2 > end) {
+                    throw new IOException("truncated LZ4 block");
+                }
+                int distance = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int matchLength = token & 0x0f;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        if (ip >= end) {
+                            throw new IOException("truncated LZ4 block");
+                        }
+                        b = src[ip++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - distance;
+                if (distance == 0 || ref < dstOffset || op + matchLength > dstEnd) {
+                    throw new IOException("corrupt LZ4 block");
+                }
+                /* byte by byte, the match may overlap what it produces */
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("corrupt LZ4 block");
+        }
+        return op - dstOffset;
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+/**
+ * NMEA 0183 parser working directly on received bytes
+ *
+ * Feed it whatever the port returns with {@link #feed(byte[], int, int)}; complete sentences
+ * with a valid checksum are decoded into reusable records (GGA, RMC, VTG, GSA, GSV from any
+ * talker) and the {@link Listener} is told which record was updated. Nothing is allocated
+ * after construction: no String, no split(), the records are overwritten by the next
+ * sentence of the same type, so copy out what has to outlive the callback.
+ *
+ * Empty numeric fields read as NaN for doubles and -1 for integers.
+ */
+public class NmeaParser {
+
+    public static final int TYPE_GGA = 0;
+    public static final int TYPE_RMC = 1;
+    public static final int TYPE_VTG = 2;
+    public static final int TYPE_GSA = 3;
+    public static final int TYPE_GSV = 4;
+
+    /* 82 characters by the standard, some receivers go beyond */
+    private static final int MAX_SENTENCE_LENGTH = 128;
+    private static final int MAX_FIELDS = 40;
+
+    public interface Listener {
+        /**
+         * A sentence has been decoded into the record of the given type
+         */
+        void onSentence(int type, NmeaParser parser);
+    }
+
+    public static class Gga {
+        public char talker0, talker1;
+        /** UTC time of day in milliseconds */
+        public int time;
+        public double latitude;
+        public double longitude;
+        /** 0 invalid, 1 GPS, 2 DGPS, 4 RTK fixed, 5 RTK float... */
+        public int fixQuality;
+        public int satellites;
+        public double hdop;
+        /** meters above mean sea level */
+        public double altitude;
+        public double geoidSeparation;
+    }
+
+    public static class Rmc {
+        public char talker0, talker1;
+        public int time;
+        public boolean valid;
+        public double latitude;
+        public double longitude;
+        public double speedKnots;
+        public double course;
+        /** ddmmyy */
+        public int date;
+        public double magneticVariation;
+        /** A autonomous, D differential, E estimated, N not valid, 0 if absent */
+        public char mode;
+    }
+
+    public static class Vtg {
+        public char talker0, talker1;
+        public double courseTrue;
+        public double courseMagnetic;
+        public double speedKnots;
+        public double speedKmh;
+        public char mode;
+    }
+
+    public static class Gsa {
+        public char talker0, talker1;
+        /** A automatic, M manual */
+        public char selectionMode;
+        /** 1 no fix, 2 2D, 3 3D */
+        public int fixType;
+        public final int[] prn = new int[12];
+        public int prnCount;
+        public double pdop;
+        public double hdop;
+        public double vdop;
+    }
+
+    public static class Gsv {
+        public char talker0, talker1;
+        public int totalMessages;
+        public int messageNumber;
+        public int satellitesInView;
+        /** number of valid entries below, up to 4 */
+        public int count;
+        public final int[] prn = new int[4];
+        public final int[] elevation = new int[4];
+        public final int[] azimuth = new int[4];
+        /** -1 when not tracked */
+        public final int[] snr = new int[4];
+    }
+
+    private final Listener mListener;
+    private final byte[] mSentence = new byte[MAX_SENTENCE_LENGTH];
+    private final int[] mFieldStart = new int[MAX_FIELDS];
+    private final int[] mFieldEnd = new int[MAX_FIELDS];
+    private int mFieldCount;
+    private int mLength;
+    private boolean mInSentence;
+
+    private final Gga mGga = new Gga();
+    private final Rmc mRmc = new Rmc();
+    private final Vtg mVtg = new Vtg();
+    private final Gsa mGsa = new Gsa();
+    private final Gsv mGsv = new Gsv();
+
+    private long mSentenceCount;
+    private long mChecksumErrors;
+    private long mUnsupportedCount;
+
+    public NmeaParser(Listener listener) {
+        mListener = listener;
+    }
+
+    public Gga getGga() {
+        return mGga;
+    }
+
+    public Rmc getRmc() {
+        return mRmc;
+    }
+
+    public Vtg getVtg() {
+        return mVtg;
+    }
+
+    public Gsa getGsa() {
+        return mGsa;
+    }
+
+    public Gsv getGsv() {
+        return mGsv;
+    }
+
+    public long getSentenceCount() {
+        return mSentenceCount;
+    }
+
+    public long getChecksumErrorCount() {
+        return mChecksumErrors;
+    }
+
+    public long getUnsupportedCount() {
+        return mUnsupportedCount;
+    }
+
+    public void feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (b == '$') {
+                mInSentence = true;
+                mLength = 0;
+            } else if (!mInSentence) {
+                continue;
+            } else if (b == '\r' || b == '\n') {
+                mInSentence = false;
+                parseSentence();
+            } else if (mLength < mSentence.length) {
+                mSentence[mLength++] = b;
+            } else {
+                /* too long, wait for the next '$' */
+                mInSentence = false;
+            }
+        }
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private void parseSentence() {
+        /* body * checksum */
+        int star = -1;
+        int checksum = 0;
+        for (int i = 0; i < mLength; i++) {
+            if (mSentence[i] == '*') {
+                star = i;
+                break;
+            }
+            checksum ^= mSentence[i];
+        }
+        if (star < 0 || star + 3 > mLength
+                || hexValue(mSentence[star + 1]) < 0 || hexValue(mSentence[star + 2]) < 0
+                || (hexValue(mSentence[star + 1]) << 4 | hexValue(mSentence[star + 2])) != (checksum & 0xff)) {
+            mChecksumErrors++;
+            return;
+        }
+
+        mFieldCount = 0;
+        int start = 0;
+        for (int i = 0; i <= star && mFieldCount < MAX_FIELDS; i++) {
+            if (i == star || mSentence[i] == ',') {
+                mFieldStart[mFieldCount] = start;
+                mFieldEnd[mFieldCount] = i;
+                mFieldCount++;
+                start = i + 1;
+            }
+        }
+
+        /* address field: 2-character talker and 3-character formatter, e.g. GPGGA, GNRMC */
+        if (mFieldEnd[0] - mFieldStart[0] != 5) {
+            mUnsupportedCount++;
+            return;
+        }
+        mSentenceCount++;
+        char t0 = (char) mSentence[0];
+        char t1 = (char) mSentence[1];
+        byte f0 = mSentence[2];
+        byte f1 = mSentence[3];
+        byte f2 = mSentence[4];
+        if (f0 == 'G' && f1 == 'G' && f2 == 'A') {
+            parseGga(t0, t1);
+        } else if (f0 == 'R' && f1 == 'M' && f2 == 'C') {
+            parseRmc(t0, t1);
+        } else if (f0 == 'V' && f1 == 'T' && f2 == 'G') {
+            parseVtg(t0, t1);
+        } else if (f0 == 'G' && f1 == 'S' && f2 == 'A') {
+            parseGsa(t0, t1);
+        } else if (f0 == 'G' && f1 == 'S' && f2 == 'V') {
+            parseGsv(t0, t1);
+        } else {
+            mUnsupportedCount++;
+        }
+    }
+
+    private void parseGga(char t0, char t1) {
+        Gga r = mGga;
+        r.talker0 = t0;
+        r.talker1 = t1;
+        r.time = time(1);
+        r.latitude = coordinate(2, 3);
+        r.longitude = coordinate(4, 5);
+        r.fixQuality = integer(6);
+        r.satellites = integer(7);
+        r.hdop = number(8);
+        r.altitude = number(9);
+        r.geoidSeparation = number(11);
+        mListener.onSentence(TYPE_GGA, this);
+    }
+
+    private void parseRmc(char t0, char t1) {
+        Rmc r = mRmc;
+        r.talker0 = t0;
+        r.talker1 = t1;
+        r.time = time(1);
+        r.valid = character(2) == 'A';
+        r.latitude = coordinate(3, 4);
+        r.longitude = coordinate(5, 6);
+        r.speedKnots = number(7);
+        r.course = number(8);
+        r.date = integer(9);
+        r.magneticVariation = number(10);
+        if (character(11) == 'W') {
+            r.magneticVariation = -r.magneticVariation;
+        }
+        r.mode = character(12);
+        mListener.onSentence(TYPE_RMC, this);
+    }
+
+    private void parseVtg(char t0, char t1) {
+        Vtg r = mVtg;
+        r.talker0 = t0;
+        r.talker1 = t1;
+        r.courseTrue = number(1);
+        r.courseMagnetic = number(3);
+        r.speedKnots = number(5);
+        r.speedKmh = number(7);
+        r.mode = character(9);
+        mListener.onSentence(TYPE_VTG, this);
+    }
+
+    private void parseGsa(char t0, char t1) {
+        Gsa r = mGsa;
+        r.talker0 = t0;
+        r.talker1 = t1;
+        r.selectionMode = character(1);
+        r.fixType = integer(2);
+        r.prnCount = 0;
+        for (int i = 3; i < 15; i++) {
+            int prn = integer(i);
+            if (prn >= 0) {
+                r.prn[r.prnCount++] = prn;
+            }
+        }
+        r.pdop = number(15);
+        r.hdop = number(16);
+        r.vdop = number(17);
+        mListener.onSentence(TYPE_GSA, this);
+    }
+
+    private void parseGsv(char t0, char t1) {
+        Gsv r = mGsv;
+        r.talker0 = t0;
+        r.talker1 = t1;
+        r.totalMessages = integer(1);
+        r.messageNumber = integer(2);
+        r.satellitesInView = integer(3);
+        r.count = 0;
+        /* NMEA 4.10 may append a signal id, hence the bound on whole groups of 4 */
+        for (int f = 4; f + 3 < mFieldCount && r.count < 4; f += 4) {
+            int prn = integer(f);
+            if (prn < 0) {
+                continue;
+            }
+            r.prn[r.count] = prn;
+            r.elevation[r.count] = integer(f + 1);
+            r.azimuth[r.count] = integer(f + 2);
+            r.snr[r.count] = integer(f + 3);
+            r.count++;
+        }
+        mListener.onSentence(TYPE_GSV, this);
+    }
+
+    private char character(int field) {
+        if (field >= mFieldCount || mFieldEnd[field] == mFieldStart[field]) {
+            return 0;
+        }
+        return (char) mSentence[mFieldStart[field]];
+    }
+
+    private int integer(int field) {
+        if (field >= mFieldCount || mFieldEnd[field] == mFieldStart[field]) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = mFieldStart[field]; i < mFieldEnd[field]; i++) {
+            int d = mSentence[i] - '0';
+            if (d < 0 || d > 9) {
+                break;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private double number(int field) {
+        if (field >= mFieldCount || mFieldEnd[field] == mFieldStart[field]) {
+            return Double.NaN;
+        }
+        int i = mFieldStart[field];
+        int end = mFieldEnd[field];
+        boolean negative = false;
+        if (mSentence[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        long scale = 1;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte c = mSentence[i];
+            if (c == '.') {
+                fraction = true;
+            } else if (c >= '0' && c <= '9') {
+                /* beyond 17 digits the precision is gone anyway */
+                if (mantissa < 100000000000000000L) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction) {
+                        scale *= 10;
+                    }
+                }
+            } else {
+                return Double.NaN;
+            }
+        }
+        double value = (double) mantissa / scale;
+        return negative ? -value : value;
+    }
+
+    /**
+     * hhmmss.sss to milliseconds of the day, -1 if empty
+     */
+    private int time(int field) {
+        double t = number(field);
+        if (Double.isNaN(t)) {
+            return -1;
+        }
+        int hhmmss = (int) t;
+        int millis = (int) Math.round((t - hhmmss) * 1000);
+        return ((hhmmss / 10000) * 3600 + (hhmmss / 100 % 100) * 60 + hhmmss % 100) * 1000 + millis;
+    }
+
+    /**
+     * (d)ddmm.mmmm plus hemisphere to signed decimal degrees
+     */
+    private double coordinate(int field, int hemisphereField) {
+        double v = number(field);
+        if (Double.isNaN(v)) {
+            return v;
+        }
+        int degrees = (int) (v / 100);
+        double result = degrees + (v - degrees * 100) / 60;
+        char h = character(hemisphereField);
+        return (h == 'S' || h == 'W') ? -result : result;
+    }
+}
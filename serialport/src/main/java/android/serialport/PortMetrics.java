@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of one port, attached with {@link SerialPort#setMetrics(PortMetrics)}
+ *
+ * The port's streams count read and write calls and bytes; {@link SerialPortHandler} adds
+ * command round trips, timeouts, flushes, the depth of its message queue and the polls of
+ * its reader threads, {@link UartErrorMonitor} the kernel's UART error counters. Counters are
+ * atomic and histograms take a lock that is uncontended since each is fed by one thread at a
+ * time, so recording stays in the tens of nanoseconds. The queue depth, which every thread
+ * sending to the handler records, goes to an array of atomic counters instead and becomes a
+ * histogram in the snapshot.
+ *
+ * {@link #snapshot(boolean)} copies everything, optionally starting a new interval, and
+ * {@link Snapshot#toJson()} exports it.
+ */
+public class PortMetrics {
+
+    private final AtomicLong mRxBytes = new AtomicLong();
+    private final AtomicLong mRxCalls = new AtomicLong();
+    private final AtomicLong mTxBytes = new AtomicLong();
+    private final AtomicLong mTxCalls = new AtomicLong();
+    private final AtomicLong mCommands = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mFlushes = new AtomicLong();
+    private final AtomicLong mReaderPolls = new AtomicLong();
+    private final AtomicLong mReaderWakeups = new AtomicLong();
+    private final AtomicLong mUartFrame = new AtomicLong();
+    private final AtomicLong mUartOverrun = new AtomicLong();
+    private final AtomicLong mUartParity = new AtomicLong();
+    private final AtomicLong mUartBrk = new AtomicLong();
+    private final AtomicLong mUartBufOverrun = new AtomicLong();
+    private final Histogram mRxChunkSizes = new Histogram();
+    private final Histogram mTxChunkSizes = new Histogram();
+    /* microseconds */
+    private final Histogram mCommandRtt = new Histogram();
+    /* depth i counted at i, the last bucket counts the deeper ones, whose max is kept */
+    private static final int QUEUE_DEPTH_BUCKETS = 256;
+    private final AtomicLongArray mQueueDepths = new AtomicLongArray(QUEUE_DEPTH_BUCKETS);
+    private final AtomicLong mQueueDepthMax = new AtomicLong();
+    private volatile long mSince = System.currentTimeMillis();
+
+    /**
+     * A read call returned n, 0 or less counts the call only
+     */
+    public void onRead(int n) {
+        mRxCalls.incrementAndGet();
+        if (n > 0) {
+            mRxBytes.addAndGet(n);
+            mRxChunkSizes.record(n);
+        }
+    }
+
+    public void onWrite(int n) {
+        mTxCalls.incrementAndGet();
+        mTxBytes.addAndGet(n);
+        mTxChunkSizes.record(n);
+    }
+
+    /**
+     * A command got its response after rttNanos
+     */
+    public void onCommand(long rttNanos) {
+        mCommands.incrementAndGet();
+        mCommandRtt.record(rttNanos / 1000);
+    }
+
+    public void onTimeout() {
+        mTimeouts.incrementAndGet();
+    }
+
+    public void onFlush() {
+        mFlushes.incrementAndGet();
+    }
+
+    /**
+     * Messages waiting when one more was queued
+     */
+    public void onQueueDepth(int depth) {
+        int last = QUEUE_DEPTH_BUCKETS - 1;
+        if (depth >= last) {
+            long max = mQueueDepthMax.get();
+            while (depth > max && !mQueueDepthMax.compareAndSet(max, depth)) {
+                /* another sender raised it meanwhile */
+                max = mQueueDepthMax.get();
+            }
+        }
+        mQueueDepths.incrementAndGet(Math.max(0, Math.min(depth, last)));
+    }
+
+    /**
+     * A reader checked for input polls times before it read, woken, or gave up
+     */
+    public void onReaderPoll(long polls, boolean woken) {
+        mReaderPolls.addAndGet(polls);
+        if (woken) {
+            mReaderWakeups.incrementAndGet();
+        }
+    }
+
+    /**
+     * Errors the UART driver counted during an interval
+     */
+    public void onUartCounters(UartCounters delta) {
+        mUartFrame.addAndGet(delta.get(UartCounters.FRAME));
+        mUartOverrun.addAndGet(delta.get(UartCounters.OVERRUN));
+        mUartParity.addAndGet(delta.get(UartCounters.PARITY));
+        mUartBrk.addAndGet(delta.get(UartCounters.BRK));
+        mUartBufOverrun.addAndGet(delta.get(UartCounters.BUF_OVERRUN));
+    }
+
+    /**
+     * Copy all metrics; with reset, the next snapshot covers only what happens from now on
+     */
+    public Snapshot snapshot(boolean reset) {
+        Snapshot s = new Snapshot();
+        long now = System.currentTimeMillis();
+        s.since = mSince;
+        s.until = now;
+        s.rxBytes = take(mRxBytes, reset);
+        s.rxCalls = take(mRxCalls, reset);
+        s.txBytes = take(mTxBytes, reset);
+        s.txCalls = take(mTxCalls, reset);
+        s.commands = take(mCommands, reset);
+        s.timeouts = take(mTimeouts, reset);
+        s.flushes = take(mFlushes, reset);
+        s.readerPolls = take(mReaderPolls, reset);
+        s.readerWakeups = take(mReaderWakeups, reset);
+        s.uartFrame = take(mUartFrame, reset);
+        s.uartOverrun = take(mUartOverrun, reset);
+        s.uartParity = take(mUartParity, reset);
+        s.uartBrk = take(mUartBrk, reset);
+        s.uartBufOverrun = take(mUartBufOverrun, reset);
+        s.rxChunkSizes = take(mRxChunkSizes, reset);
+        s.txChunkSizes = take(mTxChunkSizes, reset);
+        s.commandRttUs = take(mCommandRtt, reset);
+        s.queueDepth = takeQueueDepth(reset);
+        if (reset) {
+            mSince = now;
+        }
+        return s;
+    }
+
+    private static long take(AtomicLong counter, boolean reset) {
+        return reset ? counter.getAndSet(0) : counter.get();
+    }
+
+    private Histogram takeQueueDepth(boolean reset) {
+        Histogram h = new Histogram();
+        int last = QUEUE_DEPTH_BUCKETS - 1;
+        for (int i = 0; i < last; i++) {
+            h.record(i, reset ? mQueueDepths.getAndSet(i, 0) : mQueueDepths.get(i));
+        }
+        long deeper = reset ? mQueueDepths.getAndSet(last, 0) : mQueueDepths.get(last);
+        h.record(take(mQueueDepthMax, reset), deeper);
+        return h;
+    }
+
+    private static Histogram take(Histogram h, boolean reset) {
+        synchronized (h) {
+            Histogram copy = h.copy();
+            if (reset) {
+                h.reset();
+            }
+            return copy;
+        }
+    }
+
+    public static class Snapshot {
+        /* wall clock milliseconds covered */
+        public long since;
+        public long until;
+        public long rxBytes;
+        public long rxCalls;
+        public long txBytes;
+        public long txCalls;
+        public long commands;
+        public long timeouts;
+        public long flushes;
+        public long readerPolls;
+        public long readerWakeups;
+        /* kernel UART counters, only with a UartErrorMonitor running */
+        public long uartFrame;
+        public long uartOverrun;
+        public long uartParity;
+        public long uartBrk;
+        public long uartBufOverrun;
+        public Histogram rxChunkSizes;
+        public Histogram txChunkSizes;
+        public Histogram commandRttUs;
+        public Histogram queueDepth;
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "{\"since\":%d,\"until\":%d,\"rx_bytes\":%d,"
+                            + "\"rx_calls\":%d,\"tx_bytes\":%d,\"tx_calls\":%d,\"commands\":%d,"
+                            + "\"timeouts\":%d,\"flushes\":%d,\"reader_polls\":%d,"
+                            + "\"reader_wakeups\":%d,\"uart_frame\":%d,\"uart_overrun\":%d,"
+                            + "\"uart_parity\":%d,\"uart_brk\":%d,\"uart_buf_overrun\":%d",
+                    since, until, rxBytes, rxCalls, txBytes, txCalls, commands, timeouts, flushes,
+                    readerPolls, readerWakeups, uartFrame, uartOverrun, uartParity, uartBrk,
+                    uartBufOverrun));
+            appendHistogram(sb, "rx_chunk_size", rxChunkSizes);
+            appendHistogram(sb, "tx_chunk_size", txChunkSizes);
+            appendHistogram(sb, "command_rtt_us", commandRttUs);
+            appendHistogram(sb, "queue_depth", queueDepth);
+            return sb.append('}').toString();
+        }
+
+        static void appendHistogram(StringBuilder sb, String name, Histogram h) {
+            sb.append(String.format(Locale.US, ",\"%s\":{\"count\":%d,\"min\":%d,\"mean\":%.1f,"
+                            + "\"p50\":%d,\"p90\":%d,\"p99\":%d,\"p99_9\":%d,\"max\":%d}",
+                    name, h.getCount(), h.getMin(), h.getMean(), h.getValueAtPercentile(50),
+                    h.getValueAtPercentile(90), h.getValueAtPercentile(99),
+                    h.getValueAtPercentile(99.9), h.getMax()));
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receiving thread with one reusable, adaptively sized buffer
+ *
+ * The buffer starts at {@link #MIN_BUFFER_SIZE}. A read that fills it means more was waiting
+ * in the driver, so it doubles, up to what the line delivers in {@link #BURST_WINDOW_MS} at
+ * the port's baud rate (a few KB at 115200 and above). After {@link #SHRINK_AFTER_READS} reads
+ * in a row that use no more than a quarter of it, it halves again, so idle consoles settle back
+ * at 64 bytes while bulk transfers are read in a handful of calls per burst instead of hundreds.
+ *
+ * The buffer passed to {@link Callback#onDataReceived} is reused for the next read: consume
+ * or copy the bytes before returning.
+ */
+public class ReadLoop {
+
+    private static final String TAG = "ReadLoop";
+
+    public static final int MIN_BUFFER_SIZE = 64;
+    public static final int MAX_BUFFER_SIZE = 16 * 1024;
+    /* the largest buffer holds this much of the line */
+    public static final int BURST_WINDOW_MS = 100;
+    /* small reads in a row before the buffer halves */
+    public static final int SHRINK_AFTER_READS = 16;
+    /* chunk size histogram buckets: 1, 2-3, 4-7, ..., 16K and more */
+    public static final int HISTOGRAM_BUCKETS = 15;
+
+    public interface Callback {
+        /**
+         * Called on the read thread; buffer is only valid until this returns
+         */
+        void onDataReceived(byte[] buffer, int size);
+
+        /**
+         * The read failed and the loop stopped, typically because the port was closed
+         */
+        void onReadError(IOException e);
+    }
+
+    private final InputStream mInputStream;
+    private final Callback mCallback;
+    private final int mMaxBufferSize;
+    private byte[] mBuffer = new byte[MIN_BUFFER_SIZE];
+    /* reads in a row that used at most a quarter of the buffer, read thread only */
+    private int mSmallReads;
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    /* metrics, written by the read thread only */
+    private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+    private volatile long mReadCount;
+    private volatile long mByteCount;
+    private volatile long mFullReadCount;
+    private volatile int mMaxChunkSize;
+
+    public ReadLoop(SerialPort port, Callback callback) {
+        this(port.getInputStream(), port.getBaudrate(), callback);
+    }
+
+    /**
+     * @param baudrate bounds the buffer size, 0 if unknown
+     */
+    public ReadLoop(InputStream in, int baudrate, Callback callback) {
+        mInputStream = in;
+        mCallback = callback;
+        mMaxBufferSize = maxBufferSize(baudrate);
+    }
+
+    /* a power of two holding BURST_WINDOW_MS of 10-bit characters */
+    static int maxBufferSize(int baudrate) {
+        if (baudrate <= 0) {
+            return MAX_BUFFER_SIZE;
+        }
+        long burst = (long) baudrate / 10 * BURST_WINDOW_MS / 1000;
+        int size = MIN_BUFFER_SIZE;
+        while (size < burst && size < MAX_BUFFER_SIZE) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    public void start() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "ReadLoop");
+        mThread.start();
+    }
+
+    /**
+     * Stop delivering; a read in progress returns when data arrives or the port is closed
+     */
+    public void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    public int getBufferSize() {
+        return mBuffer.length;
+    }
+
+    public int getMaxBufferSize() {
+        return mMaxBufferSize;
+    }
+
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /* reads that filled the buffer, i.e. more was probably waiting */
+    public long getFullReadCount() {
+        return mFullReadCount;
+    }
+
+    public int getMaxChunkSize() {
+        return mMaxChunkSize;
+    }
+
+    public double getAverageChunkSize() {
+        long reads = mReadCount;
+        return reads == 0 ? 0 : (double) mByteCount / reads;
+    }
+
+    /**
+     * Chunk counts per size bucket, bucket i holds sizes 2^i to 2^(i+1)-1
+     */
+    public long[] getChunkHistogram() {
+        synchronized (mHistogram) {
+            return mHistogram.clone();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "reads=" + mReadCount + " bytes=" + mByteCount + " avg=" + (int) getAverageChunkSize()
+                + " max=" + mMaxChunkSize + " full=" + mFullReadCount + " buffer=" + mBuffer.length;
+    }
+
+    private void loop() {
+        while (!mStopped) {
+            byte[] buffer = mBuffer;
+            int size;
+            try {
+                size = mInputStream.read(buffer, 0, buffer.length);
+            } catch (IOException e) {
+                if (!mStopped) {
+                    mCallback.onReadError(e);
+                }
+                break;
+            }
+            if (size < 0) {
+                if (!mStopped) {
+                    mCallback.onReadError(new IOException("end of stream"));
+                }
+                break;
+            }
+            if (size == 0) {
+                continue;
+            }
+            record(size, buffer.length);
+            if (!mStopped) {
+                mCallback.onDataReceived(buffer, size);
+            }
+            if (size == buffer.length && buffer.length < mMaxBufferSize) {
+                /* a burst, the next read takes twice as much */
+                mBuffer = new byte[buffer.length << 1];
+                mSmallReads = 0;
+                Log.v(TAG, "buffer grows to " + mBuffer.length);
+            } else if (size > buffer.length >> 2) {
+                mSmallReads = 0;
+            } else if (buffer.length > MIN_BUFFER_SIZE && ++mSmallReads >= SHRINK_AFTER_READS) {
+                /* the burst is over */
+                mBuffer = new byte[buffer.length >> 1];
+                mSmallReads = 0;
+                Log.v(TAG, "buffer shrinks to " + mBuffer.length);
+            }
+        }
+        Log.v(TAG, "read loop exits, " + this);
+    }
+
+    private void record(int size, int capacity) {
+        int bucket = 31 - Integer.numberOfLeadingZeros(size);
+        synchronized (mHistogram) {
+            mHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+        }
+        mReadCount++;
+        mByteCount += size;
+        if (size == capacity) {
+            mFullReadCount++;
+        }
+        if (size > mMaxChunkSize) {
+            mMaxChunkSize = size;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A selective-repeat sliding window link layer on top of a serial port
+ *
+ * Every payload travels in an HDLC-like frame (see {@link HdlcFramer}) with a 3-byte header:
+ *
+ *   type | seq | ack
+ *
+ * where seq is the 8-bit sequence number of a DATA frame and ack is the cumulative
+ * acknowledgement, the next sequence number the sender of the frame expects to receive.
+ * Acknowledgements are piggybacked on DATA frames and otherwise sent as ACK frames, one per
+ * chunk read from the port rather than one per frame. A receiver seeing a gap asks for the
+ * missing frame with SREJ; unacknowledged frames are also retransmitted one by one on
+ * timeout, never the whole window (go-back-N).
+ *
+ * Up to the window size of frames may be in flight, so the line stays busy while the
+ * acknowledgements travel back. Payloads are delivered to the {@link Listener} in order,
+ * exactly once, on the reader thread.
+ *
+ * Both peers must use the same window size and maximum payload size. The retransmit timeout
+ * runs from the end of the write of a frame; built on a {@link SerialPort}, the default grows
+ * with the time a window of frames takes on the wire at its baud rate.
+ */
+public class ReliableLink {
+
+    private static final String TAG = "ReliableLink";
+
+    public static final int MAX_WINDOW_SIZE = 127;
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+    public static final int DEFAULT_MAX_PAYLOAD_SIZE = 256;
+    /* without a baud rate, or on top of the wire time with one */
+    public static final int DEFAULT_RETRANSMIT_TIMEOUT_MS = 200;
+    public static final int DEFAULT_MAX_RETRIES = 10;
+
+    private static final int SEQ_SPACE = 256;
+    private static final int HEADER_SIZE = 3;
+
+    private static final byte TYPE_DATA = 0;
+    private static final byte TYPE_ACK = 1;
+    private static final byte TYPE_SREJ = 2;
+
+    /* mTxSentAt of a frame being written, it cannot time out yet */
+    private static final long WRITING = Long.MAX_VALUE;
+
+    public interface Listener {
+        /**
+         * An in-order payload. The buffer is reused once this returns.
+         */
+        void onReceive(byte[] data, int offset, int length);
+
+        /**
+         * A frame was retransmitted too many times, the link is closed.
+         */
+        void onLinkFailure();
+    }
+
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final Listener mListener;
+    private final int mWindowSize;
+    private final int mMaxPayloadSize;
+    private int mRetransmitTimeoutMs = DEFAULT_RETRANSMIT_TIMEOUT_MS;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    /* sender side, guarded by this */
+    private final byte[][] mTxPayload;
+    private final int[] mTxLength = new int[SEQ_SPACE];
+    private final long[] mTxSentAt = new long[SEQ_SPACE];
+    private final int[] mTxRetries = new int[SEQ_SPACE];
+    private final boolean[] mTxOutstanding = new boolean[SEQ_SPACE];
+    private int mSendBase;
+    private int mNextSeq;
+    private boolean mClosed;
+    private long mRetransmitCount;
+
+    /* receiver side, owned by the reader thread */
+    private final byte[][] mRxPayload;
+    private final int[] mRxLength = new int[SEQ_SPACE];
+    private final boolean[] mRxHave = new boolean[SEQ_SPACE];
+    private final boolean[] mRxSrejSent = new boolean[SEQ_SPACE];
+    private volatile int mRecvBase;
+    private volatile boolean mAckPending;
+
+    /* the wire, guarded by mWriteLock */
+    private final Object mWriteLock = new Object();
+    private final byte[] mTxFrame;
+    private final byte[] mTxWire;
+
+    private Thread mReaderThread;
+    private Thread mRetransmitThread;
+
+    public ReliableLink(SerialPort port, Listener listener) {
+        this(port, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_PAYLOAD_SIZE, listener);
+    }
+
+    public ReliableLink(SerialPort port, int windowSize, int maxPayloadSize, Listener listener) {
+        this(port.getInputStream(), port.getOutputStream(), windowSize, maxPayloadSize, listener);
+        mRetransmitTimeoutMs = defaultRetransmitTimeout(port.getBaudrate(), windowSize, maxPayloadSize);
+    }
+
+    public ReliableLink(InputStream in, OutputStream out, int windowSize, int maxPayloadSize,
+            Listener listener) {
+        if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE) {
+            /* selective repeat needs the window to be at most half of the sequence space */
+            throw new IllegalArgumentException("window size must be 1.." + MAX_WINDOW_SIZE);
+        }
+        mInputStream = in;
+        mOutputStream = out;
+        mListener = listener;
+        mWindowSize = windowSize;
+        mMaxPayloadSize = maxPayloadSize;
+        mTxPayload = new byte[SEQ_SPACE][];
+        mRxPayload = new byte[SEQ_SPACE][];
+        mTxFrame = new byte[HEADER_SIZE + maxPayloadSize];
+        mTxWire = new byte[HdlcFramer.maxEncodedLength(HEADER_SIZE + maxPayloadSize)];
+    }
+
+    /**
+     * {@link #DEFAULT_RETRANSMIT_TIMEOUT_MS} plus the wire time of windowSize + 1 frames: a
+     * written frame may still wait behind a window of frames in the driver, and its ack
+     * behind a frame the peer is sending
+     */
+    public static int defaultRetransmitTimeout(int baudrate, int windowSize, int maxPayloadSize) {
+        if (baudrate <= 0) {
+            return DEFAULT_RETRANSMIT_TIMEOUT_MS;
+        }
+        /* flags, header, payload and FCS at 10 bits per character, without escapes */
+        long frameBits = (2 + HEADER_SIZE + maxPayloadSize + 2) * 10L;
+        return (int) (DEFAULT_RETRANSMIT_TIMEOUT_MS + frameBits * (windowSize + 1) * 1000 / baudrate);
+    }
+
+    public void setRetransmitTimeout(int timeout_ms) {
+        mRetransmitTimeoutMs = timeout_ms;
+    }
+
+    public int getRetransmitTimeout() {
+        return mRetransmitTimeoutMs;
+    }
+
+    public void setMaxRetries(int retries) {
+        mMaxRetries = retries;
+    }
+
+    public synchronized void start() {
+        if (mReaderThread != null) {
+            return;
+        }
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "ReliableLinkReader");
+        mRetransmitThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                retransmitLoop();
+            }
+        }, "ReliableLinkRetransmit");
+        mReaderThread.start();
+        mRetransmitThread.start();
+    }
+
+    /**
+     * Stop the link, blocked senders get an IOException.
+     *
+     * The reader thread leaves its blocking read() on the next received byte or when the
+     * serial port is closed.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        if (mReaderThread != null) {
+            mReaderThread.interrupt();
+        }
+        if (mRetransmitThread != null) {
+            mRetransmitThread.interrupt();
+        }
+    }
+
+    /**
+     * Queue a payload, blocking while the window is full
+     */
+    public void send(byte[] data, int offset, int length) throws IOException, InterruptedException {
+        if (length > mMaxPayloadSize) {
+            throw new IllegalArgumentException("payload larger than " + mMaxPayloadSize);
+        }
+        int seq;
+        synchronized (this) {
+            while (!mClosed && ((mNextSeq - mSendBase) & 0xff) >= mWindowSize) {
+                wait();
+            }
+            if (mClosed) {
+                throw new IOException("link closed");
+            }
+            seq = mNextSeq;
+            if (mTxPayload[seq] == null) {
+                mTxPayload[seq] = new byte[mMaxPayloadSize];
+            }
+            System.arraycopy(data, offset, mTxPayload[seq], 0, length);
+            mTxLength[seq] = length;
+            mTxRetries[seq] = 0;
+            mTxSentAt[seq] = WRITING;
+            mTxOutstanding[seq] = true;
+            mNextSeq = (seq + 1) & 0xff;
+        }
+        /*
+         * The slot cannot be reused before it is acknowledged and the sequence numbers wrap,
+         * so it is safe to read it outside of the lock.
+         */
+        transmitData(seq);
+    }
+
+    public void send(byte[] data) throws IOException, InterruptedException {
+        send(data, 0, data.length);
+    }
+
+    /**
+     * Wait until every queued payload is acknowledged
+     *
+     * @return false on timeout
+     */
+    public synchronized boolean awaitAcknowledged(long timeout_ms) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        while (!mClosed && mSendBase != mNextSeq) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        if (mClosed && mSendBase != mNextSeq) {
+            throw new IOException("link closed");
+        }
+        return true;
+    }
+
+    public synchronized int getOutstandingCount() {
+        return (mNextSeq - mSendBase) & 0xff;
+    }
+
+    public synchronized long getRetransmitCount() {
+        return mRetransmitCount;
+    }
+
+    /**
+     * Write a DATA frame whose mTxSentAt is WRITING; the timeout starts once write() returns,
+     * not while the frame waits for the line behind others
+     */
+    private void transmitData(int seq) throws IOException {
+        synchronized (mWriteLock) {
+            int length = mTxLength[seq];
+            mTxFrame[0] = TYPE_DATA;
+            mTxFrame[1] = (byte) seq;
+            /*
+             * the piggybacked ack makes a separate one unnecessary; cleared before mRecvBase is
+             * read, so an advance in between leaves it set for the reader's own ack
+             */
+            mAckPending = false;
+            mTxFrame[2] = (byte) mRecvBase;
+            System.arraycopy(mTxPayload[seq], 0, mTxFrame, HEADER_SIZE, length);
+            try {
+                writeFrame(HEADER_SIZE + length);
+            } finally {
+                synchronized (this) {
+                    mTxSentAt[seq] = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    private void transmitControl(byte type, int seq) throws IOException {
+        synchronized (mWriteLock) {
+            mTxFrame[0] = type;
+            mTxFrame[1] = (byte) seq;
+            if (type == TYPE_ACK) {
+                mAckPending = false;
+            }
+            mTxFrame[2] = (byte) mRecvBase;
+            writeFrame(HEADER_SIZE);
+        }
+    }
+
+    private void writeFrame(int length) throws IOException {
+        int n = HdlcFramer.encode(mTxFrame, 0, length, mTxWire, 0);
+        mOutputStream.write(mTxWire, 0, n);
+    }
+
+    private void onAck(int ack) {
+        synchronized (this) {
+            int acked = (ack - mSendBase) & 0xff;
+            int outstanding = (mNextSeq - mSendBase) & 0xff;
+            if (acked == 0 || acked > outstanding) {
+                /* duplicate or stale */
+                return;
+            }
+            for (int i = 0; i < acked; i++) {
+                mTxOutstanding[(mSendBase + i) & 0xff] = false;
+            }
+            mSendBase = ack;
+            notifyAll();
+        }
+    }
+
+    private void onData(int seq, byte[] frame, int offset, int length) throws IOException {
+        int recvBase = mRecvBase;
+        int distance = (seq - recvBase) & 0xff;
+        /* anything outside the window is a duplicate of a delivered frame, just ack again */
+        mAckPending = true;
+        if (distance >= mWindowSize || length > mMaxPayloadSize) {
+            return;
+        }
+        if (!mRxHave[seq]) {
+            if (mRxPayload[seq] == null) {
+                mRxPayload[seq] = new byte[mMaxPayloadSize];
+            }
+            System.arraycopy(frame, offset, mRxPayload[seq], 0, length);
+            mRxLength[seq] = length;
+            mRxHave[seq] = true;
+        }
+        if (distance == 0) {
+            while (mRxHave[recvBase]) {
+                mListener.onReceive(mRxPayload[recvBase], 0, mRxLength[recvBase]);
+                mRxHave[recvBase] = false;
+                mRxSrejSent[recvBase] = false;
+                recvBase = (recvBase + 1) & 0xff;
+            }
+            mRecvBase = recvBase;
+            /* again after the advance, in case a sender cleared it while reading the old base */
+            mAckPending = true;
+        } else if (!mRxSrejSent[recvBase]) {
+            /* a gap, ask for the first missing frame once */
+            mRxSrejSent[recvBase] = true;
+            transmitControl(TYPE_SREJ, recvBase);
+        }
+    }
+
+    private void onRetransmitRequest(int seq) throws IOException {
+        synchronized (this) {
+            if (!mTxOutstanding[seq]) {
+                return;
+            }
+            mTxSentAt[seq] = WRITING;
+            mRetransmitCount++;
+        }
+        transmitData(seq);
+    }
+
+    private void readLoop() {
+        HdlcFramer.Decoder decoder = new HdlcFramer.Decoder(HEADER_SIZE + mMaxPayloadSize,
+                new HdlcFramer.FrameListener() {
+                    @Override
+                    public void onFrame(byte[] frame, int length) {
+                        if (length < HEADER_SIZE) {
+                            return;
+                        }
+                        int seq = frame[1] & 0xff;
+                        onAck(frame[2] & 0xff);
+                        try {
+                            switch (frame[0]) {
+                                case TYPE_DATA:
+                                    onData(seq, frame, HEADER_SIZE, length - HEADER_SIZE);
+                                    break;
+                                case TYPE_SREJ:
+                                    onRetransmitRequest(seq);
+                                    break;
+                                default:
+                                    break;
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+        byte[] buffer = new byte[HdlcFramer.maxEncodedLength(HEADER_SIZE + mMaxPayloadSize)];
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                int n = mInputStream.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                decoder.feed(buffer, 0, n);
+                /* one cumulative ack for everything in this chunk */
+                if (mAckPending) {
+                    transmitControl(TYPE_ACK, 0);
+                }
+            } catch (IOException e) {
+                if (!isClosed()) {
+                    e.printStackTrace();
+                }
+                break;
+            }
+        }
+        Log.v(TAG, "reader thread exits");
+    }
+
+    private void retransmitLoop() {
+        int[] due = new int[SEQ_SPACE];
+        while (!Thread.currentThread().isInterrupted()) {
+            int count = 0;
+            boolean failed = false;
+            long timeoutNs = mRetransmitTimeoutMs * 1000000L;
+            try {
+                Thread.sleep(Math.max(1, mRetransmitTimeoutMs / 4));
+            } catch (InterruptedException e) {
+                break;
+            }
+            synchronized (this) {
+                if (mClosed) {
+                    break;
+                }
+                long now = System.nanoTime();
+                for (int seq = mSendBase; seq != mNextSeq; seq = (seq + 1) & 0xff) {
+                    if (mTxOutstanding[seq] && now - mTxSentAt[seq] >= timeoutNs) {
+                        if (++mTxRetries[seq] > mMaxRetries) {
+                            failed = true;
+                            break;
+                        }
+                        mTxSentAt[seq] = WRITING;
+                        mRetransmitCount++;
+                        due[count++] = seq;
+                    }
+                }
+            }
+            if (failed) {
+                Log.e(TAG, "too many retransmissions, closing the link");
+                close();
+                mListener.onLinkFailure();
+                break;
+            }
+            try {
+                for (int i = 0; i < count; i++) {
+                    transmitData(due[i]);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Log.v(TAG, "retransmit thread exits");
+    }
+
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -51,6 +51,9 @@ public class SerialPort {
     private FileDescriptor mFd;
     private FileInputStream mFileInputStream;
     private FileOutputStream mFileOutputStream;
+    private int mBaudrate;
+    private volatile TraceRecorder mTraceRecorder;
+    private volatile PortMetrics mMetrics;
 
     public SerialPort(File device, int baudrate, int flags) throws SecurityException, IOException {
 
@@ -76,8 +79,9 @@ public class SerialPort {
             Log.e(TAG, "native open returns null");
             throw new IOException();
         }
-        mFileInputStream = new FileInputStream(mFd);
-        mFileOutputStream = new FileOutputStream(mFd);
+        mFileInputStream = new PortInputStream(mFd);
+        mFileOutputStream = new PortOutputStream(mFd);
+        mBaudrate = baudrate;
     }
 
     public SerialPort(String devicePath, int baudrate, int flags)
@@ -102,6 +106,135 @@ public class SerialPort {
         return mFileOutputStream;
     }
 
+    public int getBaudrate() {
+        return mBaudrate;
+    }
+
+    /**
+     * Record all traffic through the port's streams, null to stop
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        mTraceRecorder = recorder;
+    }
+
+    public TraceRecorder getTraceRecorder() {
+        return mTraceRecorder;
+    }
+
+    /**
+     * Count traffic through the port's streams, null to stop
+     */
+    public void setMetrics(PortMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public PortMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /* the port's streams, they feed the trace recorder and metrics if there are any */
+    class PortInputStream extends FileInputStream {
+        PortInputStream(FileDescriptor fd) {
+            super(fd);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            PortMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onRead(b >= 0 ? 1 : -1);
+            }
+            TraceRecorder recorder = mTraceRecorder;
+            if (recorder != null && b >= 0) {
+                recorder.record(TraceRecorder.RX, new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            PortMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onRead(n);
+            }
+            TraceRecorder recorder = mTraceRecorder;
+            if (recorder != null && n > 0) {
+                recorder.record(TraceRecorder.RX, b, off, n);
+            }
+            return n;
+        }
+    }
+
+    class PortOutputStream extends FileOutputStream {
+        PortOutputStream(FileDescriptor fd) {
+            super(fd);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            super.write(b);
+            PortMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onWrite(1);
+            }
+            TraceRecorder recorder = mTraceRecorder;
+            if (recorder != null) {
+                recorder.record(TraceRecorder.TX, new byte[] {(byte) b}, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            PortMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onWrite(len);
+            }
+            TraceRecorder recorder = mTraceRecorder;
+            if (recorder != null) {
+                recorder.record(TraceRecorder.TX, b, off, len);
+            }
+        }
+    }
+
+    /**
+     * Change the speed of the open port, once what is queued has been sent
+     *
+     * @return false if the baud rate is not supported
+     */
+    public boolean setBaudrate(int baudrate) {
+        if (!nativeSetBaudrate(baudrate)) {
+            return false;
+        }
+        mBaudrate = baudrate;
+        return true;
+    }
+
+    /**
+     * The kernel's UART counters, including the errors that never show in the byte stream
+     *
+     * @return null if the driver does not keep counters, e.g. pseudo terminals
+     */
+    public UartCounters getUartCounters() {
+        int[] counts = new int[UartCounters.COUNT];
+        if (!getInterruptCounts(counts)) {
+            return null;
+        }
+        return new UartCounters(counts, System.nanoTime());
+    }
+
     // JNI
     private native static FileDescriptor open(String path, int baudrate, int flags);
 
@@ -109,6 +242,23 @@ public class SerialPort {
 
     public native void flush();
 
+    /* wait until all output has been transmitted (tcdrain), IOException if it fails */
+    public native void drain() throws IOException;
+
+    /* bytes not transmitted yet (TIOCOUTQ), -1 on error */
+    public native int getOutputQueueSize();
+
+    /* bytes received but not read yet (TIOCINQ), -1 on error */
+    public native int getInputQueueSize();
+
+    /* bit times per character: start, data, parity and stop bits, -1 on error */
+    public native int getFrameBits();
+
+    private native boolean nativeSetBaudrate(int baudrate);
+
+    /* fill counts with the UART driver's counters (TIOCGICOUNT), false if it has none */
+    native boolean getInterruptCounts(int[] counts);
+
     static {
         System.loadLibrary("serial_port");
     }
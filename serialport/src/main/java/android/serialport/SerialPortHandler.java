@@ -24,6 +24,8 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SerialPortHandler extends SerialPort {
 
@@ -74,6 +76,33 @@ public class SerialPortHandler extends SerialPort {
     public static final int MSG_WHAT_RSP = 0;
     public static final int MSG_WHAT_READ_RESULT = 1;
 
+    /**
+     * lifecycle of a MSG_WHAT_WRITE_AND_READ, see CommandListener
+     *
+     * EVENT_TIMEOUT is followed by EVENT_COMPLETE, which always ends a command; no
+     * EVENT_FIRST_BYTE comes after either.
+     */
+    public static final int EVENT_ENQUEUED = 0;
+    public static final int EVENT_DEQUEUED = 1;
+    public static final int EVENT_FLUSHED = 2;
+    public static final int EVENT_WRITE_START = 3;
+    public static final int EVENT_WRITE_DONE = 4;
+    public static final int EVENT_FIRST_BYTE = 5;
+    public static final int EVENT_COMPLETE = 6;
+    public static final int EVENT_TIMEOUT = 7;
+
+    public interface CommandListener {
+        /**
+         * Called on the sender's thread for EVENT_ENQUEUED, on the response reader thread for
+         * EVENT_FIRST_BYTE and on the handler thread otherwise; keep it short
+         *
+         * @param id numbers commands from 1 in the order they are sent, carried in the
+         *           message's arg2 (wraps after 2^32 - 1)
+         * @param timeNanos System.nanoTime() of the event
+         */
+        void onCommandEvent(long id, int event, long timeNanos);
+    }
+
     /*
      * for handling response timeout, we have our own file streams
      *
@@ -107,6 +136,19 @@ public class SerialPortHandler extends SerialPort {
     /* where to send the read result to */
     private Handler mClientHandler;
 
+    /* traffic dumps, off unless verbose logging is enabled for TAG */
+    private final WireLogger mWireLogger = new WireLogger(TAG);
+
+    /*
+     * messages and callbacks sent to mHandler and not dispatched yet; messages a client removes
+     * from the queue are not seen, the count is clamped at 0 and reset when the queue is dropped
+     */
+    private final AtomicInteger mPendingMessages = new AtomicInteger();
+
+    private volatile CommandListener mCommandListener;
+    /* the last command id given, 0 for none */
+    private final AtomicInteger mLastCommandId = new AtomicInteger();
+
 
     public void setClientHandler(Handler h) {
         mClientHandler = h;
@@ -128,33 +170,66 @@ public class SerialPortHandler extends SerialPort {
     public void flush() {
         super.flush();
         mReadSize = 0;
+        PortMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.onFlush();
+        }
+    }
+
+    /**
+     * Receive the lifecycle events of every MSG_WHAT_WRITE_AND_READ, null to stop
+     */
+    public void setCommandListener(CommandListener listener) {
+        mCommandListener = listener;
+    }
+
+    private int newCommandId() {
+        int id;
+        do {
+            id = mLastCommandId.incrementAndGet();
+        } while (id == MSG_ARG2_UNUSED);
+        return id;
+    }
+
+    /*
+     * the id given when msg was queued, a new one if it was queued before the listener; it
+     * travels in the message itself, so removed messages leave nothing behind
+     */
+    private long commandIdOf(Message msg) {
+        if (msg.arg2 == MSG_ARG2_UNUSED) {
+            msg.arg2 = newCommandId();
+        }
+        return msg.arg2 & 0xffffffffL;
+    }
+
+    /* counts a reader's checks for input, once per read attempt or when it stops */
+    private void poll(long polls, boolean woken) {
+        PortMetrics metrics = getMetrics();
+        if (metrics != null && polls > 0) {
+            metrics.onReaderPoll(polls, woken);
+        }
     }
 
     public Handler getHandler() {
         return mHandler;
     }
 
-    private String byteArrayToString(byte[] array, int length) {
-        StringBuilder sb = new StringBuilder();
-
-        if (array != null) {
-            if (length > array.length)
-                length = array.length;
-            for (int i = 0; i < length; i++) {
-                if (array[i] >= 0 && array[i] <= 0x1f) {
-                    /* nonprintable characters */
-                    final String[] chars = new String[] {"NUL", "SOH", "STX", "ETX", "EOT", "ENQ",
-                            "ACK", "BEL", "BS", "TAB", "LF", "VT", "FF", "CR", "SO", "SI", "DLE",
-                            "DC1", "DC2", "DC3", "DC4", "NAK", "SYN", "ETB", "CAN", "EM", "SUB",
-                            "ESC", "FS", "GS", "RS", "US"};
-                    sb.append("[" + chars[array[i]] + "]");
-                } else {
-                    sb.append((char)array[i]);
-                }
-            }
-        }
+    /**
+     * To turn traffic dumps on or off, sample or format them
+     */
+    public WireLogger getWireLogger() {
+        return mWireLogger;
+    }
 
-        return sb.toString();
+    /**
+     * Stop the handler thread and close the port
+     */
+    @Override
+    public void close() {
+        mHandlerThread.quit();
+        /* whatever was still queued is dropped */
+        mPendingMessages.set(0);
+        super.close();
     }
 
     private class SerialPortHandlerException extends Exception {
@@ -167,31 +242,86 @@ public class SerialPortHandler extends SerialPort {
             throws SecurityException, IOException {
         super(devicePath, baudrate);
         mSerialPortFD = ((FileInputStream)super.getInputStream()).getFD();
-        mSerialPortInputStream = new FileInputStream(mSerialPortFD);
-        mSerialPortOutputStream = new FileOutputStream(mSerialPortFD);
+        mSerialPortInputStream = new PortInputStream(mSerialPortFD);
+        mSerialPortOutputStream = new PortOutputStream(mSerialPortFD);
 
         mReadBuffer = new byte[mReadBufferSize];
         mHandlerThread = new HandlerThread("SerialPortHandlerThread");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper()) {
+            @Override
+            public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+                int depth = mPendingMessages.incrementAndGet();
+                PortMetrics metrics = getMetrics();
+                if (metrics != null) {
+                    metrics.onQueueDepth(depth - 1);
+                }
+                CommandListener listener = mCommandListener;
+                if (msg.what == MSG_WHAT_WRITE_AND_READ) {
+                    /* a message sent again must not keep its old id */
+                    msg.arg2 = listener != null ? newCommandId() : MSG_ARG2_UNUSED;
+                    if (listener != null) {
+                        listener.onCommandEvent(msg.arg2 & 0xffffffffL, EVENT_ENQUEUED, System.nanoTime());
+                    }
+                }
+                if (!super.sendMessageAtTime(msg, uptimeMillis)) {
+                    /* the looper has quit, nothing was queued */
+                    mPendingMessages.decrementAndGet();
+                    return false;
+                }
+                return true;
+            }
+
+            /* posted callbacks come through here too, not through handleMessage */
+            @Override
+            public void dispatchMessage(Message msg) {
+                if (mPendingMessages.decrementAndGet() < 0) {
+                    /* sent at the front of the queue, not counted */
+                    mPendingMessages.set(0);
+                }
+                super.dispatchMessage(msg);
+            }
+
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
                     case MSG_WHAT_WRITE_AND_READ: {
+                        final CommandListener listener = mCommandListener;
+                        final long id = listener != null ? commandIdOf(msg) : 0;
+                        /* set under its own lock once TIMEOUT or COMPLETE is emitted, a late reader stays quiet */
+                        final AtomicBoolean done = new AtomicBoolean();
+                        if (listener != null) {
+                            listener.onCommandEvent(id, EVENT_DEQUEUED, System.nanoTime());
+                        }
                         try {
                             /* discard old data on serial port */
                             flush();
+                            if (listener != null) {
+                                listener.onCommandEvent(id, EVENT_FLUSHED, System.nanoTime());
+                            }
                             /* a thread waiting for the response */
                             Thread rspReader = new Thread(new Runnable() {
                                 @Override
                                 public void run() {
                                     Log.v(TAG, "[MSG_WHAT_WRITE_AND_READ] RSP reader thread runs");
+                                    long polls = 0;
                                     while (!Thread.currentThread().isInterrupted()) {
                                         try {
-                                            if (mSerialPortInputStream.available() > 0) {
+                                            boolean woken = mSerialPortInputStream.available() > 0;
+                                            polls++;
+                                            if (woken) {
+                                                poll(polls, true);
+                                                long firstByte = System.nanoTime();
                                                 mReadSize = mSerialPortInputStream.read(mReadBuffer);
                                                 if (mReadSize > 0) {
-                                                    Log.v(TAG, "[MSG_WHAT_WRITE_AND_READ] <- " + byteArrayToString(mReadBuffer, mReadSize));
+                                                    if (listener != null) {
+                                                        synchronized (done) {
+                                                            if (!done.get()) {
+                                                                listener.onCommandEvent(id, EVENT_FIRST_BYTE, firstByte);
+                                                            }
+                                                        }
+                                                    }
+                                                    mWireLogger.log("[MSG_WHAT_WRITE_AND_READ] <- ", mReadBuffer, mReadSize);
                                                 } else {
                                                     throw new SerialPortHandlerException("Exit blocking read() but nothing has been read");
                                                 }
@@ -205,21 +335,43 @@ public class SerialPortHandler extends SerialPort {
                                             Log.e(TAG, "[MSG_WHAT_WRITE_AND_READ] blocked on read() too long and another " +
                                                     "thread closed the channel to let me out.");
                                             /* make input stream available for coming requests */
-                                            mSerialPortInputStream = new FileInputStream(mSerialPortFD);
+                                            mSerialPortInputStream = new PortInputStream(mSerialPortFD);
                                             return;
                                         }
                                     }
+                                    poll(polls, false);
                                     Log.v(TAG, "[MSG_WHAT_WRITE_AND_READ] interrupted");
                                 }
                             });
                             rspReader.start();
                             /* write the command */
                             byte[] cmd = (byte[]) msg.obj;
-                            Log.v(TAG,"[MSG_WHAT_WRITE_AND_READ] -> " + byteArrayToString(cmd, cmd.length));
+                            mWireLogger.log("[MSG_WHAT_WRITE_AND_READ] -> ", cmd, cmd.length);
+                            long sent = System.nanoTime();
+                            if (listener != null) {
+                                listener.onCommandEvent(id, EVENT_WRITE_START, sent);
+                            }
                             mSerialPortOutputStream.write(cmd);
+                            if (listener != null) {
+                                listener.onCommandEvent(id, EVENT_WRITE_DONE, System.nanoTime());
+                            }
                             /* wait for the response */
                             rspReader.join(mReadRspTimeout);
+                            PortMetrics metrics = getMetrics();
+                            if (metrics != null) {
+                                if (rspReader.isAlive()) {
+                                    metrics.onTimeout();
+                                } else if (mReadSize > 0) {
+                                    metrics.onCommand(System.nanoTime() - sent);
+                                }
+                            }
                             if (rspReader.isAlive()) {
+                                synchronized (done) {
+                                    done.set(true);
+                                    if (listener != null) {
+                                        listener.onCommandEvent(id, EVENT_TIMEOUT, System.nanoTime());
+                                    }
+                                }
                                 Log.e(TAG,"[MSG_WHAT_WRITE_AND_READ] RSP TIMEOUT - interrupting the RSP thread");
                                 /*
                                  * the original design
@@ -246,12 +398,18 @@ public class SerialPortHandler extends SerialPort {
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
+                        synchronized (done) {
+                            done.set(true);
+                        }
+                        if (listener != null) {
+                            listener.onCommandEvent(id, EVENT_COMPLETE, System.nanoTime());
+                        }
                         break;
                     }
                     case MSG_WHAT_WRITE: {
                         try {
                             byte[] cmd = (byte[]) msg.obj;
-                            Log.v(TAG,"[MSG_WHAT_WRITE] " + byteArrayToString(cmd, cmd.length));
+                            mWireLogger.log("[MSG_WHAT_WRITE] ", cmd, cmd.length);
                             mSerialPortOutputStream.write(cmd);
                         } catch (IOException e) {
                             e.printStackTrace();
@@ -266,12 +424,17 @@ public class SerialPortHandler extends SerialPort {
                             @Override
                             public void run() {
                                 Log.v(TAG, "[MSG_WHAT_READ] background reader thread runs");
+                                long polls = 0;
                                 while (!Thread.currentThread().isInterrupted()) {
                                     try {
-                                        if (mSerialPortInputStream.available() > 0) {
+                                        boolean woken = mSerialPortInputStream.available() > 0;
+                                        polls++;
+                                        if (woken) {
+                                            poll(polls, true);
+                                            polls = 0;
                                             mReadSize = mSerialPortInputStream.read(mReadBuffer);
                                             if (mReadSize > 0) {
-                                                Log.v(TAG, "[MSG_WHAT_READ] " + byteArrayToString(mReadBuffer, mReadSize));
+                                                mWireLogger.log("[MSG_WHAT_READ] ", mReadBuffer, mReadSize);
                                                 byte[] rsp = new byte[mReadSize];
                                                 System.arraycopy(mReadBuffer, 0, rsp, 0, mReadSize);
                                                 Message msg = getClientHandler().obtainMessage(
@@ -287,10 +450,11 @@ public class SerialPortHandler extends SerialPort {
                                         return;
                                     } catch (IOException e) {
                                         e.printStackTrace();
-                                        mSerialPortInputStream = new FileInputStream(mSerialPortFD);
+                                        mSerialPortInputStream = new PortInputStream(mSerialPortFD);
                                         return;
                                     }
                                 }
+                                poll(polls, false);
                                 Log.v(TAG, "[MSG_WHAT_READ] interrupted");
                             }
                         });
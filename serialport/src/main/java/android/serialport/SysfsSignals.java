@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Peripheral power and control signals exposed as a sysfs attribute, e.g.
+ * /sys/devices/soc/soc:n668x_db_platform/signals holding "V_IN=1 nPWRDWN=0 nTRIG=1"
+ *
+ * The attribute stays open and its NAME=value pairs are cached, so {@link #get(String)} is a
+ * memory read. The cache is refreshed when the driver signals a change (sysfs_notify(),
+ * seen as POLLPRI by the watcher thread started with {@link #start()}), after every
+ * {@link #set(String, int)}, and by {@link #awaitValue} which also re-reads on its own in
+ * case the driver does not notify.
+ */
+public class SysfsSignals {
+
+    private static final String TAG = "SysfsSignals";
+
+    /* the watcher re-reads at least this often, for drivers that never notify */
+    public static final int DEFAULT_REFRESH_INTERVAL_MS = 1000;
+    /* how often awaitValue() re-reads while no notification comes */
+    private static final int AWAIT_REFRESH_MS = 10;
+
+    public interface Listener {
+        /**
+         * One or more signals changed, called on the watcher thread
+         */
+        void onSignalsChanged(SysfsSignals signals);
+    }
+
+    private final String mPath;
+    private final byte[] mReadBuffer = new byte[256];
+    private final byte[] mLastContent = new byte[256];
+    private int mLastLength = -1;
+    private int mFd;
+    private Listener mListener;
+    private volatile int mRefreshIntervalMs = DEFAULT_REFRESH_INTERVAL_MS;
+
+    /* name -> value, replaced as a whole on refresh */
+    private volatile Map<String, Integer> mValues = new HashMap<String, Integer>();
+    private final Object mLock = new Object();
+
+    private Thread mWatcherThread;
+    /* wakes the watcher out of poll(), -1 if there is none */
+    private final int[] mWakePipe = new int[] { -1, -1 };
+    private volatile boolean mClosed;
+
+    public SysfsSignals(String path) throws IOException {
+        mPath = path;
+        mFd = nativeOpen(path);
+        if (mFd < 0) {
+            throw new IOException("cannot open " + path);
+        }
+        refresh();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setRefreshInterval(int interval_ms) {
+        mRefreshIntervalMs = interval_ms;
+    }
+
+    public void start() {
+        if (nativePipe(mWakePipe) < 0) {
+            Log.e(TAG, "no wake up pipe, close() waits for the refresh interval");
+        }
+        mWatcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchLoop();
+            }
+        }, "SysfsSignalsWatcher");
+        mWatcherThread.setDaemon(true);
+        mWatcherThread.start();
+    }
+
+    /**
+     * Stop the watcher and close the attribute; the watcher is out of poll() before its fd is
+     * closed, so the number cannot be reused under it
+     */
+    public void close() {
+        mClosed = true;
+        if (mWatcherThread != null) {
+            mWatcherThread.interrupt();
+            if (mWakePipe[1] >= 0) {
+                nativeWake(mWakePipe[1]);
+            }
+            /* close() from a listener runs on the watcher thread, which exits on its own */
+            if (Thread.currentThread() != mWatcherThread) {
+                try {
+                    mWatcherThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        synchronized (mLock) {
+            if (mFd >= 0) {
+                nativeClose(mFd);
+                mFd = -1;
+            }
+            for (int i = 0; i < mWakePipe.length; i++) {
+                if (mWakePipe[i] >= 0) {
+                    nativeClose(mWakePipe[i]);
+                    mWakePipe[i] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * The cached value of a signal, -1 if the attribute does not have it
+     */
+    public int get(String name) {
+        Integer value = mValues.get(name);
+        return value != null ? value : -1;
+    }
+
+    /**
+     * Write "name=value"; the cache is updated from what the attribute reads back
+     *
+     * @return false if the write failed
+     */
+    public boolean set(String name, int value) {
+        byte[] s = (name + "=" + value).getBytes();
+        synchronized (mLock) {
+            if (mFd < 0 || nativeWrite(mFd, s, s.length) != s.length) {
+                Log.e(TAG, "cannot set " + name + "=" + value + " in " + mPath);
+                return false;
+            }
+        }
+        refresh();
+        return true;
+    }
+
+    /**
+     * Wait until a signal has the value, e.g. awaitValue("nPWRDWN", 1, 2500) for a wake up
+     *
+     * @return false on timeout
+     */
+    public boolean awaitValue(String name, int value, int timeout_ms) {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        synchronized (mLock) {
+            while (get(name) != value) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                try {
+                    mLock.wait(Math.min(left, AWAIT_REFRESH_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (get(name) != value) {
+                    refresh();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Re-read the attribute into the cache
+     *
+     * @return true if any signal changed
+     */
+    public boolean refresh() {
+        synchronized (mLock) {
+            if (mFd < 0) {
+                return false;
+            }
+            int n = nativeRead(mFd, mReadBuffer);
+            if (n < 0) {
+                return false;
+            }
+            /* nothing to parse or allocate when the content is the same */
+            if (n == mLastLength && equals(mReadBuffer, mLastContent, n)) {
+                return false;
+            }
+            System.arraycopy(mReadBuffer, 0, mLastContent, 0, n);
+            mLastLength = n;
+            Map<String, Integer> values = parse(mReadBuffer, n);
+            if (values.equals(mValues)) {
+                return false;
+            }
+            mValues = values;
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* whitespace, comma or semicolon separated NAME=number pairs */
+    static Map<String, Integer> parse(byte[] content, int length) {
+        Map<String, Integer> values = new HashMap<String, Integer>();
+        int i = 0;
+        while (i < length) {
+            int start = i;
+            while (i < length && content[i] != '=' && !isSeparator(content[i])) {
+                i++;
+            }
+            if (i < length && content[i] == '=' && i > start) {
+                String name = new String(content, start, i - start);
+                int value = 0;
+                boolean digits = false;
+                for (i++; i < length && content[i] >= '0' && content[i] <= '9'; i++) {
+                    value = value * 10 + content[i] - '0';
+                    digits = true;
+                }
+                if (digits) {
+                    values.put(name, value);
+                }
+            }
+            while (i < length && !isSeparator(content[i])) {
+                i++;
+            }
+            i++;
+        }
+        return values;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == ',' || b == ';';
+    }
+
+    private void watchLoop() {
+        while (!mClosed) {
+            int fd;
+            synchronized (mLock) {
+                fd = mFd;
+            }
+            if (fd < 0) {
+                break;
+            }
+            int ret = nativePoll(fd, mWakePipe[0], mRefreshIntervalMs);
+            if (ret < 0 || mClosed) {
+                if (!mClosed) {
+                    Log.e(TAG, "cannot watch " + mPath);
+                }
+                break;
+            }
+            if (refresh() && mListener != null) {
+                mListener.onSignalsChanged(this);
+            }
+        }
+        Log.v(TAG, "watcher thread exits");
+    }
+
+    // JNI
+    private native static int nativeOpen(String path);
+
+    private native static void nativeClose(int fd);
+
+    private native static int nativeRead(int fd, byte[] buffer);
+
+    private native static int nativeWrite(int fd, byte[] buffer, int length);
+
+    private native static int nativePipe(int[] fds);
+
+    private native static void nativeWake(int fd);
+
+    private native static int nativePoll(int fd, int wakeFd, int timeout_ms);
+
+    static {
+        System.loadLibrary("serial_port");
+    }
+}
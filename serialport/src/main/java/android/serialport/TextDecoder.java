@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Incremental bytes to chars decoding for serial port input
+ *
+ * The CharsetDecoder and its buffers are created once. A multi-byte character split across
+ * two reads is kept until the rest of it arrives, instead of turning into replacement
+ * characters like new String(buffer, 0, size) does. Malformed input is replaced with U+FFFD.
+ */
+public class TextDecoder {
+
+    private static final int BUFFER_SIZE = 1024;
+
+    public interface Sink {
+        /**
+         * Decoded characters, the array is reused once this returns
+         */
+        void onChars(char[] chars, int offset, int length);
+    }
+
+    private final CharsetDecoder mDecoder;
+    private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+
+    public TextDecoder() {
+        this(Charset.forName("UTF-8"));
+    }
+
+    public TextDecoder(Charset charset) {
+        mDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public void decode(byte[] data, int offset, int length, Sink sink) {
+        while (length > 0) {
+            int n = Math.min(length, mBytes.remaining());
+            mBytes.put(data, offset, n);
+            offset += n;
+            length -= n;
+            drain(sink, false);
+        }
+    }
+
+    /**
+     * End of input, a pending incomplete sequence is emitted as U+FFFD
+     */
+    public void flush(Sink sink) {
+        drain(sink, true);
+        mDecoder.flush(mChars);
+        emit(sink);
+        mDecoder.reset();
+    }
+
+    public void reset() {
+        mDecoder.reset();
+        mBytes.clear();
+        mChars.clear();
+    }
+
+    private void drain(Sink sink, boolean endOfInput) {
+        mBytes.flip();
+        while (true) {
+            boolean overflow = mDecoder.decode(mBytes, mChars, endOfInput).isOverflow();
+            emit(sink);
+            if (!overflow) {
+                break;
+            }
+        }
+        /* keep the tail of an incomplete sequence for the next chunk */
+        mBytes.compact();
+    }
+
+    private void emit(Sink sink) {
+        if (mChars.position() > 0) {
+            sink.onChars(mChars.array(), 0, mChars.position());
+            mChars.clear();
+        }
+    }
+}
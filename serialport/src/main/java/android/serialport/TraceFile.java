@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a file written by {@link TraceRecorder}, and converts traces to pcap
+ *
+ * pcap files use nanosecond timestamps and link type USER0 (147): each packet is one direction
+ * byte ({@link TraceRecorder#RX}, {@link TraceRecorder#TX} or {@link TraceRecorder#EVENT})
+ * followed by the bytes.
+ */
+public class TraceFile {
+
+    public static final int LINKTYPE_USER0 = 147;
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int PCAP_SNAPLEN = 262144;
+
+    public static class Record {
+        /* since the recorder started, for intervals */
+        public long timestampNanos;
+        /* since the epoch */
+        public long wallClockNanos;
+        public int direction;
+        public int flags;
+        public byte[] data;
+
+        public boolean isTruncated() {
+            return (flags & TraceRecorder.FLAG_TRUNCATED) != 0;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final long mWallClockNanos;
+    private final int mSequence;
+    private final int mEnd;
+
+    public TraceFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[TraceRecorder.MAGIC.length];
+        if (mBuffer.limit() < TraceRecorder.HEADER_SIZE) {
+            throw new IOException(file + ": not a trace file");
+        }
+        mBuffer.get(magic);
+        if (!Arrays.equals(magic, TraceRecorder.MAGIC)) {
+            throw new IOException(file + ": not a trace file");
+        }
+        int version = mBuffer.getShort(TraceRecorder.HEADER_VERSION);
+        if (version != TraceRecorder.VERSION) {
+            throw new IOException(file + ": unsupported trace version " + version);
+        }
+        mWallClockNanos = mBuffer.getLong(TraceRecorder.HEADER_WALL_CLOCK);
+        mSequence = mBuffer.getInt(TraceRecorder.HEADER_SEQUENCE);
+        mEnd = (int) Math.min(mBuffer.getLong(TraceRecorder.HEADER_END), mBuffer.limit());
+        mBuffer.position(mBuffer.getShort(TraceRecorder.HEADER_HEADER_SIZE));
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * When the recorder started, in nanoseconds since the epoch
+     */
+    public long getStartWallClockNanos() {
+        return mWallClockNanos;
+    }
+
+    /**
+     * The next record, null at the end of the file
+     */
+    public Record next() throws IOException {
+        if (mBuffer.position() + TraceRecorder.RECORD_HEADER_SIZE > mEnd) {
+            return null;
+        }
+        Record r = new Record();
+        r.timestampNanos = mBuffer.getLong();
+        r.wallClockNanos = mWallClockNanos + r.timestampNanos;
+        int length = mBuffer.getInt();
+        r.direction = mBuffer.get();
+        r.flags = mBuffer.get();
+        mBuffer.getShort();
+        if (length < 0 || mBuffer.position() + length > mEnd) {
+            throw new IOException("corrupted record at "
+                    + (mBuffer.position() - TraceRecorder.RECORD_HEADER_SIZE));
+        }
+        r.data = new byte[length];
+        mBuffer.get(r.data);
+        return r;
+    }
+
+    /**
+     * Write the records of the files, in the order given, as one pcap capture
+     */
+    public static void toPcap(File[] traces, OutputStream out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(PCAP_MAGIC_NANOS);
+        header.putShort((short) 2);
+        header.putShort((short) 4);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(PCAP_SNAPLEN);
+        header.putInt(LINKTYPE_USER0);
+        out.write(header.array());
+
+        ByteBuffer packet = ByteBuffer.allocate(17).order(ByteOrder.LITTLE_ENDIAN);
+        for (File trace : traces) {
+            TraceFile file = new TraceFile(trace);
+            Record r;
+            while ((r = file.next()) != null) {
+                int length = Math.min(r.data.length, PCAP_SNAPLEN - 1);
+                packet.clear();
+                packet.putInt((int) (r.wallClockNanos / 1000000000L));
+                packet.putInt((int) (r.wallClockNanos % 1000000000L));
+                packet.putInt(length + 1);
+                packet.putInt(r.data.length + 1);
+                packet.put((byte) r.direction);
+                out.write(packet.array(), 0, packet.position());
+                out.write(r.data, 0, length);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Convert traces to pcap on a host:
+     * TraceFile &lt;out.pcap&gt; (&lt;trace file&gt;... | &lt;directory&gt; &lt;name&gt;)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: TraceFile <out.pcap> (<trace file>... | <directory> <name>)");
+            System.exit(2);
+        }
+        File[] traces;
+        File first = new File(args[1]);
+        if (first.isDirectory() && args.length == 3) {
+            traces = TraceRecorder.listFiles(first, args[2]);
+        } else {
+            traces = new File[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                traces[i - 1] = new File(args[i]);
+            }
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[0]));
+        try {
+            toPcap(traces, out);
+        } finally {
+            out.close();
+        }
+    }
+}
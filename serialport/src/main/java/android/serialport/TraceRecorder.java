@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Binary capture of serial traffic into memory-mapped, rotating trace files
+ *
+ * Every chunk read or written is appended with its direction and a nanosecond timestamp.
+ * Appending is a copy into the mapping under a lock without allocation, so it can run on the
+ * I/O threads; the kernel writes the pages back on its own. A file holds at most fileSize
+ * bytes, then the next one is started and the oldest beyond fileCount deleted. A background
+ * thread creates, maps and faults in the next file ahead of time and unmaps and deletes the
+ * old ones, so starting a file is a swap of mappings; should the next file not be ready yet,
+ * records are dropped and counted. The header records how far a file is filled, see
+ * {@link TraceFile}.
+ *
+ * Attach to a port with {@link SerialPort#setTraceRecorder(TraceRecorder)}.
+ */
+public class TraceRecorder {
+
+    private static final String TAG = "TraceRecorder";
+
+    public static final int RX = 0;
+    public static final int TX = 1;
+    /* a note, e.g. an error, UTF-8 text */
+    public static final int EVENT = 2;
+
+    /* the payload was cut to fit in a file */
+    public static final int FLAG_TRUNCATED = 1;
+
+    public static final String SUFFIX = ".sptrace";
+    public static final int DEFAULT_FILE_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_FILE_COUNT = 4;
+
+    static final byte[] MAGIC = {'S', 'P', 'T', 'R', 'A', 'C', 'E', 0};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    /* header fields */
+    static final int HEADER_VERSION = 8;
+    static final int HEADER_HEADER_SIZE = 10;
+    static final int HEADER_WALL_CLOCK = 16;
+    static final int HEADER_END = 24;
+    static final int HEADER_SEQUENCE = 32;
+    /* timestamp (8), length (4), direction (1), flags (1), reserved (2), then the payload */
+    static final int RECORD_HEADER_SIZE = 16;
+
+    private final File mDirectory;
+    private final String mName;
+    private final int mFileSize;
+    private final int mFileCount;
+    /* timestamps are relative to this, the headers map it to wall clock time */
+    private final long mStartNanos = System.nanoTime();
+    private final long mStartWallClockNanos = System.currentTimeMillis() * 1000000L;
+    private final List<File> mFiles = new ArrayList<File>();
+    private final Object mLock = new Object();
+
+    private MappedByteBuffer mBuffer;
+    /* the next file, mapped ahead by the preparer thread */
+    private MappedByteBuffer mNextBuffer;
+    private File mNextFile;
+    /* for the preparer thread to unmap and to delete */
+    private final List<MappedByteBuffer> mRetiredBuffers = new ArrayList<MappedByteBuffer>();
+    private final List<File> mRetiredFiles = new ArrayList<File>();
+    private int mSequence;
+    private boolean mClosed;
+    private long mRecordCount;
+    private long mByteCount;
+    private long mTruncatedCount;
+    private long mDroppedCount;
+
+    private static final int PREPARE_RETRY_MS = 1000;
+    private static final int PAGE_SIZE = 4096;
+    private static boolean sUnmapFailed;
+
+    /**
+     * Trace to name.0.sptrace, name.1.sptrace, ... in directory
+     *
+     * @param fileSize the most bytes in one file
+     * @param fileCount how many files to keep
+     */
+    public TraceRecorder(File directory, String name, int fileSize, int fileCount)
+            throws IOException {
+        if (fileSize < HEADER_SIZE + RECORD_HEADER_SIZE + 1 || fileCount < 1) {
+            throw new IllegalArgumentException("fileSize " + fileSize + " fileCount " + fileCount);
+        }
+        mDirectory = directory;
+        mName = name;
+        mFileSize = fileSize;
+        mFileCount = fileCount;
+        mDirectory.mkdirs();
+        /* carry on after an earlier run, its files count towards fileCount */
+        for (File f : listFiles(directory, name)) {
+            mFiles.add(f);
+            mSequence = sequenceOf(f, name) + 1;
+        }
+        File file = fileOf(mSequence);
+        mBuffer = map(file, mSequence++);
+        addFileLocked(file);
+        Thread preparer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prepareLoop();
+            }
+        }, "TraceRecorderPreparer");
+        preparer.setDaemon(true);
+        preparer.start();
+    }
+
+    public TraceRecorder(File directory, String name) throws IOException {
+        this(directory, name, DEFAULT_FILE_SIZE, DEFAULT_FILE_COUNT);
+    }
+
+    public void record(int direction, byte[] data, int offset, int length) {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            int flags = 0;
+            if (mBuffer.remaining() < RECORD_HEADER_SIZE + length) {
+                if (mBuffer.position() > HEADER_SIZE) {
+                    if (mNextBuffer == null) {
+                        /* the preparer is behind, do not wait for it */
+                        mDroppedCount++;
+                        return;
+                    }
+                    rotateLocked();
+                }
+                if (mBuffer.remaining() < RECORD_HEADER_SIZE + length) {
+                    length = mBuffer.remaining() - RECORD_HEADER_SIZE;
+                    flags |= FLAG_TRUNCATED;
+                    mTruncatedCount++;
+                }
+            }
+            mBuffer.putLong(System.nanoTime() - mStartNanos);
+            mBuffer.putInt(length);
+            mBuffer.put((byte) direction);
+            mBuffer.put((byte) flags);
+            mBuffer.putShort((short) 0);
+            mBuffer.put(data, offset, length);
+            /* the record is complete, publish it */
+            mBuffer.putLong(HEADER_END, mBuffer.position());
+            mRecordCount++;
+            mByteCount += length;
+        }
+    }
+
+    public void event(String note) {
+        byte[] b;
+        try {
+            b = note.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            b = note.getBytes();
+        }
+        record(EVENT, b, 0, b.length);
+    }
+
+    /**
+     * Write the current file to storage, e.g. before handing it over
+     */
+    public void flush() {
+        synchronized (mLock) {
+            if (mBuffer != null) {
+                mBuffer.force();
+            }
+        }
+    }
+
+    public void close() {
+        List<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>();
+        File unused;
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mBuffer.force();
+            buffers.add(mBuffer);
+            mBuffer = null;
+            /* the preparer thread may be busy with the others, it cleans up after itself */
+            if (mNextBuffer != null) {
+                buffers.add(mNextBuffer);
+            }
+            mNextBuffer = null;
+            unused = mNextFile;
+            mNextFile = null;
+            mLock.notifyAll();
+            Log.v(TAG, "closed, " + this);
+        }
+        for (MappedByteBuffer b : buffers) {
+            unmap(b);
+        }
+        if (unused != null && !unused.delete()) {
+            Log.w(TAG, "cannot delete " + unused);
+        }
+    }
+
+    public long getRecordCount() {
+        synchronized (mLock) {
+            return mRecordCount;
+        }
+    }
+
+    public long getByteCount() {
+        synchronized (mLock) {
+            return mByteCount;
+        }
+    }
+
+    public long getTruncatedCount() {
+        synchronized (mLock) {
+            return mTruncatedCount;
+        }
+    }
+
+    /**
+     * Records lost because the next file was not ready
+     */
+    public long getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * The files kept, oldest first
+     */
+    public File[] getFiles() {
+        synchronized (mLock) {
+            return mFiles.toArray(new File[mFiles.size()]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "records=" + mRecordCount + " bytes=" + mByteCount + " truncated=" + mTruncatedCount
+                + " dropped=" + mDroppedCount + " files=" + mFiles.size();
+    }
+
+    /* swap in the prepared file; the old mapping is left to the kernel to write back */
+    private void rotateLocked() {
+        mRetiredBuffers.add(mBuffer);
+        mBuffer = mNextBuffer;
+        mNextBuffer = null;
+        addFileLocked(mNextFile);
+        mNextFile = null;
+        mLock.notifyAll();
+    }
+
+    private void addFileLocked(File file) {
+        mFiles.add(file);
+        while (mFiles.size() > mFileCount) {
+            mRetiredFiles.add(mFiles.remove(0));
+        }
+    }
+
+    private File fileOf(int sequence) {
+        return new File(mDirectory, mName + "." + sequence + SUFFIX);
+    }
+
+    /* a new file with its header, ready for records */
+    private MappedByteBuffer map(File file, int sequence) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(mFileSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mFileSize);
+        } finally {
+            /* the mapping stays valid */
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putShort(HEADER_VERSION, (short) VERSION);
+        buffer.putShort(HEADER_HEADER_SIZE, (short) HEADER_SIZE);
+        buffer.putLong(HEADER_WALL_CLOCK, mStartWallClockNanos);
+        buffer.putLong(HEADER_END, HEADER_SIZE);
+        buffer.putInt(HEADER_SEQUENCE, sequence);
+        /* fault the pages in here rather than on the I/O threads */
+        for (int i = PAGE_SIZE; i < mFileSize; i += PAGE_SIZE) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.position(HEADER_SIZE);
+        return buffer;
+    }
+
+    /**
+     * Keep the next file mapped, release the old mappings and delete the files beyond
+     * fileCount, all off the I/O threads
+     */
+    private void prepareLoop() {
+        List<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>();
+        List<File> files = new ArrayList<File>();
+        while (true) {
+            int sequence = -1;
+            synchronized (mLock) {
+                while (!mClosed && mNextBuffer != null
+                        && mRetiredBuffers.isEmpty() && mRetiredFiles.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                buffers.addAll(mRetiredBuffers);
+                mRetiredBuffers.clear();
+                files.addAll(mRetiredFiles);
+                mRetiredFiles.clear();
+                if (!mClosed && mNextBuffer == null) {
+                    sequence = mSequence;
+                }
+            }
+            for (MappedByteBuffer b : buffers) {
+                unmap(b);
+            }
+            buffers.clear();
+            for (File f : files) {
+                if (!f.delete()) {
+                    Log.w(TAG, "cannot delete " + f);
+                }
+            }
+            files.clear();
+            if (sequence < 0) {
+                /* closed, or woken for the old files only */
+                synchronized (mLock) {
+                    if (mClosed && mRetiredBuffers.isEmpty() && mRetiredFiles.isEmpty()) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            File file = fileOf(sequence);
+            MappedByteBuffer buffer;
+            try {
+                buffer = map(file, sequence);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot create " + file + ", retrying", e);
+                try {
+                    Thread.sleep(PREPARE_RETRY_MS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+            synchronized (mLock) {
+                if (!mClosed) {
+                    mNextBuffer = buffer;
+                    mNextFile = file;
+                    mSequence++;
+                    continue;
+                }
+            }
+            unmap(buffer);
+            if (!file.delete()) {
+                Log.w(TAG, "cannot delete " + file);
+            }
+            break;
+        }
+        Log.v(TAG, "preparer thread exits");
+    }
+
+    /**
+     * Release a mapping now instead of at garbage collection, when the runtime lets us;
+     * nothing may touch the buffer afterwards
+     */
+    static void unmap(ByteBuffer buffer) {
+        if (sUnmapFailed) {
+            return;
+        }
+        try {
+            /* Android */
+            Class<?> nioUtils = Class.forName("java.nio.NioUtils");
+            nioUtils.getMethod("freeDirectBuffer", ByteBuffer.class).invoke(null, buffer);
+            return;
+        } catch (Exception e) {
+            /* not Android */
+        }
+        try {
+            /* Java 9 and later */
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            /* Java 8 and earlier */
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return;
+        } catch (Exception e) {
+            Log.w(TAG, "cannot unmap, old trace files are released at garbage collection");
+            sUnmapFailed = true;
+        }
+    }
+
+    /* -1 if the file is not a trace of name */
+    private static int sequenceOf(File file, String name) {
+        String n = file.getName();
+        if (!n.startsWith(name + ".") || !n.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(n.substring(name.length() + 1, n.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            /* another name with dots */
+            return -1;
+        }
+    }
+
+    /**
+     * The trace files of a name in a directory, oldest first
+     */
+    public static File[] listFiles(File directory, final String name) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> traces = new ArrayList<File>();
+        for (File f : files) {
+            if (sequenceOf(f, name) >= 0) {
+                traces.add(f);
+            }
+        }
+        Collections.sort(traces, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                int sa = sequenceOf(a, name);
+                int sb = sequenceOf(b, name);
+                return sa < sb ? -1 : (sa == sb ? 0 : 1);
+            }
+        });
+        return traces.toArray(new File[traces.size()]);
+    }
+}
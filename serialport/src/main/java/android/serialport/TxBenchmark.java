@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Transmit saturation benchmark
+ *
+ * Writes a pattern (0x55 by default, a square wave on a scope) as fast as the driver takes
+ * it and times until tcdrain() returns, i.e. until the last stop bit left the UART. The
+ * achieved rate counts the bit times of every character per termios (start, data, parity,
+ * stop), so a healthy port reports close to its baud rate; a gap points at the write path,
+ * the driver or the UART FIFO refill. The drain rate times only the bytes already queued
+ * (TIOCOUTQ) after the last write, which leaves the write() calls out of the picture.
+ *
+ * {@link #sweep} repeats this over baud rates and write sizes. Nothing may be connected that
+ * would be confused by the traffic.
+ */
+public class TxBenchmark {
+
+    private static final String TAG = "TxBenchmark";
+
+    public static final int[] DEFAULT_WRITE_SIZES = {1, 16, 64, 256, 1024, 4096};
+    public static final int DEFAULT_DURATION_MS = 2000;
+    /* fewer queued bytes than this after the last write do not give a meaningful drain rate */
+    private static final int MIN_DRAIN_BYTES = 64;
+    /* TIOCOUTQ is sampled about once per this many bytes written */
+    private static final int QUEUE_SAMPLE_BYTES = 1024;
+
+    private final SerialPort mPort;
+    private final OutputStream mOutputStream;
+    private byte mPattern = 0x55;
+
+    public TxBenchmark(SerialPort port) {
+        mPort = port;
+        mOutputStream = port.getOutputStream();
+    }
+
+    public void setPattern(byte pattern) {
+        mPattern = pattern;
+    }
+
+    /**
+     * Send durationMs worth of data at the current baud rate in writes of writeSize bytes;
+     * throws IOException rather than reporting rates if the output could not be drained
+     */
+    public Result measure(int writeSize, int durationMs) throws IOException {
+        Result r = new Result();
+        r.baudrate = mPort.getBaudrate();
+        r.frameBits = mPort.getFrameBits();
+        if (r.frameBits <= 0) {
+            r.frameBits = 10;
+        }
+        r.writeSize = writeSize;
+        long bytes = (long) r.baudrate / r.frameBits * durationMs / 1000;
+        r.writes = Math.max(1, (bytes + writeSize - 1) / writeSize);
+        r.bytes = r.writes * writeSize;
+
+        byte[] buffer = new byte[writeSize];
+        Arrays.fill(buffer, mPattern);
+        int sampleEvery = Math.max(1, QUEUE_SAMPLE_BYTES / writeSize);
+
+        /* start from an empty queue */
+        mPort.drain();
+        long start = System.nanoTime();
+        for (long i = 0; i < r.writes; i++) {
+            mOutputStream.write(buffer, 0, writeSize);
+            if (i % sampleEvery == 0) {
+                r.maxQueued = Math.max(r.maxQueued, mPort.getOutputQueueSize());
+            }
+        }
+        long written = System.nanoTime();
+        int queued = mPort.getOutputQueueSize();
+        mPort.drain();
+        long end = System.nanoTime();
+
+        r.maxQueued = Math.max(r.maxQueued, queued);
+        r.elapsedUs = (end - start) / 1000;
+        r.writeUs = (written - start) / 1000;
+        r.achievedBps = bitsPerSecond(r.bytes * r.frameBits, end - start);
+        if (queued >= MIN_DRAIN_BYTES) {
+            r.drainBps = bitsPerSecond((long) queued * r.frameBits, end - written);
+        }
+        return r;
+    }
+
+    private static long bitsPerSecond(long bits, long nanos) {
+        return nanos <= 0 ? 0 : bits * 1000000000L / nanos;
+    }
+
+    /**
+     * Measure every write size at every baud rate, then restore the original baud rate;
+     * unsupported baud rates are skipped
+     */
+    public List<Result> sweep(int[] baudrates, int[] writeSizes, int durationMs) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        int original = mPort.getBaudrate();
+        try {
+            for (int baudrate : baudrates) {
+                if (!mPort.setBaudrate(baudrate)) {
+                    Log.e(TAG, "skipping unsupported baud rate " + baudrate);
+                    continue;
+                }
+                for (int writeSize : writeSizes) {
+                    Result r = measure(writeSize, durationMs);
+                    Log.v(TAG, r.toJson());
+                    results.add(r);
+                }
+            }
+        } finally {
+            mPort.setBaudrate(original);
+        }
+        return results;
+    }
+
+    public static String toJson(List<Result> results) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(results.get(i).toJson());
+        }
+        return sb.append(']').toString();
+    }
+
+    public static class Result {
+        public int baudrate;
+        /* bit times per character */
+        public int frameBits;
+        public int writeSize;
+        public long writes;
+        public long bytes;
+        /* from the first write to the end of tcdrain() */
+        public long elapsedUs;
+        /* time spent in write() */
+        public long writeUs;
+        /* the most bytes seen waiting in the driver */
+        public int maxQueued;
+        /* line bits per second, comparable to the baud rate */
+        public long achievedBps;
+        /* rate at which the driver queue emptied after the last write, 0 if too little was queued */
+        public long drainBps;
+
+        /**
+         * Achieved over theoretical, 1.0 is a line without gaps between characters
+         */
+        public double getUtilization() {
+            return baudrate == 0 ? 0 : (double) achievedBps / baudrate;
+        }
+
+        public String toJson() {
+            return String.format(Locale.US, "{\"baudrate\":%d,\"frame_bits\":%d,\"write_size\":%d,"
+                            + "\"writes\":%d,\"bytes\":%d,\"elapsed_us\":%d,\"write_us\":%d,"
+                            + "\"max_queued\":%d,\"achieved_bps\":%d,\"drain_bps\":%d,"
+                            + "\"utilization\":%.3f}",
+                    baudrate, frameBits, writeSize, writes, bytes, elapsedUs, writeUs, maxQueued,
+                    achievedBps, drainBps, getUtilization());
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+}
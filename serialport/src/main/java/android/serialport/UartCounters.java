@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+/**
+ * The UART driver's interrupt counters (TIOCGICOUNT) at one moment, or the change between two
+ *
+ * Overrun means the UART FIFO filled before the driver emptied it, buffer overrun that the
+ * tty buffer was full; both lose bytes silently. Frame and parity errors usually point at a
+ * baud rate or line quality problem. The kernel counters are 32 bit and wrap around, which
+ * {@link #minus} takes care of.
+ */
+public class UartCounters {
+
+    public static final int RX = 0;
+    public static final int TX = 1;
+    public static final int FRAME = 2;
+    public static final int OVERRUN = 3;
+    public static final int PARITY = 4;
+    public static final int BRK = 5;
+    public static final int BUF_OVERRUN = 6;
+    /* modem status line changes */
+    public static final int CTS = 7;
+    public static final int DSR = 8;
+    public static final int RNG = 9;
+    public static final int DCD = 10;
+    public static final int COUNT = 11;
+
+    private static final String[] NAMES = {
+            "rx", "tx", "frame", "overrun", "parity", "brk", "buf_overrun", "cts", "dsr", "rng", "dcd"
+    };
+
+    private final int[] mCounts;
+    /* System.nanoTime() of the sample, the length of the interval for a delta */
+    private final long mTimeNanos;
+
+    UartCounters(int[] counts, long timeNanos) {
+        mCounts = counts;
+        mTimeNanos = timeNanos;
+    }
+
+    public static String nameOf(int counter) {
+        return NAMES[counter];
+    }
+
+    /**
+     * A counter as an unsigned value
+     */
+    public long get(int counter) {
+        return mCounts[counter] & 0xffffffffL;
+    }
+
+    /**
+     * Frame, parity and both overrun errors
+     */
+    public long getErrors() {
+        return get(FRAME) + get(OVERRUN) + get(PARITY) + get(BUF_OVERRUN);
+    }
+
+    public long getTimeNanos() {
+        return mTimeNanos;
+    }
+
+    /**
+     * What was counted since an earlier sample; the time is then the interval length
+     */
+    public UartCounters minus(UartCounters earlier) {
+        int[] delta = new int[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            delta[i] = mCounts[i] - earlier.mCounts[i];
+        }
+        return new UartCounters(delta, mTimeNanos - earlier.mTimeNanos);
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < COUNT; i++) {
+            sb.append('"').append(NAMES[i]).append("\":").append(get(i)).append(',');
+        }
+        return sb.append("\"errors\":").append(getErrors()).append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
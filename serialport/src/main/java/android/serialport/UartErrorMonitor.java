@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import android.util.Log;
+
+/**
+ * Samples the kernel's UART counters of a port and reports what changed
+ *
+ * Every interval the counters are read (one ioctl) and the delta goes to the listener and to
+ * the port's {@link PortMetrics}, if any. A threshold per counter, e.g. 1 overrun per
+ * interval, raises {@link Listener#onThresholdExceeded}: bytes were lost although the stream
+ * looks fine, which is the cue for a larger read buffer, a faster reader or a lower baud rate.
+ *
+ * Only real UART drivers keep counters; {@link #start()} returns false for the others.
+ */
+public class UartErrorMonitor {
+
+    private static final String TAG = "UartErrorMonitor";
+
+    public static final int DEFAULT_INTERVAL_MS = 1000;
+
+    public interface Listener {
+        /**
+         * Counted during the last interval, called on the monitor thread
+         */
+        void onSample(UartCounters delta);
+
+        /**
+         * A counter reached its threshold during the last interval
+         */
+        void onThresholdExceeded(int counter, UartCounters delta);
+    }
+
+    private final SerialPort mPort;
+    /* per counter, 0 for none */
+    private final long[] mThresholds = new long[UartCounters.COUNT];
+    private volatile int mIntervalMs = DEFAULT_INTERVAL_MS;
+    private volatile Listener mListener;
+    private UartCounters mFirst;
+    private volatile UartCounters mLast;
+    private volatile UartCounters mLastDelta;
+    private Thread mThread;
+    private volatile boolean mClosed;
+
+    public UartErrorMonitor(SerialPort port) {
+        mPort = port;
+    }
+
+    public void setInterval(int interval_ms) {
+        mIntervalMs = interval_ms;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Report when a counter grows by at least count in one interval, 0 to stop
+     */
+    public void setThreshold(int counter, long count) {
+        synchronized (mThresholds) {
+            mThresholds[counter] = count;
+        }
+    }
+
+    /**
+     * @return false if the driver keeps no counters
+     */
+    public boolean start() {
+        mFirst = mPort.getUartCounters();
+        if (mFirst == null) {
+            Log.e(TAG, "no UART counters on this port");
+            return false;
+        }
+        mLast = mFirst;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+        return true;
+    }
+
+    public void close() {
+        mClosed = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    /**
+     * Counted since start(), null if not started
+     */
+    public UartCounters getTotal() {
+        UartCounters last = mLast;
+        return last == null ? null : last.minus(mFirst);
+    }
+
+    /**
+     * Counted during the last interval, null before the first one ends
+     */
+    public UartCounters getLastDelta() {
+        return mLastDelta;
+    }
+
+    /**
+     * Take a sample now, also used by the monitor thread
+     *
+     * @return the delta since the previous sample, null if the counters cannot be read
+     */
+    public synchronized UartCounters sample() {
+        UartCounters now = mPort.getUartCounters();
+        if (now == null || mLast == null) {
+            return null;
+        }
+        UartCounters delta = now.minus(mLast);
+        mLast = now;
+        mLastDelta = delta;
+        PortMetrics metrics = mPort.getMetrics();
+        if (metrics != null) {
+            metrics.onUartCounters(delta);
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSample(delta);
+        }
+        for (int i = 0; i < UartCounters.COUNT; i++) {
+            long threshold;
+            synchronized (mThresholds) {
+                threshold = mThresholds[i];
+            }
+            if (threshold > 0 && delta.get(i) >= threshold) {
+                Log.e(TAG, UartCounters.nameOf(i) + " +" + delta.get(i) + " in "
+                        + delta.getTimeNanos() / 1000000 + " ms");
+                if (listener != null) {
+                    listener.onThresholdExceeded(i, delta);
+                }
+            }
+        }
+        return delta;
+    }
+
+    private void loop() {
+        while (!mClosed) {
+            try {
+                Thread.sleep(mIntervalMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (sample() == null) {
+                /* the port was closed */
+                break;
+            }
+        }
+        Log.v(TAG, "monitor exits, total " + getTotal());
+    }
+}
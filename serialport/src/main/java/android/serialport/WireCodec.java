@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+/**
+ * Runtime helpers for the codecs generated from {@link WireMessage} classes
+ */
+public final class WireCodec {
+
+    /**
+     * decode() result: the buffer does not hold a whole message yet
+     */
+    public static final int INCOMPLETE = -1;
+
+    /**
+     * decode() result: a variable length field is larger than its array
+     */
+    public static final int MALFORMED = -2;
+
+    private WireCodec() {
+    }
+
+    /**
+     * Store the low size bytes of value at buffer[offset]
+     *
+     * @return the offset following the value
+     */
+    public static int put(byte[] buffer, int offset, long value, int size, boolean bigEndian) {
+        if (bigEndian) {
+            for (int i = size - 1; i >= 0; i--) {
+                buffer[offset++] = (byte) (value >>> (i * 8));
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                buffer[offset++] = (byte) (value >>> (i * 8));
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Reject a variable field length that does not fit its array or its size bytes prefix,
+     * 0 for no prefix
+     */
+    public static void checkLength(String field, int length, byte[] array, int size) {
+        if (length < 0 || length > array.length) {
+            throw new IllegalArgumentException(field + " length " + length + " out of 0.." + array.length);
+        }
+        if (size > 0 && size < 4 && length >>> (size * 8) != 0) {
+            throw new IllegalArgumentException(field + " length " + length + " does not fit in " + size + " byte(s)");
+        }
+    }
+
+    /**
+     * Load size bytes from buffer[offset], zero extended
+     */
+    public static long get(byte[] buffer, int offset, int size, boolean bigEndian) {
+        long value = 0;
+        if (bigEndian) {
+            for (int i = 0; i < size; i++) {
+                value = (value << 8) | (buffer[offset + i] & 0xff);
+            }
+        } else {
+            for (int i = size - 1; i >= 0; i--) {
+                value = (value << 8) | (buffer[offset + i] & 0xff);
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A field of a {@link WireMessage}
+ *
+ * Supported field types are boolean, byte, char, short, int, long, float, double and byte[].
+ *
+ * - Numbers take their natural size unless {@link #bits()} is set.
+ * - Consecutive fields with {@link #bits()} form a bitfield group. The group must add up to a
+ *   whole number of bytes (at most 8); the first field takes the most significant bits.
+ *   Bitfields are unsigned.
+ * - A byte[] field needs one of {@link #length()} (fixed size), {@link #lengthPrefix()}
+ *   (variable size) or {@link #remainder()} (variable size, delimited by the message length).
+ *   A variable field needs a companion int field named after it with a "Length" suffix
+ *   holding the number of valid bytes, e.g. payload and payloadLength; decode() fills the
+ *   existing array, which must be large enough. encode() throws IllegalArgumentException if
+ *   the length is negative, beyond the array or does not fit in its prefix.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface WireField {
+    /**
+     * Position of the field in the message
+     */
+    int order();
+
+    /**
+     * Width in bits for bitfields, 0 for the natural size of the type
+     */
+    int bits() default 0;
+
+    /**
+     * Size of a fixed byte[] field
+     */
+    int length() default 0;
+
+    /**
+     * Size in bytes (1 or 2) of the length that precedes a variable byte[] field
+     */
+    int lengthPrefix() default 0;
+
+    /**
+     * A byte[] without length on the wire, taking what the fields after it leave of the
+     * message; those must be fixed size and decode() must be given the exact message length
+     */
+    boolean remainder() default false;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+
+/**
+ * Verbose logging of serial traffic that costs nothing when off
+ *
+ * The level is checked before anything is formatted, and the dump is built in a buffer kept
+ * from line to line, so the only allocation is the String handed to Log. In sampled mode
+ * only one chunk in N is logged, which keeps some visibility in production.
+ *
+ * Logging is on when Log.isLoggable(tag, VERBOSE), e.g. after
+ * <code>adb shell setprop log.tag.SerialPortHandler VERBOSE</code>, or after
+ * {@link #setEnabled(boolean)}.
+ */
+public class WireLogger {
+
+    /* printable characters as is, control characters by name, e.g. [CR], others in hex */
+    public static final int FORMAT_TEXT = 0;
+    /* hex bytes, e.g. 41 54 0D */
+    public static final int FORMAT_HEX = 1;
+
+    public static final int DEFAULT_MAX_LENGTH = 256;
+
+    private static final String[] CONTROL_NAMES = {"NUL", "SOH", "STX", "ETX", "EOT", "ENQ",
+            "ACK", "BEL", "BS", "TAB", "LF", "VT", "FF", "CR", "SO", "SI", "DLE", "DC1", "DC2",
+            "DC3", "DC4", "NAK", "SYN", "ETB", "CAN", "EM", "SUB", "ESC", "FS", "GS", "RS", "US"};
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String mTag;
+    private volatile boolean mEnabled;
+    private volatile int mSampleRate = 1;
+    private volatile int mFormat = FORMAT_TEXT;
+    private volatile int mMaxLength = DEFAULT_MAX_LENGTH;
+    /* the dump buffer and sample counter, guarded by this */
+    private final StringBuilder mLine = new StringBuilder(128);
+    private long mChunkCount;
+
+    public WireLogger(String tag) {
+        mTag = tag;
+        mEnabled = Log.isLoggable(tag, Log.VERBOSE);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Log one chunk in every n, 1 logs them all
+     */
+    public void setSampleRate(int n) {
+        mSampleRate = Math.max(1, n);
+    }
+
+    public void setFormat(int format) {
+        mFormat = format;
+    }
+
+    /**
+     * Bytes shown per chunk, the rest is counted
+     */
+    public void setMaxLength(int length) {
+        mMaxLength = length;
+    }
+
+    /**
+     * Log length bytes of data after prefix, e.g. "[MSG_WHAT_WRITE] "
+     */
+    public void log(String prefix, byte[] data, int length) {
+        if (!mEnabled) {
+            return;
+        }
+        String line;
+        synchronized (this) {
+            if (mChunkCount++ % mSampleRate != 0) {
+                return;
+            }
+            StringBuilder sb = mLine;
+            sb.setLength(0);
+            sb.append(prefix);
+            if (data != null) {
+                length = Math.min(length, data.length);
+                int shown = Math.min(length, mMaxLength);
+                if (mFormat == FORMAT_HEX) {
+                    appendHex(sb, data, shown);
+                } else {
+                    appendText(sb, data, shown);
+                }
+                if (shown < length) {
+                    sb.append("...(+").append(length - shown).append(')');
+                }
+            }
+            if (mSampleRate > 1) {
+                sb.append(" (1/").append(mSampleRate).append(')');
+            }
+            line = sb.toString();
+        }
+        Log.v(mTag, line);
+    }
+
+    private static void appendText(StringBuilder sb, byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = data[i] & 0xff;
+            if (b <= 0x1f) {
+                sb.append('[').append(CONTROL_NAMES[b]).append(']');
+            } else if (b >= 0x7f) {
+                sb.append('[').append(HEX[b >> 4]).append(HEX[b & 0xf]).append(']');
+            } else {
+                sb.append((char) b);
+            }
+        }
+    }
+
+    private static void appendHex(StringBuilder sb, byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = data[i] & 0xff;
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(HEX[b >> 4]).append(HEX[b & 0xf]);
+        }
+    }
+}
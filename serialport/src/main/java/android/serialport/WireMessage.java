@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class as a binary message for the serialport_codegen annotation processor
+ *
+ * For a class Foo the processor generates FooCodec in the same package with
+ *
+ *   static int encodedLength(Foo m)
+ *   static int encode(Foo m, byte[] buffer, int offset)
+ *   static int decode(byte[] buffer, int offset, int length, Foo m)
+ *
+ * encode() and decode() work in place on the caller's buffer and message instance, there is
+ * no reflection and nothing is allocated. Only the fields annotated with {@link WireField}
+ * are on the wire, in {@link WireField#order()} order; they must not be private.
+ *
+ * To use it: annotationProcessor project(':serialport_codegen')
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface WireMessage {
+    /**
+     * Byte order of multi-byte fields and bitfield groups
+     */
+    boolean bigEndian() default true;
+}
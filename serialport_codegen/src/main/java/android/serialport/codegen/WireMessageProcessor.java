@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport.codegen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates allocation-free codecs for android.serialport.WireMessage classes
+ *
+ * The annotations are looked up by name so this host-side module does not depend on the
+ * Android library.
+ */
+public class WireMessageProcessor extends AbstractProcessor {
+
+    private static final String WIRE_MESSAGE = "android.serialport.WireMessage";
+    private static final String WIRE_FIELD = "android.serialport.WireField";
+    private static final String WIRE_CODEC = "android.serialport.WireCodec";
+
+    private static class Field {
+        String name;
+        TypeKind kind;
+        boolean isByteArray;
+        int order;
+        int bits;
+        int length;
+        int lengthPrefix;
+        boolean remainder;
+
+        boolean isVariable() {
+            return lengthPrefix > 0 || remainder;
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> types = new HashSet<String>();
+        types.add(WIRE_MESSAGE);
+        types.add(WIRE_FIELD);
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement wireMessage = processingEnv.getElementUtils().getTypeElement(WIRE_MESSAGE);
+        if (wireMessage == null) {
+            return false;
+        }
+        for (Element e : roundEnv.getElementsAnnotatedWith(wireMessage)) {
+            if (e.getKind() != ElementKind.CLASS) {
+                error(e, "@WireMessage only applies to classes");
+                continue;
+            }
+            try {
+                generate((TypeElement) e);
+            } catch (IOException ex) {
+                error(e, "cannot write codec: " + ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void error(Element e, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+    }
+
+    private static AnnotationMirror findAnnotation(Element e, String name) {
+        for (AnnotationMirror m : e.getAnnotationMirrors()) {
+            if (((TypeElement) m.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private Object value(AnnotationMirror m, String key, Object defaultValue) {
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values =
+                processingEnv.getElementUtils().getElementValuesWithDefaults(m);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> v : values.entrySet()) {
+            if (v.getKey().getSimpleName().contentEquals(key)) {
+                return v.getValue().getValue();
+            }
+        }
+        return defaultValue;
+    }
+
+    private static int naturalSize(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+            case BYTE:
+                return 1;
+            case CHAR:
+            case SHORT:
+                return 2;
+            case INT:
+            case FLOAT:
+                return 4;
+            case LONG:
+            case DOUBLE:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    private List<Field> collectFields(TypeElement type) {
+        List<Field> fields = new ArrayList<Field>();
+        Set<String> names = new HashSet<String>();
+        for (Element e : type.getEnclosedElements()) {
+            if (e.getKind() == ElementKind.FIELD) {
+                names.add(e.getSimpleName().toString());
+            }
+        }
+        for (Element e : type.getEnclosedElements()) {
+            AnnotationMirror m = findAnnotation(e, WIRE_FIELD);
+            if (m == null || e.getKind() != ElementKind.FIELD) {
+                continue;
+            }
+            if (e.getModifiers().contains(Modifier.PRIVATE) || e.getModifiers().contains(Modifier.STATIC)) {
+                error(e, "@WireField fields must be non-private instance fields");
+                return null;
+            }
+            Field f = new Field();
+            f.name = e.getSimpleName().toString();
+            TypeMirror t = ((VariableElement) e).asType();
+            f.kind = t.getKind();
+            f.isByteArray = t.toString().equals("byte[]");
+            f.order = (Integer) value(m, "order", 0);
+            f.bits = (Integer) value(m, "bits", 0);
+            f.length = (Integer) value(m, "length", 0);
+            f.lengthPrefix = (Integer) value(m, "lengthPrefix", 0);
+            f.remainder = (Boolean) value(m, "remainder", false);
+            if (f.isByteArray) {
+                int kinds = (f.length > 0 ? 1 : 0) + (f.lengthPrefix > 0 ? 1 : 0) + (f.remainder ? 1 : 0);
+                if (kinds != 1) {
+                    error(e, "byte[] fields need exactly one of length, lengthPrefix or remainder");
+                    return null;
+                }
+                if (f.lengthPrefix > 2) {
+                    error(e, "lengthPrefix must be 1 or 2");
+                    return null;
+                }
+                if (f.isVariable() && !names.contains(f.name + "Length")) {
+                    error(e, "variable length field needs an int field " + f.name + "Length");
+                    return null;
+                }
+            } else if (f.remainder) {
+                error(e, "only byte[] fields can be a remainder");
+                return null;
+            } else if (naturalSize(f.kind) == 0) {
+                error(e, "unsupported @WireField type " + t);
+                return null;
+            } else if (f.bits < 0 || f.bits > 8 * naturalSize(f.kind)
+                    || (f.bits > 0 && (f.kind == TypeKind.FLOAT || f.kind == TypeKind.DOUBLE))) {
+                error(e, "invalid bits for " + t);
+                return null;
+            }
+            fields.add(f);
+        }
+        Collections.sort(fields, new Comparator<Field>() {
+            @Override
+            public int compare(Field a, Field b) {
+                return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+            }
+        });
+        return fields;
+    }
+
+    /**
+     * Split the fields in runs, consecutive bitfields being one run
+     */
+    private List<List<Field>> groups(TypeElement type, List<Field> fields) {
+        List<List<Field>> groups = new ArrayList<List<Field>>();
+        List<Field> bitGroup = null;
+        int bits = 0;
+        for (Field f : fields) {
+            if (f.bits > 0) {
+                if (bitGroup == null) {
+                    bitGroup = new ArrayList<Field>();
+                    groups.add(bitGroup);
+                    bits = 0;
+                }
+                bitGroup.add(f);
+                bits += f.bits;
+                if (bits > 64) {
+                    error(type, "bitfield group wider than 64 bits at " + f.name);
+                    return null;
+                }
+            } else {
+                if (bitGroup != null && bits % 8 != 0) {
+                    error(type, "bitfield group ending before " + f.name + " is not a whole number of bytes");
+                    return null;
+                }
+                bitGroup = null;
+                groups.add(Collections.singletonList(f));
+            }
+        }
+        if (bitGroup != null && bits % 8 != 0) {
+            error(type, "last bitfield group is not a whole number of bytes");
+            return null;
+        }
+        /* a remainder is delimited by the fixed size of what follows it */
+        boolean afterRemainder = false;
+        for (Field f : fields) {
+            if (afterRemainder && f.isVariable()) {
+                error(type, "no variable length field can follow the remainder, found " + f.name);
+                return null;
+            }
+            afterRemainder |= f.remainder;
+        }
+        return groups;
+    }
+
+    private static int groupBytes(List<Field> group) {
+        int bits = 0;
+        for (Field f : group) {
+            bits += f.bits;
+        }
+        return bits / 8;
+    }
+
+    /* bytes on the wire of a group, 0 for a variable field */
+    private static int fixedBytes(List<Field> group) {
+        Field f = group.get(0);
+        if (f.bits > 0) {
+            return groupBytes(group);
+        } else if (f.isByteArray) {
+            return f.isVariable() ? 0 : f.length;
+        }
+        return naturalSize(f.kind);
+    }
+
+    private static String toLong(Field f) {
+        switch (f.kind) {
+            case BOOLEAN:
+                return "(m." + f.name + " ? 1L : 0L)";
+            case FLOAT:
+                return "Float.floatToRawIntBits(m." + f.name + ")";
+            case DOUBLE:
+                return "Double.doubleToRawLongBits(m." + f.name + ")";
+            default:
+                return "m." + f.name;
+        }
+    }
+
+    private static String fromLong(Field f, String expr) {
+        switch (f.kind) {
+            case BOOLEAN:
+                return "(" + expr + ") != 0";
+            case FLOAT:
+                return "Float.intBitsToFloat((int) (" + expr + "))";
+            case DOUBLE:
+                return "Double.longBitsToDouble(" + expr + ")";
+            case LONG:
+                return expr;
+            default:
+                return "(" + f.kind.toString().toLowerCase() + ") (" + expr + ")";
+        }
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        List<Field> fields = collectFields(type);
+        if (fields == null) {
+            return;
+        }
+        List<List<Field>> groups = groups(type, fields);
+        if (groups == null) {
+            return;
+        }
+        boolean bigEndian = (Boolean) value(findAnnotation(type, WIRE_MESSAGE), "bigEndian", true);
+        String be = Boolean.toString(bigEndian);
+
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String message = type.getQualifiedName().toString();
+        String codec = type.getSimpleName() + "Codec";
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                pkg.isEmpty() ? codec : pkg + "." + codec, type);
+        PrintWriter w = new PrintWriter(file.openWriter());
+        try {
+            if (!pkg.isEmpty()) {
+                w.println("package " + pkg + ";");
+                w.println();
+            }
+            w.println("import " + WIRE_CODEC + ";");
+            w.println();
+            w.println("/* Generated by " + getClass().getName() + " from " + message + ", do not edit */");
+            /* as visible as the message, its methods take one */
+            String visibility = type.getModifiers().contains(Modifier.PUBLIC) ? "public " : "";
+            w.println(visibility + "final class " + codec + " {");
+            w.println();
+            w.println("    private " + codec + "() {");
+            w.println("    }");
+
+            /* encodedLength */
+            int fixed = 0;
+            StringBuilder variable = new StringBuilder();
+            for (List<Field> g : groups) {
+                Field f = g.get(0);
+                fixed += fixedBytes(g) + f.lengthPrefix;
+                if (f.isVariable()) {
+                    variable.append(" + m.").append(f.name).append("Length");
+                }
+            }
+            w.println();
+            w.println("    public static int encodedLength(" + message + " m) {");
+            w.println("        return " + fixed + variable + ";");
+            w.println("    }");
+
+            /* encode */
+            w.println();
+            w.println("    public static int encode(" + message + " m, byte[] buffer, int offset) {");
+            for (List<Field> g : groups) {
+                Field f = g.get(0);
+                if (f.isVariable()) {
+                    w.println("        WireCodec.checkLength(\"" + f.name + "\", m." + f.name + "Length, m."
+                            + f.name + ", " + f.lengthPrefix + ");");
+                }
+            }
+            w.println("        int p = offset;");
+            for (List<Field> g : groups) {
+                Field f = g.get(0);
+                if (f.bits > 0) {
+                    w.println("        {");
+                    w.println("            long bits = 0;");
+                    for (Field b : g) {
+                        w.println("            bits = (bits << " + b.bits + ") | (" + toLong(b) + " & 0x"
+                                + Long.toHexString(mask(b.bits)) + "L);");
+                    }
+                    w.println("            p = WireCodec.put(buffer, p, bits, " + groupBytes(g) + ", " + be + ");");
+                    w.println("        }");
+                } else if (f.isByteArray && f.lengthPrefix > 0) {
+                    w.println("        p = WireCodec.put(buffer, p, m." + f.name + "Length, " + f.lengthPrefix + ", " + be + ");");
+                    w.println("        System.arraycopy(m." + f.name + ", 0, buffer, p, m." + f.name + "Length);");
+                    w.println("        p += m." + f.name + "Length;");
+                } else if (f.remainder) {
+                    w.println("        System.arraycopy(m." + f.name + ", 0, buffer, p, m." + f.name + "Length);");
+                    w.println("        p += m." + f.name + "Length;");
+                } else if (f.isByteArray) {
+                    w.println("        System.arraycopy(m." + f.name + ", 0, buffer, p, " + f.length + ");");
+                    w.println("        p += " + f.length + ";");
+                } else {
+                    w.println("        p = WireCodec.put(buffer, p, " + toLong(f) + ", " + naturalSize(f.kind) + ", " + be + ");");
+                }
+            }
+            w.println("        return p - offset;");
+            w.println("    }");
+
+            /* decode */
+            w.println();
+            w.println("    /**");
+            w.println("     * @return the number of bytes consumed, WireCodec.INCOMPLETE or WireCodec.MALFORMED");
+            w.println("     */");
+            w.println("    public static int decode(byte[] buffer, int offset, int length, " + message + " m) {");
+            w.println("        int p = offset;");
+            w.println("        final int end = offset + length;");
+            for (int i = 0; i < groups.size(); i++) {
+                List<Field> g = groups.get(i);
+                Field f = g.get(0);
+                if (f.bits > 0) {
+                    int n = groupBytes(g);
+                    w.println("        if (end - p < " + n + ") return WireCodec.INCOMPLETE;");
+                    w.println("        {");
+                    w.println("            long bits = WireCodec.get(buffer, p, " + n + ", " + be + ");");
+                    for (int j = g.size() - 1; j >= 0; j--) {
+                        Field b = g.get(j);
+                        w.println("            m." + b.name + " = " + fromLong(b, "bits & 0x" + Long.toHexString(mask(b.bits)) + "L") + ";");
+                        if (j > 0) {
+                            w.println("            bits >>>= " + b.bits + ";");
+                        }
+                    }
+                    w.println("            p += " + n + ";");
+                    w.println("        }");
+                } else if (f.isByteArray && f.lengthPrefix > 0) {
+                    w.println("        if (end - p < " + f.lengthPrefix + ") return WireCodec.INCOMPLETE;");
+                    w.println("        {");
+                    w.println("            int n = (int) WireCodec.get(buffer, p, " + f.lengthPrefix + ", " + be + ");");
+                    w.println("            p += " + f.lengthPrefix + ";");
+                    w.println("            if (n > m." + f.name + ".length) return WireCodec.MALFORMED;");
+                    w.println("            if (end - p < n) return WireCodec.INCOMPLETE;");
+                    w.println("            System.arraycopy(buffer, p, m." + f.name + ", 0, n);");
+                    w.println("            m." + f.name + "Length = n;");
+                    w.println("            p += n;");
+                    w.println("        }");
+                } else if (f.remainder) {
+                    int tail = 0;
+                    for (List<Field> after : groups.subList(i + 1, groups.size())) {
+                        tail += fixedBytes(after);
+                    }
+                    w.println("        {");
+                    w.println("            int n = end - p - " + tail + ";");
+                    w.println("            if (n < 0) return WireCodec.INCOMPLETE;");
+                    w.println("            if (n > m." + f.name + ".length) return WireCodec.MALFORMED;");
+                    w.println("            System.arraycopy(buffer, p, m." + f.name + ", 0, n);");
+                    w.println("            m." + f.name + "Length = n;");
+                    w.println("            p += n;");
+                    w.println("        }");
+                } else if (f.isByteArray) {
+                    w.println("        if (end - p < " + f.length + ") return WireCodec.INCOMPLETE;");
+                    w.println("        System.arraycopy(buffer, p, m." + f.name + ", 0, " + f.length + ");");
+                    w.println("        p += " + f.length + ";");
+                } else {
+                    int n = naturalSize(f.kind);
+                    w.println("        if (end - p < " + n + ") return WireCodec.INCOMPLETE;");
+                    w.println("        m." + f.name + " = " + fromLong(f, "WireCodec.get(buffer, p, " + n + ", " + be + ")") + ";");
+                    w.println("        p += " + n + ";");
+                }
+            }
+            w.println("        return p - offset;");
+            w.println("    }");
+            w.println("}");
+        } finally {
+            w.close();
+        }
+    }
+
+    private static long mask(int bits) {
+        return bits == 64 ? -1L : (1L << bits) - 1;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdarg.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+#include "android/log.h"
+
+/*
+ * __android_log_print() on stderr, in logcat's brief format. The minimum priority comes
+ * from SERIALPORT_LOG_LEVEL (v, d, i, w or e), info by default.
+ */
+
+static const char LEVELS[] = "??VDIWEFS";
+static int minPriority = -1;
+
+static int getMinPriority(void)
+{
+	if (minPriority < 0) {
+		const char *level = getenv("SERIALPORT_LOG_LEVEL");
+		int prio;
+		minPriority = ANDROID_LOG_INFO;
+		for (prio = ANDROID_LOG_VERBOSE; level != NULL && prio <= ANDROID_LOG_SILENT; prio++) {
+			if ((level[0] & ~0x20) == LEVELS[prio]) {
+				minPriority = prio;
+				break;
+			}
+		}
+	}
+	return minPriority;
+}
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...)
+{
+	va_list ap;
+	int n;
+
+	if (prio < getMinPriority()) {
+		return 0;
+	}
+	if (prio < 0 || prio > ANDROID_LOG_SILENT) {
+		prio = ANDROID_LOG_UNKNOWN;
+	}
+	flockfile(stderr);
+	n = fprintf(stderr, "%c/%s: ", LEVELS[prio], tag);
+	va_start(ap, fmt);
+	n += vfprintf(stderr, fmt, ap);
+	va_end(ap);
+	fputc('\n', stderr);
+	funlockfile(stderr);
+	return n + 1;
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+#include <errno.h>
+#include <pty.h>
+#include <string.h>
+#include <termios.h>
+#include <unistd.h>
+#include <jni.h>
+
+#include "android/log.h"
+static const char *TAG="pseudo_terminal";
+#define LOGD(fmt, args...) __android_log_print(ANDROID_LOG_DEBUG, TAG, fmt, ##args)
+#define LOGE(fmt, args...) __android_log_print(ANDROID_LOG_ERROR, TAG, fmt, ##args)
+
+/* OpenJDK keeps the descriptor in "fd" */
+static jfieldID getDescriptorField(JNIEnv *env)
+{
+	jclass FileDescriptorClass = (*env)->FindClass(env, "java/io/FileDescriptor");
+	return (*env)->GetFieldID(env, FileDescriptorClass, "fd", "I");
+}
+
+JNIEXPORT jstring JNICALL Java_android_serialport_PseudoTerminal_nativeOpen
+  (JNIEnv *env, jclass clazz, jobject master, jobject slave)
+{
+	int mfd, sfd;
+	char name[64];
+	struct termios cfg;
+	jfieldID descriptorID = getDescriptorField(env);
+
+	if (descriptorID == NULL) {
+		return NULL;
+	}
+	if (openpty(&mfd, &sfd, name, NULL, NULL)) {
+		LOGE("openpty() failed: %s", strerror(errno));
+		return NULL;
+	}
+	if (tcgetattr(sfd, &cfg) == 0) {
+		cfmakeraw(&cfg);
+		tcsetattr(sfd, TCSANOW, &cfg);
+	}
+	LOGD("openpty() master fd = %d, slave fd = %d, %s", mfd, sfd, name);
+	(*env)->SetIntField(env, master, descriptorID, mfd);
+	(*env)->SetIntField(env, slave, descriptorID, sfd);
+	return (*env)->NewStringUTF(env, name);
+}
+
+JNIEXPORT void JNICALL Java_android_serialport_PseudoTerminal_nativeClose
+  (JNIEnv *env, jclass clazz, jobject fd)
+{
+	jfieldID descriptorID = getDescriptorField(env);
+	jint descriptor = (*env)->GetIntField(env, fd, descriptorID);
+
+	if (descriptor >= 0) {
+		LOGD("close(fd = %d)", descriptor);
+		close(descriptor);
+		(*env)->SetIntField(env, fd, descriptorID, -1);
+	}
+}
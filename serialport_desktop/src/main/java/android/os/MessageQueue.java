@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Messages of a Looper ordered by delivery time, a plain monitor instead of epoll
+ */
+public final class MessageQueue {
+
+    private Message mMessages;
+    private boolean mQuitting;
+
+    MessageQueue() {
+    }
+
+    synchronized boolean enqueueMessage(Message msg, long when) {
+        if (mQuitting) {
+            return false;
+        }
+        msg.when = when;
+        /* after the messages due at the same time, so equal times keep their order */
+        if (mMessages == null || when < mMessages.when) {
+            msg.next = mMessages;
+            mMessages = msg;
+        } else {
+            Message prev = mMessages;
+            while (prev.next != null && prev.next.when <= when) {
+                prev = prev.next;
+            }
+            msg.next = prev.next;
+            prev.next = msg;
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * The next due message, null once the queue quits
+     */
+    synchronized Message next() {
+        while (true) {
+            long now = SystemClock.uptimeMillis();
+            Message msg = mMessages;
+            if (msg != null && msg.when <= now) {
+                mMessages = msg.next;
+                msg.next = null;
+                return msg;
+            }
+            if (mQuitting) {
+                return null;
+            }
+            try {
+                if (msg == null) {
+                    wait();
+                } else {
+                    wait(msg.when - now);
+                }
+            } catch (InterruptedException e) {
+                /* like on Android, interrupting a looper thread does not stop it */
+            }
+        }
+    }
+
+    synchronized boolean hasMessages(Handler h, int what) {
+        for (Message m = mMessages; m != null; m = m.next) {
+            if (m.target == h && m.callback == null && m.what == what) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* what is ignored when r is given */
+    synchronized void removeMessages(Handler h, int what, Runnable r, Object obj) {
+        Message prev = null;
+        Message m = mMessages;
+        while (m != null) {
+            Message next = m.next;
+            boolean match = m.target == h && (obj == null || m.obj == obj)
+                    && (r != null ? m.callback == r : m.callback == null && m.what == what);
+            if (match) {
+                if (prev == null) {
+                    mMessages = next;
+                } else {
+                    prev.next = next;
+                }
+                m.next = null;
+            } else {
+                prev = m;
+            }
+            m = next;
+        }
+    }
+
+    /* all of the handler's messages when token is null */
+    synchronized void removeCallbacksAndMessages(Handler h, Object token) {
+        Message prev = null;
+        Message m = mMessages;
+        while (m != null) {
+            Message next = m.next;
+            if (m.target == h && (token == null || m.obj == token)) {
+                if (prev == null) {
+                    mMessages = next;
+                } else {
+                    prev.next = next;
+                }
+                m.next = null;
+            } else {
+                prev = m;
+            }
+            m = next;
+        }
+    }
+
+    /**
+     * @param safe deliver what is already due first
+     */
+    synchronized void quit(boolean safe) {
+        if (mQuitting) {
+            return;
+        }
+        mQuitting = true;
+        if (safe) {
+            long now = SystemClock.uptimeMillis();
+            Message m = mMessages;
+            if (m == null || m.when > now) {
+                mMessages = null;
+            } else {
+                while (m.next != null && m.next.when <= now) {
+                    m = m.next;
+                }
+                m.next = null;
+            }
+        } else {
+            mMessages = null;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A scripted serial device on a pseudo-terminal, host only
+ *
+ * Open a {@link SerialPort} on {@link #getSlavePath()}. The device reads commands, framed by
+ * a terminator byte or matched as they arrive, and answers by the {@link Model} rules after a
+ * latency with jitter, in chunks, at line rate, optionally corrupting or dropping replies.
+ * Replies leave in command order, like from a real device. Random choices come from a
+ * seeded generator, so a run with the same model and commands sends the same bytes.
+ *
+ * A model can also be read from a script, see {@link Model#parse(Reader)}.
+ */
+public class DeviceSimulator {
+
+    private static final String TAG = "DeviceSimulator";
+
+    public static final int NO_TERMINATOR = -1;
+    /* bit times per character on the simulated line, 8N1 */
+    private static final int FRAME_BITS = 10;
+    /* at line rate bytes are written in slices of about this long, parkNanos cannot do finer */
+    private static final int PACE_SLICE_US = 500;
+    private static final int MAX_COMMAND_LENGTH = 4096;
+
+    /**
+     * The device's behaviour
+     */
+    public static class Model {
+        private final List<Rule> mRules = new ArrayList<Rule>();
+        private byte[] mDefaultResponse;
+        private int mTerminator = NO_TERMINATOR;
+        private int mLatencyUs;
+        private int mJitterUs;
+        private int mMinChunk;
+        private int mMaxChunk;
+        private int mChunkGapUs;
+        private double mNoise;
+        private double mDrop;
+        private int mBaudrate;
+        private long mSeed = 1;
+
+        /**
+         * Reply to request with response, null for no reply
+         */
+        public Model on(byte[] request, byte[] response) {
+            mRules.add(new Rule(request, response, false));
+            return this;
+        }
+
+        public Model on(String request, String response) {
+            return on(bytes(request), response == null ? null : bytes(response));
+        }
+
+        /**
+         * Reply to every request starting with prefix, needs a terminator
+         */
+        public Model onPrefix(byte[] prefix, byte[] response) {
+            mRules.add(new Rule(prefix, response, true));
+            return this;
+        }
+
+        public Model onPrefix(String prefix, String response) {
+            return onPrefix(bytes(prefix), response == null ? null : bytes(response));
+        }
+
+        /**
+         * Reply to requests no rule matches, null (the default) to ignore them; without a
+         * terminator a run of bytes no rule can start with is one such request
+         */
+        public Model setDefaultResponse(byte[] response) {
+            mDefaultResponse = response;
+            return this;
+        }
+
+        /**
+         * The byte ending every request, part of the request the rules match; with
+         * NO_TERMINATOR (the default) requests are matched as bytes arrive, and leading bytes
+         * no rule can start with are skipped
+         */
+        public Model setTerminator(int terminator) {
+            mTerminator = terminator;
+            return this;
+        }
+
+        /**
+         * Time from the end of a request to the start of the reply, uniformly spread by
+         * plus or minus jitter
+         */
+        public Model setLatency(int latency_us, int jitter_us) {
+            mLatencyUs = latency_us;
+            mJitterUs = jitter_us;
+            return this;
+        }
+
+        /**
+         * Write replies in chunks of min to max bytes, gap apart; 0 writes them whole
+         */
+        public Model setChunks(int min, int max, int gap_us) {
+            mMinChunk = min;
+            mMaxChunk = Math.max(min, max);
+            mChunkGapUs = gap_us;
+            return this;
+        }
+
+        /**
+         * Probability for each byte sent to have a bit flipped
+         */
+        public Model setNoise(double probability) {
+            mNoise = probability;
+            return this;
+        }
+
+        /**
+         * Probability for a reply not to be sent at all
+         */
+        public Model setDropRate(double probability) {
+            mDrop = probability;
+            return this;
+        }
+
+        /**
+         * Send no faster than the line would at this rate (8N1), 0 for no limit: every byte is
+         * written when the line would have finished sending it, a few at a time
+         */
+        public Model setBaudrate(int baudrate) {
+            mBaudrate = baudrate;
+            return this;
+        }
+
+        public Model setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        /**
+         * Read a model from a script, one directive per line, # starts a comment:
+         *
+         * <pre>
+         * terminator "."          # or a hex byte (0d), or none
+         * on "TRGMOD?." "TRGMOD0\x06."
+         * on "PWRDWN."            # no reply
+         * prefix "TRGSTO" "\x06."
+         * default "\x15."
+         * latency 2000 500        # microseconds, jitter
+         * chunk 1 8 100           # bytes min, max, gap in microseconds
+         * noise 0.0001
+         * drop 0.01
+         * baudrate 115200
+         * seed 42
+         * </pre>
+         *
+         * Strings take \r, \n, \t, \\, \" and \xHH escapes.
+         */
+        public static Model parse(Reader reader) throws IOException {
+            Model model = new Model();
+            BufferedReader r = new BufferedReader(reader);
+            String line;
+            int n = 0;
+            while ((line = r.readLine()) != null) {
+                n++;
+                List<Object> args = tokenize(line, n);
+                if (args.isEmpty()) {
+                    continue;
+                }
+                String directive = String.valueOf(args.get(0));
+                try {
+                    if (directive.equals("on") || directive.equals("prefix")) {
+                        byte[] request = (byte[]) args.get(1);
+                        byte[] response = args.size() > 2 ? (byte[]) args.get(2) : null;
+                        if (directive.equals("on")) {
+                            model.on(request, response);
+                        } else {
+                            model.onPrefix(request, response);
+                        }
+                    } else if (directive.equals("default")) {
+                        model.setDefaultResponse((byte[]) args.get(1));
+                    } else if (directive.equals("terminator")) {
+                        Object t = args.get(1);
+                        if (t instanceof byte[]) {
+                            model.setTerminator(((byte[]) t)[0] & 0xff);
+                        } else if (t.equals("none")) {
+                            model.setTerminator(NO_TERMINATOR);
+                        } else {
+                            model.setTerminator(Integer.parseInt((String) t, 16));
+                        }
+                    } else if (directive.equals("latency")) {
+                        model.setLatency(integer(args, 1, 0), integer(args, 2, 0));
+                    } else if (directive.equals("chunk")) {
+                        int min = integer(args, 1, 0);
+                        model.setChunks(min, integer(args, 2, min), integer(args, 3, 0));
+                    } else if (directive.equals("noise")) {
+                        model.setNoise(Double.parseDouble((String) args.get(1)));
+                    } else if (directive.equals("drop")) {
+                        model.setDropRate(Double.parseDouble((String) args.get(1)));
+                    } else if (directive.equals("baudrate")) {
+                        model.setBaudrate(integer(args, 1, 0));
+                    } else if (directive.equals("seed")) {
+                        model.setSeed(Long.parseLong((String) args.get(1)));
+                    } else {
+                        throw new IOException("line " + n + ": unknown directive " + directive);
+                    }
+                } catch (RuntimeException e) {
+                    /* missing, misplaced or malformed arguments */
+                    throw new IOException("line " + n + ": " + line.trim(), e);
+                }
+            }
+            return model;
+        }
+
+        private static int integer(List<Object> args, int index, int defaultValue) {
+            return args.size() > index ? Integer.parseInt((String) args.get(index)) : defaultValue;
+        }
+
+        /* words as String, quoted strings as byte[] */
+        private static List<Object> tokenize(String line, int n) throws IOException {
+            List<Object> tokens = new ArrayList<Object>();
+            int i = 0;
+            while (i < line.length()) {
+                char c = line.charAt(i);
+                if (c == '#') {
+                    break;
+                } else if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '"') {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    i++;
+                    while (true) {
+                        if (i >= line.length()) {
+                            throw new IOException("line " + n + ": unterminated string");
+                        }
+                        c = line.charAt(i++);
+                        if (c == '"') {
+                            break;
+                        }
+                        if (c == '\\' && i < line.length()) {
+                            c = line.charAt(i++);
+                            switch (c) {
+                                case 'r': out.write('\r'); break;
+                                case 'n': out.write('\n'); break;
+                                case 't': out.write('\t'); break;
+                                case 'x':
+                                    if (i + 2 > line.length()) {
+                                        throw new IOException("line " + n + ": bad \\x escape");
+                                    }
+                                    out.write(Integer.parseInt(line.substring(i, i + 2), 16));
+                                    i += 2;
+                                    break;
+                                default: out.write(c); break;
+                            }
+                        } else {
+                            out.write(c);
+                        }
+                    }
+                    tokens.add(out.toByteArray());
+                } else {
+                    int start = i;
+                    while (i < line.length() && !Character.isWhitespace(line.charAt(i))) {
+                        i++;
+                    }
+                    tokens.add(line.substring(start, i));
+                }
+            }
+            return tokens;
+        }
+
+        private static byte[] bytes(String s) {
+            byte[] b = new byte[s.length()];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = (byte) s.charAt(i);
+            }
+            return b;
+        }
+    }
+
+    private static class Rule {
+        final byte[] mRequest;
+        final byte[] mResponse;
+        final boolean mPrefix;
+
+        Rule(byte[] request, byte[] response, boolean prefix) {
+            mRequest = request;
+            mResponse = response;
+            mPrefix = prefix;
+        }
+
+        /* length bytes may be the start of a request this rule matches */
+        boolean canMatch(byte[] buffer, int length) {
+            for (int i = 0; i < length && i < mRequest.length; i++) {
+                if (buffer[i] != mRequest[i]) {
+                    return false;
+                }
+            }
+            return mPrefix || length <= mRequest.length;
+        }
+
+        boolean matches(byte[] buffer, int length) {
+            if (mPrefix ? length < mRequest.length : length != mRequest.length) {
+                return false;
+            }
+            for (int i = 0; i < mRequest.length; i++) {
+                if (buffer[i] != mRequest[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /* a reply waiting for its time */
+    private static class Reply {
+        final long mDue;
+        final byte[] mData;
+
+        Reply(long due, byte[] data) {
+            mDue = due;
+            mData = data;
+        }
+    }
+
+    private final Model mModel;
+    private final PseudoTerminal mPty;
+    private final Random mRandom;
+    private final LinkedBlockingQueue<Reply> mReplies = new LinkedBlockingQueue<Reply>();
+    private Thread mReader;
+    private Thread mWriter;
+    private volatile boolean mClosed;
+
+    private volatile long mRequestCount;
+    private volatile long mUnmatchedCount;
+    private volatile long mDroppedCount;
+    private volatile long mReplyCount;
+    private volatile long mBytesSent;
+    private volatile long mCorruptedBytes;
+
+    public DeviceSimulator(Model model) throws IOException {
+        mModel = model;
+        mRandom = new Random(model.mSeed);
+        mPty = new PseudoTerminal();
+    }
+
+    public String getSlavePath() {
+        return mPty.getSlavePath();
+    }
+
+    public void start() {
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "DeviceSimulator reader");
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "DeviceSimulator writer");
+        mReader.setDaemon(true);
+        mWriter.setDaemon(true);
+        mReader.start();
+        mWriter.start();
+    }
+
+    public void close() {
+        mClosed = true;
+        if (mWriter != null) {
+            mWriter.interrupt();
+        }
+        try {
+            mPty.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e);
+        }
+    }
+
+    public long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public long getUnmatchedCount() {
+        return mUnmatchedCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public long getReplyCount() {
+        return mReplyCount;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getCorruptedBytes() {
+        return mCorruptedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + mRequestCount + " unmatched=" + mUnmatchedCount + " dropped="
+                + mDroppedCount + " replies=" + mReplyCount + " bytes=" + mBytesSent
+                + " corrupted=" + mCorruptedBytes;
+    }
+
+    private void readLoop() {
+        InputStream in = mPty.getMasterInputStream();
+        byte[] buffer = new byte[4096];
+        byte[] request = new byte[MAX_COMMAND_LENGTH];
+        int length = 0;
+        /* skipping bytes no rule can start with, without a terminator */
+        boolean skipping = false;
+        try {
+            int n;
+            while (!mClosed && (n = in.read(buffer)) > 0) {
+                long now = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    if (length == request.length) {
+                        /* runaway input without terminator, keep the newest half */
+                        System.arraycopy(request, length / 2, request, 0, length - length / 2);
+                        length -= length / 2;
+                    }
+                    request[length++] = buffer[i];
+                    if (mModel.mTerminator != NO_TERMINATOR) {
+                        if ((buffer[i] & 0xff) == mModel.mTerminator) {
+                            Rule rule = match(request, length);
+                            reply(rule, now);
+                            length = 0;
+                        }
+                    } else {
+                        while (length > 0) {
+                            Rule rule = match(request, length);
+                            if (rule != null) {
+                                reply(rule, now);
+                                length = 0;
+                                skipping = false;
+                            } else if (!canMatch(request, length)) {
+                                /* noise or an unknown request, one default reply per run */
+                                if (!skipping) {
+                                    reply(null, now);
+                                    skipping = true;
+                                }
+                                System.arraycopy(request, 1, request, 0, --length);
+                            } else {
+                                skipping = false;
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            /* the pty is closed */
+        }
+        Log.v(TAG, "reader exits, " + this);
+    }
+
+    private boolean canMatch(byte[] request, int length) {
+        for (Rule rule : mModel.mRules) {
+            if (rule.canMatch(request, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Rule match(byte[] request, int length) {
+        for (Rule rule : mModel.mRules) {
+            if (rule.matches(request, length)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /* called on the reader thread only, which owns mRandom */
+    private void reply(Rule rule, long now) {
+        mRequestCount++;
+        byte[] response;
+        if (rule != null) {
+            response = rule.mResponse;
+        } else {
+            mUnmatchedCount++;
+            response = mModel.mDefaultResponse;
+        }
+        if (response == null) {
+            return;
+        }
+        if (mModel.mDrop > 0 && mRandom.nextDouble() < mModel.mDrop) {
+            mDroppedCount++;
+            return;
+        }
+        byte[] data = response;
+        if (mModel.mNoise > 0) {
+            data = response.clone();
+            for (int i = 0; i < data.length; i++) {
+                if (mRandom.nextDouble() < mModel.mNoise) {
+                    data[i] ^= 1 << mRandom.nextInt(8);
+                    mCorruptedBytes++;
+                }
+            }
+        }
+        long latency = mModel.mLatencyUs;
+        if (mModel.mJitterUs > 0) {
+            latency += mRandom.nextInt(2 * mModel.mJitterUs + 1) - mModel.mJitterUs;
+        }
+        mReplies.add(new Reply(now + Math.max(0, latency) * 1000, data));
+    }
+
+    private void writeLoop() {
+        OutputStream out = mPty.getMasterOutputStream();
+        /* chunk sizes are drawn here, separately from the reader's choices */
+        Random random = new Random(mModel.mSeed + 1);
+        long lineFree = 0;
+        int baudrate = mModel.mBaudrate;
+        long byteNs = baudrate > 0 ? FRAME_BITS * 1000000000L / baudrate : 0;
+        int slice = baudrate > 0 ? (int) Math.max(1, PACE_SLICE_US * 1000L / byteNs)
+                : Integer.MAX_VALUE;
+        try {
+            while (!mClosed) {
+                Reply reply = mReplies.take();
+                long t = Math.max(reply.mDue, lineFree);
+                int offset = 0;
+                while (offset < reply.mData.length) {
+                    int chunk = reply.mData.length - offset;
+                    if (mModel.mMaxChunk > 0) {
+                        int size = mModel.mMinChunk
+                                + random.nextInt(mModel.mMaxChunk - mModel.mMinChunk + 1);
+                        chunk = Math.min(chunk, Math.max(1, size));
+                    }
+                    int end = offset + chunk;
+                    while (offset < end) {
+                        /* a slice arrives once its last byte is through the line */
+                        int n = Math.min(slice, end - offset);
+                        t += n * byteNs;
+                        sleepUntil(t);
+                        out.write(reply.mData, offset, n);
+                        offset += n;
+                        mBytesSent += n;
+                    }
+                    if (offset < reply.mData.length) {
+                        t += mModel.mChunkGapUs * 1000L;
+                    }
+                }
+                lineFree = t;
+                mReplyCount++;
+            }
+        } catch (InterruptedException e) {
+            /* closed */
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.e(TAG, "write: " + e);
+            }
+        }
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Run the device described by a script until killed:
+     * DeviceSimulator &lt;script&gt;
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("usage: DeviceSimulator <script>");
+            System.exit(2);
+        }
+        Model model;
+        Reader reader = new FileReader(args[0]);
+        try {
+            model = Model.parse(reader);
+        } finally {
+            reader.close();
+        }
+        DeviceSimulator simulator = new DeviceSimulator(model);
+        simulator.start();
+        System.out.println(simulator.getSlavePath());
+        while (true) {
+            Thread.sleep(10000);
+            System.err.println(simulator);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A pseudo-terminal pair from openpty(), host only
+ *
+ * Open a {@link SerialPort} on {@link #getSlavePath()} and play the device on the master
+ * streams. The slave starts in raw mode, so nothing is echoed before the port is configured.
+ */
+public class PseudoTerminal implements Closeable {
+
+    private final FileDescriptor mMaster = new FileDescriptor();
+    private final FileDescriptor mSlave = new FileDescriptor();
+    private final String mSlavePath;
+    private final FileInputStream mMasterInputStream;
+    private final FileOutputStream mMasterOutputStream;
+
+    public PseudoTerminal() throws IOException {
+        mSlavePath = nativeOpen(mMaster, mSlave);
+        if (mSlavePath == null) {
+            throw new IOException("openpty() failed");
+        }
+        mMasterInputStream = new FileInputStream(mMaster);
+        mMasterOutputStream = new FileOutputStream(mMaster);
+    }
+
+    public String getSlavePath() {
+        return mSlavePath;
+    }
+
+    public InputStream getMasterInputStream() {
+        return mMasterInputStream;
+    }
+
+    public OutputStream getMasterOutputStream() {
+        return mMasterOutputStream;
+    }
+
+    /**
+     * Close both sides, reads blocked on the master return an error
+     */
+    @Override
+    public void close() throws IOException {
+        nativeClose(mSlave);
+        nativeClose(mMaster);
+    }
+
+    /* fills in both descriptors, returns the slave path or null */
+    private static native String nativeOpen(FileDescriptor master, FileDescriptor slave);
+
+    private static native void nativeClose(FileDescriptor fd);
+
+    static {
+        System.loadLibrary("serial_port");
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.serialport;
+
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a capture from {@link TraceRecorder} as the device, on a pseudo-terminal, host only
+ *
+ * Open the application's {@link SerialPort} on {@link #getSlavePath()}. The recorded RX chunks
+ * are written to it at their original spacing divided by the speed factor, and whatever the
+ * application sends is compared byte for byte with the recorded TX stream. Chunk boundaries
+ * of TX do not matter, only the bytes and their order.
+ *
+ * By default an RX chunk also waits until the application has sent the TX recorded before
+ * it, so a reply never overtakes its command however fast the replay runs; the time spent
+ * waiting shifts the rest of the schedule.
+ */
+public class TraceReplayer {
+
+    private static final String TAG = "TraceReplayer";
+
+    public static final int DEFAULT_TX_TIMEOUT_MS = 1000;
+
+    public static class Result {
+        public long rxChunks;
+        public long rxBytes;
+        public long txExpected;
+        public long txReceived;
+        /* offset in the TX stream of the first differing byte, -1 if none */
+        public long txMismatchOffset = -1;
+        /* RX chunks that gave up waiting for the TX before them */
+        public long txTimeouts;
+        /* how late RX chunks were written against the schedule */
+        public long maxLagNanos;
+        public long totalLagNanos;
+        public long elapsedNanos;
+        public long originalNanos;
+
+        /**
+         * The application sent exactly the recorded TX stream
+         */
+        public boolean isMatch() {
+            return txMismatchOffset < 0 && txReceived == txExpected;
+        }
+
+        public String toJson() {
+            return String.format(Locale.US, "{\"match\":%b,\"rx_chunks\":%d,\"rx_bytes\":%d,"
+                            + "\"tx_expected\":%d,\"tx_received\":%d,\"tx_mismatch_offset\":%d,"
+                            + "\"tx_timeouts\":%d,\"max_lag_us\":%d,\"mean_lag_us\":%d,"
+                            + "\"elapsed_ms\":%d,\"original_ms\":%d}",
+                    isMatch(), rxChunks, rxBytes, txExpected, txReceived, txMismatchOffset,
+                    txTimeouts, maxLagNanos / 1000,
+                    rxChunks == 0 ? 0 : totalLagNanos / rxChunks / 1000,
+                    elapsedNanos / 1000000, originalNanos / 1000000);
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+
+    /* an RX chunk and how much TX precedes it */
+    private static class Chunk {
+        final long mTimestamp;
+        final byte[] mData;
+        final long mTxBefore;
+
+        Chunk(long timestamp, byte[] data, long txBefore) {
+            mTimestamp = timestamp;
+            mData = data;
+            mTxBefore = txBefore;
+        }
+    }
+
+    private final List<Chunk> mChunks = new ArrayList<Chunk>();
+    private final byte[] mExpectedTx;
+    private final long mFirstTimestamp;
+    private final long mLastTimestamp;
+    private final PseudoTerminal mPty;
+    private double mSpeed = 1.0;
+    private boolean mWaitForTx = true;
+    private int mTxTimeoutMs = DEFAULT_TX_TIMEOUT_MS;
+
+    /* TX verification, guarded by this */
+    private long mTxReceived;
+    private long mTxMismatchOffset = -1;
+    private boolean mClosed;
+
+    /**
+     * @param traces the files of one capture, oldest first, see
+     *               {@link TraceRecorder#listFiles(File, String)}
+     */
+    public TraceReplayer(File[] traces) throws IOException {
+        ByteArrayOutputStream tx = new ByteArrayOutputStream();
+        long first = -1;
+        long last = 0;
+        for (File trace : traces) {
+            TraceFile file = new TraceFile(trace);
+            TraceFile.Record r;
+            while ((r = file.next()) != null) {
+                if (first < 0) {
+                    first = r.timestampNanos;
+                }
+                last = r.timestampNanos;
+                if (r.direction == TraceRecorder.RX) {
+                    mChunks.add(new Chunk(r.timestampNanos, r.data, tx.size()));
+                } else if (r.direction == TraceRecorder.TX) {
+                    tx.write(r.data, 0, r.data.length);
+                }
+            }
+        }
+        mExpectedTx = tx.toByteArray();
+        mFirstTimestamp = Math.max(first, 0);
+        mLastTimestamp = last;
+        mPty = new PseudoTerminal();
+    }
+
+    public String getSlavePath() {
+        return mPty.getSlavePath();
+    }
+
+    /**
+     * 1.0 for the original timing, 100 for a hundred times faster, 0 for no delays at all
+     */
+    public TraceReplayer setSpeed(double speed) {
+        mSpeed = speed;
+        return this;
+    }
+
+    /**
+     * Whether RX waits for the TX recorded before it, and for how long at most
+     */
+    public TraceReplayer setWaitForTx(boolean wait, int timeout_ms) {
+        mWaitForTx = wait;
+        mTxTimeoutMs = timeout_ms;
+        return this;
+    }
+
+    /**
+     * Play the capture; returns once the last chunk is sent and the remaining TX arrived or
+     * timed out
+     */
+    public Result run() throws IOException, InterruptedException {
+        Result result = new Result();
+        result.txExpected = mExpectedTx.length;
+        result.originalNanos = mLastTimestamp - mFirstTimestamp;
+        Thread verifier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                verifyLoop();
+            }
+        }, "TraceReplayer verifier");
+        verifier.setDaemon(true);
+        verifier.start();
+
+        OutputStream out = mPty.getMasterOutputStream();
+        long start = System.nanoTime();
+        /* time spent waiting for TX, the schedule moves by it */
+        long shift = 0;
+        for (Chunk chunk : mChunks) {
+            long due = start + shift + scale(chunk.mTimestamp - mFirstTimestamp);
+            if (mWaitForTx) {
+                if (!awaitTx(chunk.mTxBefore, mTxTimeoutMs)) {
+                    result.txTimeouts++;
+                }
+                long now = System.nanoTime();
+                if (now > due) {
+                    shift += now - due;
+                    due = now;
+                }
+            }
+            sleepUntil(due);
+            long lag = System.nanoTime() - due;
+            out.write(chunk.mData);
+            result.rxChunks++;
+            result.rxBytes += chunk.mData.length;
+            result.totalLagNanos += lag;
+            result.maxLagNanos = Math.max(result.maxLagNanos, lag);
+        }
+        if (!awaitTx(mExpectedTx.length, mTxTimeoutMs)) {
+            result.txTimeouts++;
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        synchronized (this) {
+            result.txReceived = mTxReceived;
+            result.txMismatchOffset = mTxMismatchOffset;
+        }
+        Log.v(TAG, result.toJson());
+        return result;
+    }
+
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mPty.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e);
+        }
+    }
+
+    private long scale(long nanos) {
+        return mSpeed <= 0 ? 0 : (long) (nanos / mSpeed);
+    }
+
+    /* false on timeout; returns at once when TX went wrong, it would never catch up */
+    private synchronized boolean awaitTx(long count, int timeout_ms) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout_ms * 1000000L;
+        while (mTxReceived < count && mTxMismatchOffset < 0 && !mClosed) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            wait(Math.max(1, left / 1000000));
+        }
+        return mTxReceived >= count || mTxMismatchOffset >= 0 || mClosed;
+    }
+
+    private void verifyLoop() {
+        InputStream in = mPty.getMasterInputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                synchronized (this) {
+                    for (int i = 0; i < n; i++) {
+                        long offset = mTxReceived + i;
+                        if (mTxMismatchOffset < 0 && (offset >= mExpectedTx.length
+                                || buffer[i] != mExpectedTx[(int) offset])) {
+                            mTxMismatchOffset = offset;
+                            Log.e(TAG, "TX differs from the capture at offset " + offset);
+                        }
+                    }
+                    mTxReceived += n;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            /* the pty is closed */
+        }
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Replay a capture on a host, starting when return is pressed:
+     * TraceReplayer &lt;speed&gt; (&lt;trace file&gt;... | &lt;directory&gt; &lt;name&gt;)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("usage: TraceReplayer <speed> (<trace file>... | <directory> <name>)");
+            System.exit(2);
+        }
+        File[] traces;
+        File first = new File(args[1]);
+        if (first.isDirectory() && args.length == 3) {
+            traces = TraceRecorder.listFiles(first, args[2]);
+        } else {
+            traces = new File[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                traces[i - 1] = new File(args[i]);
+            }
+        }
+        TraceReplayer replayer = new TraceReplayer(traces).setSpeed(Double.parseDouble(args[0]));
+        System.out.println(replayer.getSlavePath());
+        System.in.read();
+        Result result = replayer.run();
+        replayer.close();
+        System.out.println(result.toJson());
+        System.exit(result.isMatch() ? 0 : 1);
+    }
+}
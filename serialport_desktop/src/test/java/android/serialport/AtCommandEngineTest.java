@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The engine on a port opened on a simulated modem
+ */
+public class AtCommandEngineTest {
+
+    private DeviceSimulator mModem;
+    private SerialPort mPort;
+    private AtCommandEngine mEngine;
+
+    private void start(DeviceSimulator.Model model) throws IOException {
+        mModem = new DeviceSimulator(model.setTerminator('\r'));
+        mModem.start();
+        mPort = new SerialPort(mModem.getSlavePath(), 115200);
+        mEngine = new AtCommandEngine(mPort);
+        mEngine.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (mEngine != null) {
+            mEngine.close();
+        }
+        if (mPort != null) {
+            mPort.close();
+        }
+        if (mModem != null) {
+            mModem.close();
+        }
+    }
+
+    @Test
+    public void finalResultCodes() throws Exception {
+        start(new DeviceSimulator.Model()
+                .on("AT+CSQ\r", "\r\n+CSQ: 20,99\r\n\r\nOK\r\n")
+                .on("AT+FOO\r", "\r\nERROR\r\n")
+                .on("AT+CPIN?\r", "\r\n+CME ERROR: 10\r\n"));
+
+        AtCommandEngine.Command c = mEngine.execute("AT+CSQ", 2000);
+        assertEquals(AtCommandEngine.RESULT_OK, c.getResult());
+        assertEquals(Arrays.asList("+CSQ: 20,99"), c.getLines());
+
+        c = mEngine.execute("AT+FOO", 2000);
+        assertEquals(AtCommandEngine.RESULT_ERROR, c.getResult());
+        assertEquals("ERROR", c.getFinalLine());
+
+        c = mEngine.execute("AT+CPIN?", 2000);
+        assertEquals(AtCommandEngine.RESULT_CME_ERROR, c.getResult());
+        assertEquals(10, c.getErrorCode());
+        assertTrue(c.getLines().isEmpty());
+    }
+
+    @Test
+    public void urcDuringCommandGoesToTheListener() throws Exception {
+        start(new DeviceSimulator.Model()
+                .on("AT+CSQ\r", "\r\n+CREG: 1\r\n\r\n+CSQ: 20,99\r\n\r\nRING\r\n\r\nOK\r\n"));
+        final List<String> urcs = Collections.synchronizedList(new ArrayList<String>());
+        AtCommandEngine.UrcListener listener = new AtCommandEngine.UrcListener() {
+            @Override
+            public void onUrc(String line) {
+                urcs.add(line);
+            }
+        };
+        mEngine.addUrcListener("+CREG:", listener);
+        mEngine.addUrcListener("RING", listener);
+
+        AtCommandEngine.Command c = mEngine.execute("AT+CSQ", 2000);
+        assertEquals(AtCommandEngine.RESULT_OK, c.getResult());
+        assertEquals(Arrays.asList("+CSQ: 20,99"), c.getLines());
+        assertEquals(Arrays.asList("+CREG: 1", "RING"), urcs);
+    }
+
+    @Test
+    public void echoIsNotAResponseLine() throws Exception {
+        start(new DeviceSimulator.Model()
+                .on("AT+CGMI\r", "AT+CGMI\r\r\nQuectel\r\n\r\nOK\r\n"));
+
+        AtCommandEngine.Command c = mEngine.execute("AT+CGMI", 2000);
+        assertEquals(AtCommandEngine.RESULT_OK, c.getResult());
+        assertEquals(Arrays.asList("Quectel"), c.getLines());
+    }
+
+    @Test
+    public void unansweredCommandTimesOut() throws Exception {
+        start(new DeviceSimulator.Model()
+                .on("AT\r", "\r\nOK\r\n"));
+
+        long start = System.currentTimeMillis();
+        AtCommandEngine.Command c = mEngine.execute("AT+SILENT", 200);
+        assertEquals(AtCommandEngine.RESULT_TIMEOUT, c.getResult());
+        assertTrue(System.currentTimeMillis() - start >= 200);
+
+        /* the queue moves on */
+        assertEquals(AtCommandEngine.RESULT_OK, mEngine.execute("AT", 2000).getResult());
+    }
+
+    @Test
+    public void closeCompletesPendingCommands() throws Exception {
+        start(new DeviceSimulator.Model());
+
+        AtCommandEngine.Command inFlight = mEngine.submit("AT+SILENT", 60000, null);
+        AtCommandEngine.Command queued = mEngine.submit("AT", 60000, null);
+        mEngine.close();
+        assertTrue(inFlight.await(1000));
+        assertTrue(queued.await(1000));
+        assertEquals(AtCommandEngine.RESULT_CLOSED, inFlight.getResult());
+        assertEquals(AtCommandEngine.RESULT_CLOSED, queued.getResult());
+
+        AtCommandEngine.Command late = mEngine.submit("AT", 60000, null);
+        assertEquals(AtCommandEngine.RESULT_CLOSED, late.getResult());
+    }
+}
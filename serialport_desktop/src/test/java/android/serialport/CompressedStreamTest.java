@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class CompressedStreamTest {
+
+    private static byte[] text(int length) {
+        byte[] line = "AT+CSQ\r\n+CSQ: 23,99\r\nOK\r\n".getBytes();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = line[i % line.length];
+        }
+        return data;
+    }
+
+    private static byte[] readAll(CompressedInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[333];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] write(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressedOutputStream out = new CompressedOutputStream(wire, blockSize);
+        out.write(data);
+        out.flush();
+        return wire.toByteArray();
+    }
+
+    @Test
+    public void roundTripWithPartialBlocks() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressedOutputStream out = new CompressedOutputStream(wire, 1024);
+        byte[] data = text(10000);
+        out.write(data, 0, 100);
+        out.flush();
+        out.write(data[100]);
+        out.write(data, 101, data.length - 101);
+        out.flush();
+        assertTrue(out.getCompressionRatio() > 2);
+
+        CompressedInputStream in = new CompressedInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        assertArrayEquals(data, readAll(in));
+        assertEquals(data.length, in.getRawBytes());
+        assertEquals(wire.size(), in.getWireBytes());
+        assertEquals(0, in.getCorruptBlockCount());
+    }
+
+    @Test
+    public void incompressibleBlocksAreStored() throws IOException {
+        byte[] data = new byte[4 * 1024];
+        new Random(1).nextBytes(data);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressedOutputStream out = new CompressedOutputStream(wire, 1024);
+        out.write(data);
+        out.flush();
+        assertEquals(4, out.getStoredBlockCount());
+        assertEquals(0, out.getCompressedBlockCount());
+        assertEquals(data.length + 4 * CompressedOutputStream.HEADER_SIZE, wire.size());
+        assertArrayEquals(data, readAll(new CompressedInputStream(new ByteArrayInputStream(wire.toByteArray()))));
+    }
+
+    @Test
+    public void truncatedStreamThrows() throws IOException {
+        byte[] wire = write(text(3000), 1024);
+        for (int cut : new int[] {1, CompressedOutputStream.HEADER_SIZE, wire.length - 1}) {
+            CompressedInputStream in = new CompressedInputStream(
+                    new ByteArrayInputStream(Arrays.copyOf(wire, cut)));
+            try {
+                readAll(in);
+                fail("cut at " + cut);
+            } catch (EOFException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void emptyStreamEnds() throws IOException {
+        assertEquals(-1, new CompressedInputStream(new ByteArrayInputStream(new byte[0])).read());
+    }
+
+    @Test
+    public void corruptBlockIsDroppedAndTheNextOneFound() throws IOException {
+        byte[] first = text(1024);
+        byte[] second = new byte[1024];
+        new Random(3).nextBytes(second);
+        byte[] third = text(512);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressedOutputStream out = new CompressedOutputStream(wire, 1024);
+        out.write(first);
+        out.flush();
+        int secondStart = wire.size();
+        out.write(second);
+        out.flush();
+        int thirdStart = wire.size();
+        out.write(third);
+        out.flush();
+
+        for (int damaged : new int[] {secondStart + 1, secondStart + 3, secondStart + 6, thirdStart - 10}) {
+            byte[] bytes = wire.toByteArray();
+            bytes[damaged] ^= 0x40;
+            CompressedInputStream in = new CompressedInputStream(new ByteArrayInputStream(bytes));
+            byte[] expected = new byte[first.length + third.length];
+            System.arraycopy(first, 0, expected, 0, first.length);
+            System.arraycopy(third, 0, expected, first.length, third.length);
+            try {
+                assertArrayEquals("damaged at " + damaged, expected, readAll(in));
+            } catch (EOFException e) {
+                /* a length grown by the damage may run past the end of this short stream */
+                assertTrue(damaged < secondStart + CompressedOutputStream.HEADER_SIZE);
+                continue;
+            }
+            assertEquals(1, in.getCorruptBlockCount());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class Crc16Test {
+
+    private static final byte[] CHECK = "123456789".getBytes();
+
+    @Test
+    public void x25CheckValue() {
+        assertEquals(0x906e, Crc16.compute(CHECK, 0, CHECK.length));
+    }
+
+    @Test
+    public void xmodemCheckValue() {
+        assertEquals(0x31c3, Crc16.xmodem(CHECK, 0, CHECK.length));
+    }
+
+    @Test
+    public void emptyInput() {
+        assertEquals(0x0000, Crc16.compute(CHECK, 0, 0));
+        assertEquals(0x0000, Crc16.xmodem(CHECK, 0, 0));
+    }
+
+    @Test
+    public void incrementalUpdateMatchesCompute() {
+        int crc = Crc16.update(Crc16.INIT, CHECK, 0, 4);
+        for (int i = 4; i < CHECK.length; i++) {
+            crc = Crc16.update(crc, CHECK[i]);
+        }
+        assertEquals(Crc16.compute(CHECK, 0, CHECK.length), Crc16.finish(crc));
+    }
+}
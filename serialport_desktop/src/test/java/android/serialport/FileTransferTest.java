@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Streaming transfers over a link on a pseudo terminal
+ */
+public class FileTransferTest {
+
+    private static final int BLOCK_SIZE = 256;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSource;
+    private File mDestination;
+    private byte[] mContent;
+
+    private PseudoTerminal mPty;
+    private SerialPort mPort;
+    private ReliableLink mSenderLink;
+    private ReliableLink mReceiverLink;
+    private FileTransfer.Sender mSender;
+    private FileTransfer.Receiver mReceiver;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[300 * 1024 + 123];
+        new Random(1).nextBytes(mContent);
+        mSource = mFolder.newFile("source.bin");
+        FileOutputStream out = new FileOutputStream(mSource);
+        out.write(mContent);
+        out.close();
+        mDestination = new File(mFolder.getRoot(), "destination.bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        disconnect();
+    }
+
+    private void connect() throws IOException {
+        mPty = new PseudoTerminal();
+        mPort = new SerialPort(mPty.getSlavePath(), 115200);
+        mSender = new FileTransfer.Sender();
+        mReceiver = new FileTransfer.Receiver(mDestination, null);
+        mSenderLink = new ReliableLink(mPort.getInputStream(), mPort.getOutputStream(), 16,
+                BLOCK_SIZE, mSender);
+        mReceiverLink = new ReliableLink(mPty.getMasterInputStream(), mPty.getMasterOutputStream(),
+                16, BLOCK_SIZE, mReceiver);
+        mReceiver.setLink(mReceiverLink);
+        mSenderLink.start();
+        mReceiverLink.start();
+    }
+
+    private void disconnect() throws IOException {
+        if (mPty == null) {
+            return;
+        }
+        mSenderLink.close();
+        mReceiverLink.close();
+        mPty.close();
+        mPort.close();
+        mPty = null;
+    }
+
+    private byte[] readDestination() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mDestination, "r");
+        byte[] content = new byte[(int) raf.length()];
+        raf.readFully(content);
+        raf.close();
+        return content;
+    }
+
+    private File checkpointFile() {
+        return new File(mDestination.getPath() + ".part");
+    }
+
+    @Test
+    public void wholeFile() throws Exception {
+        connect();
+        long sent = FileTransfer.sendStreaming(mSenderLink, mSender, mSource, BLOCK_SIZE, null);
+        assertEquals(mContent.length, sent);
+        assertTrue(mReceiver.await(10000));
+        assertArrayEquals(mContent, readDestination());
+        assertFalse(checkpointFile().exists());
+    }
+
+    @Test
+    public void resumesFromTheCheckpointNotThePresizedLength() throws Exception {
+        connect();
+        final ReliableLink link = mSenderLink;
+        try {
+            FileTransfer.sendStreaming(mSenderLink, mSender, mSource, BLOCK_SIZE,
+                    new FileTransfer.ProgressListener() {
+                        @Override
+                        public void onProgress(long position, long size, long bytesPerSecond) {
+                            if (position > 200 * 1024) {
+                                link.close();
+                            }
+                        }
+                    });
+            throw new AssertionError("the transfer should have been cut");
+        } catch (IOException expected) {
+        }
+        Thread.sleep(200);
+        disconnect();
+        /* the file was grown to full size on start */
+        assertEquals(mContent.length, mDestination.length());
+
+        connect();
+        long resume = mReceiver.getPosition();
+        assertTrue(resume >= 128 * 1024 && resume < mContent.length);
+        long sent = FileTransfer.sendStreaming(mSenderLink, mSender, mSource, BLOCK_SIZE, null);
+        assertEquals(mContent.length - resume, sent);
+        assertTrue(mReceiver.await(10000));
+        assertArrayEquals(mContent, readDestination());
+        assertFalse(checkpointFile().exists());
+    }
+
+    @Test
+    public void completeFileIsSentAgain() throws Exception {
+        connect();
+        FileTransfer.sendStreaming(mSenderLink, mSender, mSource, BLOCK_SIZE, null);
+        assertTrue(mReceiver.await(10000));
+        disconnect();
+
+        connect();
+        assertEquals(0, mReceiver.getPosition());
+        assertEquals(mContent.length,
+                FileTransfer.sendStreaming(mSenderLink, mSender, mSource, BLOCK_SIZE, null));
+        assertTrue(mReceiver.await(10000));
+        assertArrayEquals(mContent, readDestination());
+    }
+
+    @Test
+    public void fileWithoutCheckpointIsReplaced() throws Exception {
+        /* the previous image, shorter and then of the same size */
+        for (int size : new int[] {mContent.length / 2, mContent.length}) {
+            byte[] old = new byte[size];
+            Arrays.fill(old, (byte) 0x5a);
+            FileOutputStream out = new FileOutputStream(mDestination);
+            out.write(old);
+            out.close();
+
+            connect();
+            assertEquals(0, mReceiver.getPosition());
+            assertEquals(mContent.length,
+                    FileTransfer.sendStreaming(mSenderLink, mSender, mSource, BLOCK_SIZE, null));
+            assertTrue(mReceiver.await(10000));
+            assertArrayEquals(mContent, readDestination());
+            disconnect();
+        }
+    }
+
+    @Test(expected = FileTransfer.TransferException.class)
+    public void offsetBeyondTheFileFails() throws Exception {
+        connect();
+        FileTransfer.sendStreaming(mSenderLink, mSource, mContent.length + 1, BLOCK_SIZE, null);
+    }
+
+    private static byte[] start(long offset, long size) {
+        return ByteBuffer.allocate(17).put((byte) 'S').putLong(offset).putLong(size).array();
+    }
+
+    @Test
+    public void startBeyondTheSizeFails() throws Exception {
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver(mDestination, null);
+        byte[] start = start(100, 10);
+        receiver.onReceive(start, 0, start.length);
+        assertFalse(receiver.await(0));
+        assertFalse(mDestination.exists());
+    }
+
+    @Test
+    public void startBeyondWhatWasReceivedFails() throws Exception {
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver(mDestination, null);
+        byte[] start = start(10, 100);
+        receiver.onReceive(start, 0, start.length);
+        assertFalse(receiver.await(0));
+    }
+
+    @Test
+    public void dataBeyondTheSizeFailsAndTruncates() throws Exception {
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver(mDestination, null);
+        byte[] start = start(0, 10);
+        receiver.onReceive(start, 0, start.length);
+        byte[] data = {'D', 1, 2, 3, 4, 5, 6};
+        receiver.onReceive(data, 0, data.length);
+        receiver.onReceive(data, 0, data.length);
+        assertFalse(receiver.await(0));
+        assertEquals(6, mDestination.length());
+        assertEquals(6, new FileTransfer.Receiver(mDestination, null).getPosition());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class HdlcFramerTest {
+
+    private final List<byte[]> mFrames = new ArrayList<byte[]>();
+    private final HdlcFramer.Decoder mDecoder = new HdlcFramer.Decoder(64, new HdlcFramer.FrameListener() {
+        @Override
+        public void onFrame(byte[] frame, int length) {
+            mFrames.add(Arrays.copyOf(frame, length));
+        }
+    });
+
+    private static byte[] encode(byte[] data) {
+        byte[] out = new byte[HdlcFramer.maxEncodedLength(data.length)];
+        int n = HdlcFramer.encode(data, 0, data.length, out, 0);
+        return Arrays.copyOf(out, n);
+    }
+
+    @Test
+    public void flagAndEscapeAreStuffed() {
+        byte[] wire = encode(new byte[] {0x7e, 0x01, 0x7d});
+        assertEquals(HdlcFramer.FLAG, wire[0]);
+        assertEquals(HdlcFramer.FLAG, wire[wire.length - 1]);
+        assertArrayEquals(new byte[] {0x7d, 0x5e, 0x01, 0x7d, 0x5d},
+                Arrays.copyOfRange(wire, 1, 6));
+        /* no flag inside the frame */
+        for (int i = 1; i < wire.length - 1; i++) {
+            if (wire[i] == HdlcFramer.FLAG) {
+                throw new AssertionError("flag at " + i);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripByteByByte() {
+        byte[] data = new byte[40];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (0x70 + i % 16);
+        }
+        byte[] wire = encode(data);
+        for (int i = 0; i < wire.length; i++) {
+            mDecoder.feed(wire, i, 1);
+        }
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(data, mFrames.get(0));
+        assertEquals(0, mDecoder.getBadFrameCount());
+    }
+
+    @Test
+    public void idleFlagsAreNotFrames() {
+        byte[] wire = encode(new byte[] {1, 2, 3});
+        byte[] stream = new byte[wire.length + 3];
+        Arrays.fill(stream, HdlcFramer.FLAG);
+        System.arraycopy(wire, 0, stream, 2, wire.length);
+        mDecoder.feed(stream, 0, stream.length);
+        assertEquals(1, mFrames.size());
+        assertEquals(0, mDecoder.getBadFrameCount());
+    }
+
+    @Test
+    public void corruptedFrameIsDroppedAndNextOneDecodes() {
+        byte[] bad = encode(new byte[] {1, 2, 3, 4});
+        bad[2] ^= 0x01;
+        byte[] good = encode(new byte[] {5, 6});
+        mDecoder.feed(bad, 0, bad.length);
+        mDecoder.feed(good, 0, good.length);
+        assertEquals(1, mDecoder.getBadFrameCount());
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(new byte[] {5, 6}, mFrames.get(0));
+    }
+
+    @Test
+    public void oversizedFrameIsDropped() {
+        byte[] wire = encode(new byte[100]);
+        mDecoder.feed(wire, 0, wire.length);
+        assertEquals(0, mFrames.size());
+        assertEquals(1, mDecoder.getBadFrameCount());
+    }
+}
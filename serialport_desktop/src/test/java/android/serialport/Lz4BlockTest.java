@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class Lz4BlockTest {
+
+    private final int[] mHashTable = new int[Lz4Block.HASH_TABLE_SIZE];
+
+    private byte[] compress(byte[] data) {
+        byte[] out = new byte[data.length + data.length / 255 + 16];
+        int n = Lz4Block.compress(data, 0, data.length, out, 0, out.length, mHashTable);
+        assertTrue(n > 0);
+        return Arrays.copyOf(out, n);
+    }
+
+    private static byte[] decompress(byte[] block, int length) throws IOException {
+        byte[] out = new byte[length];
+        assertEquals(length, Lz4Block.decompress(block, 0, block.length, out, 0, length));
+        return out;
+    }
+
+    private void roundTrip(byte[] data) throws IOException {
+        assertArrayEquals(data, decompress(compress(data), data.length));
+    }
+
+    private static byte[] text(int length) {
+        byte[] line = "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\r\n".getBytes();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = line[i % line.length];
+        }
+        return data;
+    }
+
+    @Test
+    public void roundTripText() throws IOException {
+        byte[] data = text(4096);
+        assertTrue(compress(data).length < data.length / 4);
+        roundTrip(data);
+    }
+
+    @Test
+    public void roundTripRunsAndOverlappingMatches() throws IOException {
+        byte[] data = new byte[3000];
+        Arrays.fill(data, 0, 1000, (byte) 'a');
+        for (int i = 1000; i < 3000; i++) {
+            data[i] = (byte) (i % 3);
+        }
+        roundTrip(data);
+    }
+
+    @Test
+    public void roundTripSmallAndRandomInputs() throws IOException {
+        Random random = new Random(1);
+        for (int length = 0; length < 40; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            roundTrip(data);
+            roundTrip(text(length));
+        }
+        byte[] data = new byte[65535];
+        random.nextBytes(data);
+        roundTrip(data);
+    }
+
+    @Test
+    public void incompressibleDoesNotFit() {
+        byte[] data = new byte[1024];
+        new Random(2).nextBytes(data);
+        byte[] out = new byte[data.length];
+        assertEquals(-1, Lz4Block.compress(data, 0, data.length, out, 0, data.length - 1, mHashTable));
+    }
+
+    @Test
+    public void truncatedBlocksAreRejected() {
+        byte[] data = text(2048);
+        byte[] block = compress(data);
+        /* the block sits in a larger buffer, bytes past its end must not be read */
+        byte[] buffer = Arrays.copyOf(block, block.length + 64);
+        Arrays.fill(buffer, block.length, buffer.length, (byte) 0xff);
+        byte[] out = new byte[data.length];
+        for (int length = 1; length < block.length; length++) {
+            try {
+                int n = Lz4Block.decompress(buffer, 0, length, out, 0, out.length);
+                /* a cut right after literals is a valid, shorter block */
+                assertTrue(n < data.length);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void outputTooSmallIsRejected() {
+        byte[] data = text(2048);
+        byte[] block = compress(data);
+        try {
+            Lz4Block.decompress(block, 0, block.length, new byte[data.length - 1], 0, data.length - 1);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NmeaParserTest {
+
+    private static final String GGA = "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\r\n";
+    private static final String RMC = "$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A\r\n";
+    private static final String GSV = "$GPGSV,2,1,08,01,40,083,46,02,17,308,41,12,07,344,39,14,22,228,45*75\r\n";
+
+    private final List<Integer> mTypes = new ArrayList<Integer>();
+    private NmeaParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new NmeaParser(new NmeaParser.Listener() {
+            @Override
+            public void onSentence(int type, NmeaParser parser) {
+                mTypes.add(type);
+            }
+        });
+    }
+
+    private void feed(String s) {
+        byte[] b = s.getBytes();
+        mParser.feed(b, 0, b.length);
+    }
+
+    /** wrap a body in '$', its checksum and CR LF */
+    private static String sentence(String body) {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        return String.format("$%s*%02X\r\n", body, checksum);
+    }
+
+    @Test
+    public void gga() {
+        feed(GGA);
+        assertEquals(1, mTypes.size());
+        assertEquals(NmeaParser.TYPE_GGA, (int) mTypes.get(0));
+        NmeaParser.Gga r = mParser.getGga();
+        assertEquals('G', r.talker0);
+        assertEquals('P', r.talker1);
+        assertEquals((12 * 3600 + 35 * 60 + 19) * 1000, r.time);
+        assertEquals(48 + 7.038 / 60, r.latitude, 1e-9);
+        assertEquals(11 + 31.0 / 60, r.longitude, 1e-9);
+        assertEquals(1, r.fixQuality);
+        assertEquals(8, r.satellites);
+        assertEquals(0.9, r.hdop, 1e-9);
+        assertEquals(545.4, r.altitude, 1e-9);
+        assertEquals(46.9, r.geoidSeparation, 1e-9);
+    }
+
+    @Test
+    public void rmc() {
+        feed(RMC);
+        assertEquals(NmeaParser.TYPE_RMC, (int) mTypes.get(0));
+        NmeaParser.Rmc r = mParser.getRmc();
+        assertTrue(r.valid);
+        assertEquals(22.4, r.speedKnots, 1e-9);
+        assertEquals(84.4, r.course, 1e-9);
+        assertEquals(230394, r.date);
+        assertEquals(-3.1, r.magneticVariation, 1e-9);
+        assertEquals(0, r.mode);
+    }
+
+    @Test
+    public void gsv() {
+        feed(GSV);
+        NmeaParser.Gsv r = mParser.getGsv();
+        assertEquals(2, r.totalMessages);
+        assertEquals(1, r.messageNumber);
+        assertEquals(8, r.satellitesInView);
+        assertEquals(4, r.count);
+        assertEquals(14, r.prn[3]);
+        assertEquals(22, r.elevation[3]);
+        assertEquals(228, r.azimuth[3]);
+        assertEquals(45, r.snr[3]);
+    }
+
+    @Test
+    public void gsaSkipsEmptyPrns() {
+        feed(sentence("GNGSA,A,3,04,,09,,,,,,,,,,2.5,1.3,2.1"));
+        NmeaParser.Gsa r = mParser.getGsa();
+        assertEquals('N', r.talker1);
+        assertEquals('A', r.selectionMode);
+        assertEquals(3, r.fixType);
+        assertEquals(2, r.prnCount);
+        assertEquals(4, r.prn[0]);
+        assertEquals(9, r.prn[1]);
+        assertEquals(2.5, r.pdop, 1e-9);
+        assertEquals(2.1, r.vdop, 1e-9);
+    }
+
+    @Test
+    public void southWestAndFractionalTime() {
+        feed(sentence("GPGGA,235959.250,3352.500,S,15112.000,W,2,05,1.2,-10.5,M,,M,,"));
+        NmeaParser.Gga r = mParser.getGga();
+        assertEquals(((23 * 60 + 59) * 60 + 59) * 1000 + 250, r.time);
+        assertEquals(-(33 + 52.5 / 60), r.latitude, 1e-9);
+        assertEquals(-(151 + 12.0 / 60), r.longitude, 1e-9);
+        assertEquals(-10.5, r.altitude, 1e-9);
+    }
+
+    @Test
+    public void emptyFields() {
+        feed(sentence("GPGGA,,,,,,0,,,,M,,M,,"));
+        NmeaParser.Gga r = mParser.getGga();
+        assertEquals(-1, r.time);
+        assertTrue(Double.isNaN(r.latitude));
+        assertTrue(Double.isNaN(r.longitude));
+        assertEquals(0, r.fixQuality);
+        assertEquals(-1, r.satellites);
+        assertTrue(Double.isNaN(r.hdop));
+    }
+
+    @Test
+    public void badChecksumIsCounted() {
+        feed(GGA.replace("*47", "*48"));
+        feed(GGA.replace("545.4", "545.5"));
+        assertTrue(mTypes.isEmpty());
+        assertEquals(2, mParser.getChecksumErrorCount());
+        assertEquals(0, mParser.getSentenceCount());
+    }
+
+    @Test
+    public void missingOrMalformedChecksum() {
+        feed("$GPGGA,123519,4807.038,N\r\n");
+        feed("$GPGGA,123519*4\r\n");
+        feed("$GPGGA,123519*G7\r\n");
+        assertTrue(mTypes.isEmpty());
+        assertEquals(3, mParser.getChecksumErrorCount());
+    }
+
+    @Test
+    public void lowerCaseChecksum() {
+        feed(RMC.replace("*6A", "*6a"));
+        assertEquals(1, mTypes.size());
+    }
+
+    @Test
+    public void splitAcrossFeeds() {
+        byte[] b = (GGA + RMC).getBytes();
+        for (int i = 0; i < b.length; i++) {
+            mParser.feed(b, i, 1);
+        }
+        assertEquals(2, mTypes.size());
+        assertEquals(NmeaParser.TYPE_RMC, (int) mTypes.get(1));
+    }
+
+    @Test
+    public void garbageAndRestart() {
+        /* noise before '$', and a '$' restarts a truncated sentence */
+        feed("\u0000xx$GPGGA,1235" + GGA);
+        assertEquals(1, mTypes.size());
+        assertEquals(0, mParser.getChecksumErrorCount());
+    }
+
+    @Test
+    public void unsupportedSentence() {
+        feed(sentence("GPZDA,201530.00,04,07,2002,00,00"));
+        feed(sentence("PUBX,00"));
+        assertTrue(mTypes.isEmpty());
+        assertEquals(2, mParser.getUnsupportedCount());
+    }
+
+    @Test
+    public void overlongSentenceIsDropped() {
+        StringBuilder body = new StringBuilder("GPGGA");
+        while (body.length() < 200) {
+            body.append(",1");
+        }
+        feed(sentence(body.toString()));
+        assertFalse(mTypes.contains(NmeaParser.TYPE_GGA));
+        feed(GGA);
+        assertEquals(1, mTypes.size());
+    }
+}
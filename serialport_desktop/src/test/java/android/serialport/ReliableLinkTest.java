@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A link on a pseudo terminal, the port side sends to a peer on the master side
+ */
+public class ReliableLinkTest {
+
+    private PseudoTerminal mPty;
+    private SerialPort mPort;
+    private ReliableLink mSender;
+    private ReliableLink mReceiver;
+    private final List<Integer> mReceived = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile boolean mFailed;
+
+    private final ReliableLink.Listener mReceiverListener = new ReliableLink.Listener() {
+        @Override
+        public void onReceive(byte[] data, int offset, int length) {
+            mReceived.add(((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+        }
+
+        @Override
+        public void onLinkFailure() {
+            mFailed = true;
+        }
+    };
+
+    private final ReliableLink.Listener mSenderListener = new ReliableLink.Listener() {
+        @Override
+        public void onReceive(byte[] data, int offset, int length) {
+        }
+
+        @Override
+        public void onLinkFailure() {
+            mFailed = true;
+        }
+    };
+
+    /* drops whole frame writes */
+    private abstract static class Lossy extends FilterOutputStream {
+        Lossy(OutputStream out) {
+            super(out);
+        }
+
+        abstract boolean drop(byte[] b, int off, int len);
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (!drop(b, off, len)) {
+                out.write(b, off, len);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mPty = new PseudoTerminal();
+        mPort = new SerialPort(mPty.getSlavePath(), 115200);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mSender != null) {
+            mSender.close();
+        }
+        if (mReceiver != null) {
+            mReceiver.close();
+        }
+        mPty.close();
+        mPort.close();
+    }
+
+    private void start(OutputStream senderOut, int windowSize) {
+        mSender = new ReliableLink(mPort.getInputStream(), senderOut, windowSize, 64, mSenderListener);
+        mReceiver = new ReliableLink(mPty.getMasterInputStream(), mPty.getMasterOutputStream(),
+                windowSize, 64, mReceiverListener);
+        mSender.start();
+        mReceiver.start();
+    }
+
+    private void sendAndCheck(int count) throws Exception {
+        byte[] payload = new byte[6];
+        for (int i = 0; i < count; i++) {
+            payload[0] = (byte) (i >> 8);
+            payload[1] = (byte) i;
+            /* escaped on the wire */
+            payload[2] = HdlcFramer.FLAG;
+            payload[3] = HdlcFramer.ESCAPE;
+            mSender.send(payload);
+        }
+        assertTrue(mSender.awaitAcknowledged(10000));
+        assertEquals(count, mReceived.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) mReceived.get(i));
+        }
+        assertTrue(!mFailed);
+    }
+
+    @Test
+    public void sequenceNumbersWrapAround() throws Exception {
+        start(mPort.getOutputStream(), 16);
+        sendAndCheck(3 * 256 + 10);
+        assertEquals(0, mSender.getRetransmitCount());
+    }
+
+    @Test
+    public void onlyTheLostFrameIsRetransmitted() throws Exception {
+        start(new Lossy(mPort.getOutputStream()) {
+            private boolean mDropped;
+
+            @Override
+            boolean drop(byte[] b, int off, int len) {
+                /* the first DATA frame with seq 5 */
+                if (!mDropped && len > 3 && b[off + 1] == 0 && b[off + 2] == 5) {
+                    mDropped = true;
+                    return true;
+                }
+                return false;
+            }
+        }, 8);
+        /* SREJ only, no timeout */
+        mSender.setRetransmitTimeout(60000);
+        sendAndCheck(20);
+        assertEquals(1, mSender.getRetransmitCount());
+    }
+
+    @Test
+    public void recoversFromRandomLoss() throws Exception {
+        final Random random = new Random(1);
+        start(new Lossy(mPort.getOutputStream()) {
+            @Override
+            boolean drop(byte[] b, int off, int len) {
+                return random.nextInt(10) == 0;
+            }
+        }, 8);
+        mSender.setRetransmitTimeout(50);
+        mSender.setMaxRetries(50);
+        sendAndCheck(500);
+        assertTrue(mSender.getRetransmitCount() > 0);
+    }
+
+    @Test
+    public void defaultTimeoutCoversTheWindowOnTheWire() {
+        int timeout = ReliableLink.defaultRetransmitTimeout(9600, 8, 256);
+        /* 9 frames of 263 characters at 960 characters per second */
+        assertTrue(timeout > 9 * 263 * 1000 / 960);
+        assertEquals(ReliableLink.DEFAULT_RETRANSMIT_TIMEOUT_MS,
+                ReliableLink.defaultRetransmitTimeout(0, 8, 256));
+        assertTrue(mPort.setBaudrate(9600));
+        assertEquals(timeout, new ReliableLink(mPort, 8, 256, mSenderListener).getRetransmitTimeout());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 Hsinko Yu <hsinkoyu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.serialport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Codecs generated by serialport_codegen for test messages and BarcodeScanner's menu frame
+ */
+public class WireCodecTest {
+
+    @WireMessage
+    static class Packet {
+        @WireField(order = 0)
+        short id;
+        @WireField(order = 1, bits = 3)
+        int version;
+        @WireField(order = 2, bits = 1)
+        boolean ack;
+        @WireField(order = 3, bits = 12)
+        int channel;
+        @WireField(order = 4, lengthPrefix = 1)
+        byte[] payload = new byte[300];
+        int payloadLength;
+        @WireField(order = 5, length = 2)
+        byte[] crc = new byte[2];
+    }
+
+    @WireMessage(bigEndian = false)
+    static class LittleEndian {
+        @WireField(order = 0)
+        int value;
+        @WireField(order = 1)
+        float ratio;
+    }
+
+    @Test
+    public void roundTrip() {
+        Packet p = new Packet();
+        p.id = (short) 0xbeef;
+        p.version = 5;
+        p.ack = true;
+        p.channel = 0xabc;
+        p.payloadLength = 3;
+        p.payload[0] = 1;
+        p.payload[1] = 2;
+        p.payload[2] = 3;
+        p.crc[0] = (byte) 0xfe;
+        p.crc[1] = (byte) 0xdc;
+        byte[] buffer = new byte[64];
+        int n = PacketCodec.encode(p, buffer, 1);
+        assertEquals(PacketCodec.encodedLength(p), n);
+        assertArrayEquals(new byte[] {(byte) 0xbe, (byte) 0xef, (byte) 0xba, (byte) 0xbc, 3, 1, 2, 3,
+                (byte) 0xfe, (byte) 0xdc}, Arrays.copyOfRange(buffer, 1, 1 + n));
+
+        Packet q = new Packet();
+        assertEquals(n, PacketCodec.decode(buffer, 1, n, q));
+        assertEquals(p.id, q.id);
+        assertEquals(5, q.version);
+        assertEquals(true, q.ack);
+        assertEquals(0xabc, q.channel);
+        assertEquals(3, q.payloadLength);
+        assertArrayEquals(Arrays.copyOf(p.payload, 3), Arrays.copyOf(q.payload, 3));
+        assertArrayEquals(p.crc, q.crc);
+        assertEquals(WireCodec.INCOMPLETE, PacketCodec.decode(buffer, 1, n - 1, q));
+    }
+
+    @Test
+    public void littleEndian() {
+        LittleEndian m = new LittleEndian();
+        m.value = 0x01020304;
+        m.ratio = 1.5f;
+        byte[] buffer = new byte[8];
+        LittleEndianCodec.encode(m, buffer, 0);
+        assertEquals(4, buffer[0]);
+        LittleEndian d = new LittleEndian();
+        LittleEndianCodec.decode(buffer, 0, buffer.length, d);
+        assertEquals(m.value, d.value);
+        assertEquals(1.5f, d.ratio, 0);
+    }
+
+    @Test
+    public void lengthBeyondThePrefixIsRejected() {
+        Packet p = new Packet();
+        p.payloadLength = 256;
+        try {
+            PacketCodec.encode(p, new byte[512], 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        p.payloadLength = -1;
+        try {
+            PacketCodec.encode(p, new byte[512], 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void oversizedLengthDecodesAsMalformed() {
+        Packet p = new Packet();
+        p.payload = new byte[2];
+        byte[] buffer = {0, 0, 0, 0, 3, 1, 2, 3, 0, 0};
+        assertEquals(WireCodec.MALFORMED, PacketCodec.decode(buffer, 0, buffer.length, p));
+    }
+
+    @Test
+    public void menuFrame() {
+        BarcodeScanner.MenuFrame m = new BarcodeScanner.MenuFrame();
+        m.settings = "TRGMOD2".getBytes();
+        m.settingsLength = m.settings.length;
+        m.storage = '!';
+        byte[] frame = new byte[MenuFrameCodec.encodedLength(m)];
+        MenuFrameCodec.encode(m, frame, 0);
+        assertArrayEquals("\u0016M\rTRGMOD2!".getBytes(), frame);
+
+        BarcodeScanner.MenuFrame d = new BarcodeScanner.MenuFrame();
+        d.settings = new byte[16];
+        assertEquals(frame.length, MenuFrameCodec.decode(frame, 0, frame.length, d));
+        assertEquals("TRGMOD2", new String(d.settings, 0, d.settingsLength));
+        assertEquals('!', d.storage);
+    }
+}